@@ -0,0 +1,59 @@
+package com.scosyf.distLock.benchmark;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+import com.scosyf.distLock.redis.cache.CacheManager;
+import com.scosyf.distLock.redis.lock.DistributeLock;
+
+/**
+ * 所有基准测试共享的环境：本地redis + 只包含redis包的spring容器
+ *
+ * contention：
+ *      > uncontended 每个线程使用自己的key，只测单次操作的开销
+ *      > contended   所有线程抢同一个key，线程数由-t或BenchmarkRunner指定
+ */
+@State(Scope.Benchmark)
+public class BenchmarkContext {
+
+    @Param({"uncontended", "contended"})
+    public String contention;
+
+    public DistributeLock distributeLock;
+
+    public CacheManager cacheManager;
+
+    private LocalRedisServer server;
+
+    private ClassPathXmlApplicationContext context;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = LocalRedisServer.start();
+        server.flush();
+        context = new ClassPathXmlApplicationContext("benchmark-context.xml");
+        distributeLock = context.getBean(DistributeLock.class);
+        cacheManager = context.getBean("redisManager", CacheManager.class);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (context != null) {
+            context.close();
+        }
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    public boolean isContended() {
+        return "contended".equals(contention);
+    }
+}
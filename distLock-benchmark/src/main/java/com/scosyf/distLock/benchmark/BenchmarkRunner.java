@@ -0,0 +1,44 @@
+package com.scosyf.distLock.benchmark;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * 按1/8/64线程各跑一轮，吞吐量以ops/s输出，延迟分位数以us输出
+ *
+ * 结果写到 target/jmh/{mode}-{threads}t.json，上线前和上一次的结果对比，发现加锁延迟的退化
+ * 参数：第一个参数为要跑的基准测试（正则），默认全部
+ */
+public class BenchmarkRunner {
+
+    private static final int[] THREADS = {1, 8, 64};
+
+    public static void main(String[] args) throws RunnerException {
+        String include = args.length > 0 ? args[0] : "com.scosyf.distLock.benchmark.*Benchmark";
+        File dir = new File("target/jmh");
+        dir.mkdirs();
+        for (int threads : THREADS) {
+            run(include, threads, Mode.Throughput, TimeUnit.SECONDS, dir);
+            run(include, threads, Mode.SampleTime, TimeUnit.MICROSECONDS, dir);
+        }
+    }
+
+    private static void run(String include, int threads, Mode mode, TimeUnit unit, File dir) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(include)
+                .threads(threads)
+                .mode(mode)
+                .timeUnit(unit)
+                .resultFormat(ResultFormatType.JSON)
+                .result(new File(dir, mode.shortLabel() + "-" + threads + "t.json").getPath())
+                .build();
+        new Runner(options).run();
+    }
+}
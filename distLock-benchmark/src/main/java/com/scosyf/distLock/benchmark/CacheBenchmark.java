@@ -0,0 +1,41 @@
+package com.scosyf.distLock.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.scosyf.distLock.redis.cache.CacheResult;
+
+/**
+ * RedisManager读写路径的开销
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CacheBenchmark {
+
+    private static final String VALUE = "benchmark-value";
+
+    @Benchmark
+    public CacheResult<Object> put(BenchmarkContext context, KeyState state) {
+        return context.cacheManager.put(state.key, VALUE);
+    }
+
+    @Benchmark
+    public CacheResult<String> get(BenchmarkContext context, KeyState state) {
+        return context.cacheManager.getString(state.key);
+    }
+
+    @Benchmark
+    public boolean setnx(BenchmarkContext context, KeyState state) {
+        return context.cacheManager.setnx(state.key, VALUE);
+    }
+}
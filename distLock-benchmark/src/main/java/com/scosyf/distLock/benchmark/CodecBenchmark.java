@@ -0,0 +1,75 @@
+package com.scosyf.distLock.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import com.scosyf.distLock.redis.cache.CompactRedisSerializer;
+
+/**
+ * value编解码：JdkSerializationRedisSerializer和CompactRedisSerializer对比，不需要redis
+ *
+ * 编码后的字节数在setup时打印，和吞吐量一起看
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    @Param({"jdk", "compact"})
+    public String codec;
+
+    @Param({"long", "string", "object"})
+    public String payload;
+
+    private RedisSerializer<Object> serializer;
+
+    private Object value;
+
+    private byte[] bytes;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        serializer = "jdk".equals(codec) ? new JdkSerializationRedisSerializer() : new CompactRedisSerializer();
+        if ("long".equals(payload)) {
+            value = System.currentTimeMillis();
+        } else if ("string".equals(payload)) {
+            value = "seckill-" + System.currentTimeMillis();
+        } else {
+            Item item = new Item();
+            item.setId(10086L);
+            item.setName("seckill item");
+            item.setPrice(9900L);
+            item.setStock(10000);
+            value = item;
+        }
+        bytes = serializer.serialize(value);
+        System.out.println("\n" + codec + "/" + payload + " encoded size: " + bytes.length + " bytes");
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return serializer.serialize(value);
+    }
+
+    @Benchmark
+    public Object decode() {
+        return serializer.deserialize(bytes);
+    }
+}
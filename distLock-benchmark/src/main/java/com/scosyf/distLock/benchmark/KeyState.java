@@ -0,0 +1,24 @@
+package com.scosyf.distLock.benchmark;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * 每个线程使用的key，竞争模式下所有线程相同
+ */
+@State(Scope.Thread)
+public class KeyState {
+
+    private static final AtomicInteger INDEX = new AtomicInteger();
+
+    public String key;
+
+    @Setup(Level.Trial)
+    public void setUp(BenchmarkContext context) {
+        key = context.isContended() ? "bench" : "bench-" + INDEX.incrementAndGet();
+    }
+}
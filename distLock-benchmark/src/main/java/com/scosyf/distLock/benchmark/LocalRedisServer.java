@@ -0,0 +1,113 @@
+package com.scosyf.distLock.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.concurrent.TimeUnit;
+
+import redis.clients.jedis.Jedis;
+
+/**
+ * 基准测试用的本地redis
+ *
+ * 默认用本机的redis-server二进制在随机端口起一个不落盘的实例，测完关闭，不依赖任何外部环境；
+ * 也可以通过系统属性指定已有实例：
+ *      > bench.redis.server  redis-server路径，默认从PATH中找
+ *      > bench.redis.host / bench.redis.port  指定后不再启动新实例
+ */
+public class LocalRedisServer {
+
+    private static final long STARTUP_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+
+    private final String host;
+
+    private final int port;
+
+    private final Process process;
+
+    private LocalRedisServer(String host, int port, Process process) {
+        this.host = host;
+        this.port = port;
+        this.process = process;
+    }
+
+    /**
+     * 启动或者连接已有实例，并把redis.host/redis.port写入系统属性，覆盖redis.properties中的配置
+     * @return
+     * @throws IOException
+     */
+    public static LocalRedisServer start() throws IOException {
+        String host = System.getProperty("bench.redis.host");
+        LocalRedisServer server;
+        if (host != null) {
+            server = new LocalRedisServer(host, Integer.getInteger("bench.redis.port", 6379), null);
+        } else {
+            int port = freePort();
+            Process process = new ProcessBuilder(System.getProperty("bench.redis.server", "redis-server"),
+                    "--port", Integer.toString(port),
+                    "--bind", "127.0.0.1",
+                    "--save", "",
+                    "--appendonly", "no")
+                    .redirectErrorStream(true)
+                    .redirectOutput(new File(System.getProperty("java.io.tmpdir"), "bench-redis-" + port + ".log"))
+                    .start();
+            server = new LocalRedisServer("127.0.0.1", port, process);
+        }
+        server.awaitReady();
+        System.setProperty("redis.host", server.host);
+        System.setProperty("redis.port", Integer.toString(server.port));
+        return server;
+    }
+
+    public void stop() {
+        if (process != null) {
+            process.destroy();
+        }
+    }
+
+    /**
+     * 清空数据，每轮测试之间调用，避免上一轮残留的锁影响结果
+     */
+    public void flush() {
+        Jedis jedis = new Jedis(host, port);
+        try {
+            jedis.flushDB();
+        } finally {
+            jedis.disconnect();
+        }
+    }
+
+    private void awaitReady() throws IOException {
+        long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT;
+        for (;;) {
+            Jedis jedis = new Jedis(host, port);
+            try {
+                if ("PONG".equals(jedis.ping())) {
+                    return;
+                }
+            } catch (Exception e) {
+                if (System.currentTimeMillis() > deadline) {
+                    stop();
+                    throw new IOException("redis not ready >>> " + host + ":" + port, e);
+                }
+            } finally {
+                jedis.disconnect();
+            }
+            try {
+                Thread.sleep(50L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while waiting for redis", e);
+            }
+        }
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.scosyf.distLock.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.scosyf.distLock.redis.lock.BizHandler;
+import com.scosyf.distLock.redis.lock.DistributeLock;
+import com.scosyf.distLock.redis.lock.DistributeLockBasic;
+
+/**
+ * 加锁/释放的开销
+ *
+ * 竞争模式下tryLock可能等到超时失败，失败的耗时同样计入，这正是排队时调用方看到的延迟
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LockBenchmark {
+
+    private static final BizHandler NOOP = new BizHandler() {
+        @Override
+        public boolean doBiz() {
+            return true;
+        }
+    };
+
+    @Benchmark
+    public boolean tryLockUnLock(BenchmarkContext context, KeyState state) {
+        String value = DistributeLock.newValue();
+        boolean locked = context.distributeLock.tryLock(state.key, value);
+        if (locked) {
+            context.distributeLock.unLock(state.key, value);
+        }
+        return locked;
+    }
+
+    @Benchmark
+    public boolean basicLock(BenchmarkContext context, KeyState state) {
+        return DistributeLockBasic.lock(context.cacheManager, state.key, NOOP);
+    }
+}
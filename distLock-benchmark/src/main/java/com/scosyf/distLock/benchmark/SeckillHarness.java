@@ -0,0 +1,251 @@
+package com.scosyf.distLock.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.serializer.SerializerFeature;
+import com.scosyf.distLock.controller.SeckillController;
+import com.scosyf.distLock.metrics.Histogram;
+import com.scosyf.distLock.metrics.Metrics;
+
+/**
+ * 秒杀压测：本地redis + spring容器，直接调用SeckillController的各个版本，
+ * 对比吞吐量、延迟分位数、拒绝率，并用压测前后的库存检查超卖
+ *
+ * 系统属性：
+ *      > seckill.requests     每种实现的请求数，默认1000
+ *      > seckill.concurrency  并发数，默认100
+ *      > seckill.strategies   只跑指定的实现，逗号分隔，默认全部
+ *
+ * 库存是controller的静态变量，一个进程内只能各跑一轮；v1、v1/async、v1/fair共用库存，按前后差值计算
+ * 结果写到 target/seckill/seckill-{时间}.json，和上一次构建的结果对比
+ * 新增实现：在registerDefaults中register一个SeckillStrategy
+ */
+public class SeckillHarness {
+
+    private static final String SUCCESS = "已经抢了";
+
+    /** v6成功时不再汇总库存，只返回这个 */
+    private static final String SUCCESS_SHORT = "抢到了";
+
+    private static final String SOLD_OUT = "抢完了";
+
+    private final Map<String, SeckillStrategy> strategies = new LinkedHashMap<>();
+
+    private final int requests;
+
+    private final int concurrency;
+
+    public SeckillHarness(int requests, int concurrency) {
+        if (requests <= 0 || concurrency <= 0) {
+            throw new IllegalArgumentException("requests > 0 && concurrency > 0");
+        }
+        this.requests = requests;
+        this.concurrency = concurrency;
+    }
+
+    public static void main(String[] args) throws Exception {
+        SeckillHarness harness = new SeckillHarness(Integer.getInteger("seckill.requests", 1000),
+                Integer.getInteger("seckill.concurrency", 100));
+        LocalRedisServer server = LocalRedisServer.start();
+        ClassPathXmlApplicationContext context = null;
+        try {
+            server.flush();
+            context = new ClassPathXmlApplicationContext("seckill-context.xml");
+            harness.registerDefaults(context.getBean(SeckillController.class));
+
+            String only = System.getProperty("seckill.strategies");
+            List<String> names = only == null ? new ArrayList<>(harness.strategies.keySet()) : Arrays.asList(only.split(","));
+            List<Map<String, Object>> results = new ArrayList<>();
+            Metrics.setEnabled(true);
+            for (String name : names) {
+                Map<String, Object> result = harness.run(name.trim());
+                System.out.println(summary(result));
+                results.add(result);
+            }
+            System.out.println("results >>> " + harness.write(results, new File("target/seckill")).getPath());
+        } finally {
+            if (context != null) {
+                context.close();
+            }
+            server.stop();
+        }
+    }
+
+    public void register(String name, SeckillStrategy strategy) {
+        strategies.put(name, strategy);
+    }
+
+    /**
+     * controller中的各个版本
+     * @param controller
+     */
+    public void registerDefaults(final SeckillController controller) {
+        register("v1", strategy(controller, "1", controller::secKillByRedis));
+        register("v1/async", new SeckillStrategy() {
+            @Override
+            public String purchase() throws Exception {
+                DeferredResult<String> deferred = controller.secKillByRedisAsync();
+                final CompletableFuture<String> result = new CompletableFuture<>();
+                deferred.setResultHandler(value -> result.complete((String) value));
+                return result.get();
+            }
+
+            @Override
+            public long stockLeft() {
+                return controller.stockLeft("1");
+            }
+        });
+        register("v1/fair", strategy(controller, "1", controller::secKillByFairLock));
+        register("v2", strategy(controller, "2", controller::seckillByAtomic));
+        register("v3", strategy(controller, "3", controller::seckillDefault));
+        register("v4", strategy(controller, "4", controller::seckillByRedisBasic));
+        register("v5", strategy(controller, "5", controller::seckillBySemaphore));
+        register("v6", strategy(controller, "6", controller::seckillByShardedStock));
+        register("v7", strategy(controller, "7", controller::seckillByLocalBlock));
+    }
+
+    /**
+     * 对一种实现发起requests次购买，并发为concurrency
+     * @param name
+     * @return
+     * @throws InterruptedException
+     */
+    public Map<String, Object> run(String name) throws InterruptedException {
+        final SeckillStrategy strategy = strategies.get(name);
+        if (strategy == null) {
+            throw new IllegalArgumentException("unknown strategy >>> " + name);
+        }
+        final Histogram latency = new Histogram();
+        final LongAdder success = new LongAdder();
+        final LongAdder soldOut = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final CountDownLatch done = new CountDownLatch(requests);
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+
+        Metrics.reset();
+        long before = strategy.stockLeft();
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < requests; i++) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        long begin = System.nanoTime();
+                        try {
+                            String response = strategy.purchase();
+                            if (response != null && (response.startsWith(SUCCESS) || response.startsWith(SUCCESS_SHORT))) {
+                                success.increment();
+                            } else if (response != null && response.contains(SOLD_OUT)) {
+                                soldOut.increment();
+                            } else {
+                                rejected.increment();
+                            }
+                        } catch (Exception e) {
+                            errors.increment();
+                        } finally {
+                            latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - begin));
+                            done.countDown();
+                        }
+                    }
+                });
+            }
+            done.await();
+        } finally {
+            executor.shutdownNow();
+        }
+        long elapsed = System.nanoTime() - start;
+        long after = strategy.stockLeft();
+
+        // 成功数多于实际扣减的库存，或者库存扣成负数，都是超卖
+        long sold = before - after;
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("strategy", name);
+        result.put("requests", requests);
+        result.put("concurrency", concurrency);
+        result.put("elapsedMillis", TimeUnit.NANOSECONDS.toMillis(elapsed));
+        result.put("throughput", requests * 1e9 / elapsed);
+        result.put("latencyMicros", latency.snapshot());
+        result.put("success", success.sum());
+        result.put("soldOut", soldOut.sum());
+        result.put("rejected", rejected.sum());
+        result.put("errors", errors.sum());
+        result.put("rejectionRate", (double) rejected.sum() / requests);
+        result.put("stockBefore", before);
+        result.put("stockAfter", after);
+        result.put("sold", sold);
+        result.put("oversold", after < 0 || success.sum() > sold);
+        result.put("metrics", Metrics.snapshot());
+        return result;
+    }
+
+    /**
+     * 写成一个json文件
+     * @param results
+     * @param dir
+     * @return
+     * @throws IOException
+     */
+    public File write(List<Map<String, Object>> results, File dir) throws IOException {
+        dir.mkdirs();
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("timestamp", System.currentTimeMillis());
+        report.put("requests", requests);
+        report.put("concurrency", concurrency);
+        report.put("results", results);
+        File file = new File(dir, "seckill-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".json");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8);
+        try {
+            writer.write(JSON.toJSONString(report, SerializerFeature.PrettyFormat));
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+
+    private static SeckillStrategy strategy(final SeckillController controller, final String v, final Supplier<String> purchase) {
+        return new SeckillStrategy() {
+            @Override
+            public String purchase() {
+                return purchase.get();
+            }
+
+            @Override
+            public long stockLeft() {
+                return controller.stockLeft(v);
+            }
+        };
+    }
+
+    private static String summary(Map<String, Object> result) {
+        @SuppressWarnings("unchecked")
+        Map<String, Object> latency = (Map<String, Object>) result.get("latencyMicros");
+        return String.format("%-10s %8.1f req/s  p50=%dus p99=%dus  success=%d soldOut=%d rejected=%d errors=%d  sold=%d left=%d%s",
+                result.get("strategy"), result.get("throughput"), latency.get("p50"), latency.get("p99"),
+                result.get("success"), result.get("soldOut"), result.get("rejected"), result.get("errors"),
+                result.get("sold"), result.get("stockAfter"), Boolean.TRUE.equals(result.get("oversold")) ? "  超卖!" : "");
+    }
+}
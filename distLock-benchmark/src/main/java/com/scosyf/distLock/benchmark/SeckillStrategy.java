@@ -0,0 +1,20 @@
+package com.scosyf.distLock.benchmark;
+
+/**
+ * 压测的一种秒杀实现，在SeckillHarness中注册
+ */
+public interface SeckillStrategy {
+
+    /**
+     * 发起一次购买
+     * @return 接口的返回文案，"已经抢了"或"抢到了"开头为成功，含"抢完了"为卖完，其他为被拒绝
+     * @throws Exception
+     */
+    String purchase() throws Exception;
+
+    /**
+     * 当前剩余库存，压测前后各取一次，差值即实际扣减的库存
+     * @return
+     */
+    long stockLeft();
+}
@@ -0,0 +1,83 @@
+package com.scosyf.distLock.controller;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.alibaba.fastjson.JSON;
+import com.google.common.cache.CacheStats;
+import com.scosyf.distLock.metrics.Metrics;
+import com.scosyf.distLock.redis.cache.NearCacheManager;
+
+
+/**
+ * 锁和缓存的指标，排查秒杀"抢的人太多了"时用：
+ *      > lock.wait / lock.attempts 高：锁竞争
+ *      > cache.* 或 lock.wait高但attempts低：redis慢
+ *      > redis.borrow 高或者 redis.borrow.error：连接池耗尽
+ *      > lock.expired：业务期间锁过期
+ *      > lock.leaseLost：开了watchdog仍然续期失败
+ *      > nearCache：配置了nearCacheManager时才有，本地命中率低说明热点key不集中或者失效太频繁
+ * enable和reset会修改状态，只接受POST，返回{"enabled":true}、{"reset":true}
+ * 时间单位微秒
+ */
+@RestController
+@RequestMapping("/metrics")
+public class MetricsController {
+
+    /** redis-config.xml中近端缓存的bean名，不参与按类型注入，只能按名字取 */
+    private static final String NEAR_CACHE_BEAN = "nearCacheManager";
+
+    @Autowired
+    private BeanFactory beanFactory;
+
+    @GetMapping(value = "", produces = MediaType.APPLICATION_JSON_UTF8_VALUE)
+    public String metrics() {
+        Map<String, Object> snapshot = Metrics.snapshot();
+        if (beanFactory.containsBean(NEAR_CACHE_BEAN)) {
+            snapshot.put("nearCache", nearCacheStats(beanFactory.getBean(NEAR_CACHE_BEAN, NearCacheManager.class)));
+        }
+        return JSON.toJSONString(snapshot);
+    }
+
+    /**
+     * ?on=true打开，?on=false关闭，关闭后已有的数据保留
+     * @param request
+     * @return
+     */
+    @PostMapping(value = "/enable", produces = MediaType.APPLICATION_JSON_UTF8_VALUE)
+    public String enable(HttpServletRequest request) {
+        Metrics.setEnabled(!"false".equals(request.getParameter("on")));
+        return JSON.toJSONString(Collections.singletonMap("enabled", Metrics.isEnabled()));
+    }
+
+    @PostMapping(value = "/reset", produces = MediaType.APPLICATION_JSON_UTF8_VALUE)
+    public String reset() {
+        Metrics.reset();
+        return JSON.toJSONString(Collections.singletonMap("reset", true));
+    }
+
+    /**
+     * 本地缓存的累计统计，不受enable和reset影响
+     */
+    private static Map<String, Object> nearCacheStats(NearCacheManager nearCacheManager) {
+        CacheStats stats = nearCacheManager.stats();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("hitCount", stats.hitCount());
+        result.put("missCount", stats.missCount());
+        result.put("hitRate", stats.hitRate());
+        result.put("evictionCount", stats.evictionCount());
+        result.put("localSize", nearCacheManager.localSize());
+        return result;
+    }
+}
@@ -1,7 +1,15 @@
 package com.scosyf.distLock.controller;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.LongAdder;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.servlet.http.HttpServletRequest;
 
 import org.slf4j.Logger;
@@ -11,11 +19,19 @@ import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import com.scosyf.distLock.redis.cache.CacheManager;
+import com.scosyf.distLock.redis.lock.AsyncDistributeLock;
 import com.scosyf.distLock.redis.lock.BizHandler;
 import com.scosyf.distLock.redis.lock.DistributeLock;
 import com.scosyf.distLock.redis.lock.DistributeLockBasic;
+import com.scosyf.distLock.redis.lock.DistributeReadWriteLock;
+import com.scosyf.distLock.redis.lock.DistributeSemaphore;
+import com.scosyf.distLock.redis.lock.FairDistributeLock;
+import com.scosyf.distLock.redis.stock.ShardedStock;
+import com.scosyf.distLock.redis.stock.StockAllocator;
+import com.scosyf.distLock.redis.stock.StockSnapshot;
 
 
 @RestController
@@ -29,6 +45,29 @@ public class SeckillController {
     private static LongAdder stock2         = new LongAdder(); 
     private static long stock3              = STOCK_NUMBER;
     private static long stock4              = STOCK_NUMBER;
+    private static AtomicLong stock5        = new AtomicLong(STOCK_NUMBER);
+    /** v5同时放行的购买流程数 */
+    private static final int SECKILL_PERMITS = 10;
+    /** v6库存在redis中的名字和分桶数 */
+    private static final String SHARDED_STOCK   = "seckill";
+    private static final int STOCK_BUCKETS      = 8;
+    /** v7库存池在redis中的名字 */
+    private static final String POOLED_STOCK    = "seckill";
+    /** v1系列库存的读写锁：扣减时写锁，/stock?v=1查询时读锁，查询之间不互相阻塞 */
+    private static final String STOCK_RW_LOCK   = "seckill-stock";
+    /** v1/async拿到锁之后执行业务的线程数，doBiz会阻塞，不能放在commonPool或者锁的事件循环里 */
+    private static final int ASYNC_BIZ_THREADS  = 16;
+    
+    private final ExecutorService asyncBizExecutor = Executors.newFixedThreadPool(ASYNC_BIZ_THREADS, new ThreadFactory() {
+        private final AtomicInteger index = new AtomicInteger();
+        
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "seckill-async-biz-" + index.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
     
     static {
         stock.add(STOCK_NUMBER);
@@ -38,32 +77,136 @@ public class SeckillController {
     @Autowired
     private DistributeLock distributeLock;
     @Autowired
+    private AsyncDistributeLock asyncDistributeLock;
+    @Autowired
+    private FairDistributeLock fairDistributeLock;
+    @Autowired
+    private DistributeReadWriteLock distributeReadWriteLock;
+    @Autowired
+    private DistributeSemaphore distributeSemaphore;
+    @Autowired
+    private ShardedStock shardedStock;
+    @Autowired
+    private StockAllocator stockAllocator;
+    @Autowired
     private CacheManager cacheManager;
     
+    @PostConstruct
+    public void initStock() {
+        try {
+            shardedStock.initIfAbsent(SHARDED_STOCK, STOCK_NUMBER, STOCK_BUCKETS);
+            stockAllocator.initIfAbsent(POOLED_STOCK, STOCK_NUMBER);
+        } catch (Exception e) {
+            Logger.error("init sharded stock error >>> " + e);
+        }
+    }
+    
+    @PreDestroy
+    public void destroy() {
+        asyncBizExecutor.shutdown();
+    }
+    
     @GetMapping(value = "/v1", produces = MediaType.APPLICATION_JSON_UTF8_VALUE)
     public String secKillByRedis() {
-        long lockTime = System.currentTimeMillis() + DistributeLock.LOCK_EXPIRE_TIME;
         String key = "seckill";
-        String value = Thread.currentThread().getName() + Long.toString(lockTime);
+        String value = DistributeLock.newValue();
         if (!distributeLock.tryLock(key, value)) {
             return "抢的人太多了，慢慢来";
         }
         if (stock.longValue() == 0L) {
+            distributeLock.unLock(key, value);
             return "抢完了";
         }
-        doBiz(new BizHandler() {
+        boolean bought = doBiz(new BizHandler() {
             @Override
             public boolean doBiz() {
-                stock.decrement();
-                return true;
+                return deductStock();
             }
         });
         distributeLock.unLock(key, value);
+        if (!bought) {
+            return "抢的人太多了，慢慢来";
+        }
         
         long left = stock.longValue();
         return "已经抢了" + (STOCK_NUMBER - left) + ", 还剩下" + left;
     }
     
+    /**
+     * 与v1相同的库存和锁，等锁期间不占用请求线程
+     * @return
+     */
+    @GetMapping(value = "/v1/async", produces = MediaType.APPLICATION_JSON_UTF8_VALUE)
+    public DeferredResult<String> secKillByRedisAsync() {
+        final DeferredResult<String> result = new DeferredResult<>();
+        asyncDistributeLock.tryLockAsync("seckill", DistributeLock.LOCK_TIMEOUT, TimeUnit.MILLISECONDS)
+            .thenAcceptAsync(handle -> {
+                if (handle == null) {
+                    result.setResult("抢的人太多了，慢慢来");
+                    return;
+                }
+                boolean bought;
+                try {
+                    if (stock.longValue() == 0L) {
+                        result.setResult("抢完了");
+                        return;
+                    }
+                    bought = doBiz(new BizHandler() {
+                        @Override
+                        public boolean doBiz() {
+                            return deductStock();
+                        }
+                    });
+                } finally {
+                    handle.unLockAsync();
+                }
+                if (!bought) {
+                    result.setResult("抢的人太多了，慢慢来");
+                    return;
+                }
+                long left = stock.longValue();
+                result.setResult("已经抢了" + (STOCK_NUMBER - left) + ", 还剩下" + left);
+            }, asyncBizExecutor)
+            .exceptionally(e -> {
+                Logger.error("seckill async error >>> " + e);
+                result.setResult("抢的人太多了，慢慢来");
+                return null;
+            });
+        return result;
+    }
+    
+    /**
+     * 与v1相同的库存，公平锁按到达顺序排队，不会有请求一直抢不到
+     * @return
+     */
+    @GetMapping(value = "/v1/fair", produces = MediaType.APPLICATION_JSON_UTF8_VALUE)
+    public String secKillByFairLock() {
+        String key = "seckill";
+        String value = DistributeLock.newValue();
+        if (!fairDistributeLock.tryLock(key, value)) {
+            return "抢的人太多了，慢慢来";
+        }
+        boolean bought;
+        try {
+            if (stock.longValue() == 0L) {
+                return "抢完了";
+            }
+            bought = doBiz(new BizHandler() {
+                @Override
+                public boolean doBiz() {
+                    return deductStock();
+                }
+            });
+        } finally {
+            fairDistributeLock.unLock(key, value);
+        }
+        if (!bought) {
+            return "抢的人太多了，慢慢来";
+        }
+        long left = stock.longValue();
+        return "已经抢了" + (STOCK_NUMBER - left) + ", 还剩下" + left;
+    }
+    
     @GetMapping(value = "/v2", produces = MediaType.APPLICATION_JSON_UTF8_VALUE)
     public String seckillByAtomic() {
         if (stock2.longValue() <= 0) {
@@ -115,28 +258,171 @@ public class SeckillController {
         return "已经抢了" + (STOCK_NUMBER - left) + ", 还剩下" + left;
     }
     
+    @GetMapping(value = "/v5", produces = MediaType.APPLICATION_JSON_UTF8_VALUE)
+    public String seckillBySemaphore() {
+        final boolean[] bought = new boolean[1];
+        // 返回值只表示是否拿到了许可，是否买到看bought
+        boolean permitted = distributeSemaphore.acquire("seckill", SECKILL_PERMITS, new BizHandler() {
+            @Override
+            public boolean doBiz() {
+                if (stock5.get() > 0) {
+                    bought[0] = SeckillController.this.doBiz(new BizHandler() {
+                        @Override
+                        public boolean doBiz() {
+                            // 多个购买流程并行，扣减本身要保证不超卖，最后一件被别人抢走时返回false
+                            return decrementIfPositive(stock5);
+                        }
+                    });
+                }
+                return true;
+            }
+        });
+        long left = stock5.get();
+        if (!permitted && left > 0) {
+            return "抢的人太多了，慢慢来";
+        }
+        if (!bought[0]) {
+            return "已经抢完了";
+        }
+        return "已经抢了" + (STOCK_NUMBER - left) + ", 还剩下" + left;
+    }
+    
+    /**
+     * 不加锁，库存分桶后直接在redis里原子扣减
+     * @return
+     */
+    @GetMapping(value = "/v6", produces = MediaType.APPLICATION_JSON_UTF8_VALUE)
+    public String seckillByShardedStock() {
+        if (!shardedStock.deduct(SHARDED_STOCK)) {
+            return "已经抢完了";
+        }
+        doBiz(new BizHandler() {
+            @Override
+            public boolean doBiz() {
+                return true;
+            }
+        });
+        // 不在每次购买后汇总所有桶，库存情况看/stock?v=6
+        return "抢到了";
+    }
+    
+    /**
+     * 本地预分配库存，大部分请求只扣本地计数
+     * @return
+     */
+    @GetMapping(value = "/v7", produces = MediaType.APPLICATION_JSON_UTF8_VALUE)
+    public String seckillByLocalBlock() {
+        if (!stockAllocator.deduct(POOLED_STOCK)) {
+            return "已经抢完了";
+        }
+        doBiz(new BizHandler() {
+            @Override
+            public boolean doBiz() {
+                return true;
+            }
+        });
+        long left = pooledStockLeft();
+        return "已经抢了" + (STOCK_NUMBER - left) + ", 还剩下" + left;
+    }
+    
+    /**
+     * v1系列的库存在读锁下读，多个查询同时进行，只和扣减互斥
+     */
     @GetMapping(value = "/stock", produces = MediaType.APPLICATION_JSON_UTF8_VALUE)
     public String getStockDetail(HttpServletRequest request) {
         String v = request.getParameter("v");
-        long left = -1L;
         if (v.equals("1")) {
-            left = stock.longValue();
+            final long[] left = new long[1];
+            boolean read = distributeReadWriteLock.readLock(STOCK_RW_LOCK, new BizHandler() {
+                @Override
+                public boolean doBiz() {
+                    left[0] = stock.longValue();
+                    return true;
+                }
+            });
+            if (!read) {
+                return "查询的人太多了，慢慢来";
+            }
+            return "仓库情况：剩余 " + left[0] + ", 已经抢了 " + (STOCK_NUMBER - left[0]);
+        }
+        if (v.equals("6")) {
+            StockSnapshot snapshot = shardedStock.snapshot(SHARDED_STOCK);
+            return "仓库情况：剩余 " + snapshot.getRemaining() + ", 已经抢了 " + snapshot.getSold()
+                    + (snapshot.isOversold() ? ", 超卖了!" : "");
+        }
+        long left = stockLeft(v);
+        return "仓库情况：剩余 " + left + ", 已经抢了 " + (STOCK_NUMBER - left);
+    }
+    
+    /**
+     * 各版本的剩余库存，压测时直接调用对比卖出数
+     * @param v 版本号，v1/async、v1/fair与v1共用库存
+     * @return 未知版本返回-1
+     */
+    public long stockLeft(String v) {
+        if (v.equals("1")) {
+            return stock.longValue();
         } else if (v.equals("2")) {
-            left = stock2.longValue();
+            return stock2.longValue();
         } else if (v.equals("3")) {
-            left = stock3;
+            return stock3;
         } else if (v.equals("4")) {
-            left = stock4;
+            return stock4;
+        } else if (v.equals("5")) {
+            return stock5.get();
+        } else if (v.equals("6")) {
+            return shardedStock.snapshot(SHARDED_STOCK).getRemaining();
+        } else if (v.equals("7")) {
+            return pooledStockLeft();
         }
-        return "仓库情况：剩余 " + left + ", 已经抢了 " + (STOCK_NUMBER - left);
+        return -1L;
+    }
+    
+    /**
+     * redis库存池 + 本节点已租未卖，其他节点手里的算作已卖出
+     * @return
+     */
+    private long pooledStockLeft() {
+        return stockAllocator.poolLeft(POOLED_STOCK) + stockAllocator.localLeft(POOLED_STOCK);
     }
     
-    private void doBiz(BizHandler handler) {
+    /**
+     * v1系列扣库存，只在扣减时持有写锁，不包含业务时间，查询最多等一次扣减
+     * @return 拿不到写锁返回false，库存没有扣
+     */
+    private boolean deductStock() {
+        return distributeReadWriteLock.writeLock(STOCK_RW_LOCK, new BizHandler() {
+            @Override
+            public boolean doBiz() {
+                stock.decrement();
+                return true;
+            }
+        });
+    }
+    
+    private boolean decrementIfPositive(AtomicLong counter) {
+        long current;
+        do {
+            current = counter.get();
+            if (current <= 0) {
+                return false;
+            }
+        } while (!counter.compareAndSet(current, current - 1));
+        return true;
+    }
+
+    /**
+     * 模拟业务耗时后执行handler
+     * @return handler的结果，被中断时为false
+     */
+    private boolean doBiz(BizHandler handler) {
         try {
             Thread.sleep(200);
-            handler.doBiz();
+            return handler.doBiz();
         } catch (InterruptedException e) {
             e.printStackTrace();
+            Thread.currentThread().interrupt();
+            return false;
         }
     }
 }
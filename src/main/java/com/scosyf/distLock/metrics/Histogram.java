@@ -0,0 +1,91 @@
+package com.scosyf.distLock.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 对数分桶的直方图，记录O(1)无锁，不保存原始数据
+ *
+ * 每个2的幂区间再均分成8个桶，分位数的相对误差不超过12.5%；0~7每个值一个桶
+ */
+public class Histogram {
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    private final LongAdder sum = new LongAdder();
+
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0L);
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        buckets.incrementAndGet(index(value));
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * count、mean、max和常用分位数，分位数取所在桶的上界
+     * @return
+     */
+    public Map<String, Object> snapshot() {
+        long[] counts = new long[BUCKETS];
+        long count = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            count += counts[i];
+        }
+        long maxValue = max.get();
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("count", count);
+        snapshot.put("mean", count == 0 ? 0L : sum.sum() / count);
+        snapshot.put("p50", percentile(counts, count, 0.50, maxValue));
+        snapshot.put("p90", percentile(counts, count, 0.90, maxValue));
+        snapshot.put("p99", percentile(counts, count, 0.99, maxValue));
+        snapshot.put("p999", percentile(counts, count, 0.999, maxValue));
+        snapshot.put("max", maxValue);
+        return snapshot;
+    }
+
+    private static long percentile(long[] counts, long count, double quantile, long maxValue) {
+        if (count == 0) {
+            return 0L;
+        }
+        long target = (long) Math.ceil(quantile * count);
+        long seen = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(upperBound(i), maxValue);
+            }
+        }
+        return maxValue;
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        return (exp - SUB_BITS + 1) * SUB_BUCKETS + (int) ((value >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1));
+    }
+
+    static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exp = index / SUB_BUCKETS + SUB_BITS - 1;
+        long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (exp - SUB_BITS);
+        long width = 1L << (exp - SUB_BITS);
+        // 最后一个桶的上界会溢出
+        return lower + width - 1 < lower ? Long.MAX_VALUE : lower + width - 1;
+    }
+}
@@ -0,0 +1,159 @@
+package com.scosyf.distLock.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 锁和缓存的运行指标，按指标名 + key前缀聚合
+ *
+ * 用静态方法是因为DistributeLockBasic这类静态工具也要打点，拿不到spring注入的对象
+ *
+ * 默认关闭，由系统属性distLock.metrics=true或者/metrics/enable打开；
+ * 关闭时start()不取时间，打点方法只读一个volatile就返回
+ *
+ * 计时用法：
+ *      long start = Metrics.start();
+ *      ...
+ *      Metrics.recordSince("lock.wait", lockKey, start);
+ *
+ * 时间类指标单位是微秒
+ */
+public final class Metrics {
+
+    /** 每个指标最多保留多少个key前缀，超出的合并到OTHER，避免key里带id导致无限增长 */
+    public static final int MAX_PREFIXES = 256;
+
+    public static final String OTHER = "_other";
+
+    private static volatile boolean enabled = Boolean.getBoolean("distLock.metrics");
+
+    /** 指标名 -> key前缀 -> 直方图 */
+    private static final ConcurrentMap<String, ConcurrentMap<String, Histogram>> histograms = new ConcurrentHashMap<>();
+
+    /** 指标名 -> key前缀 -> 计数 */
+    private static final ConcurrentMap<String, ConcurrentMap<String, LongAdder>> counters = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        Metrics.enabled = enabled;
+    }
+
+    /**
+     * 开始计时
+     * @return 关闭时返回0，不调用nanoTime
+     */
+    public static long start() {
+        return enabled ? System.nanoTime() : 0L;
+    }
+
+    /**
+     * 记录从start到现在的耗时（微秒）
+     * @param name
+     * @param key 业务key，按前缀聚合
+     * @param start start()的返回值，为0时不记录
+     */
+    public static void recordSince(String name, String key, long start) {
+        if (start == 0L || !enabled) {
+            return;
+        }
+        histogram(name, key).record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+    }
+
+    /**
+     * 记录一个值（次数、大小等）
+     * @param name
+     * @param key
+     * @param value
+     */
+    public static void record(String name, String key, long value) {
+        if (!enabled) {
+            return;
+        }
+        histogram(name, key).record(value);
+    }
+
+    public static void increment(String name, String key) {
+        if (!enabled) {
+            return;
+        }
+        lookup(counters, name, key, LongAdder::new).increment();
+    }
+
+    /**
+     * 当前所有指标：{histograms: {指标名: {key前缀: {...}}}, counters: {指标名: {key前缀: n}}}
+     * @return
+     */
+    public static Map<String, Object> snapshot() {
+        Map<String, Object> histogramSnapshot = new TreeMap<>();
+        for (Map.Entry<String, ConcurrentMap<String, Histogram>> metric : histograms.entrySet()) {
+            Map<String, Object> byPrefix = new TreeMap<>();
+            for (Map.Entry<String, Histogram> entry : metric.getValue().entrySet()) {
+                byPrefix.put(entry.getKey(), entry.getValue().snapshot());
+            }
+            histogramSnapshot.put(metric.getKey(), byPrefix);
+        }
+        Map<String, Object> counterSnapshot = new TreeMap<>();
+        for (Map.Entry<String, ConcurrentMap<String, LongAdder>> metric : counters.entrySet()) {
+            Map<String, Object> byPrefix = new TreeMap<>();
+            for (Map.Entry<String, LongAdder> entry : metric.getValue().entrySet()) {
+                byPrefix.put(entry.getKey(), entry.getValue().sum());
+            }
+            counterSnapshot.put(metric.getKey(), byPrefix);
+        }
+        Map<String, Object> snapshot = new TreeMap<>();
+        snapshot.put("enabled", enabled);
+        snapshot.put("histograms", histogramSnapshot);
+        snapshot.put("counters", counterSnapshot);
+        return snapshot;
+    }
+
+    /**
+     * 清空所有指标
+     */
+    public static void reset() {
+        histograms.clear();
+        counters.clear();
+    }
+
+    /**
+     * key前缀：最后一个冒号之前的部分，order:123 -> order；没有冒号时是key本身
+     * @param key
+     * @return
+     */
+    static String prefixOf(String key) {
+        if (key == null) {
+            return OTHER;
+        }
+        int split = key.lastIndexOf(':');
+        return split > 0 ? key.substring(0, split) : key;
+    }
+
+    private static Histogram histogram(String name, String key) {
+        return lookup(histograms, name, key, Histogram::new);
+    }
+
+    private static <T> T lookup(ConcurrentMap<String, ConcurrentMap<String, T>> metrics, String name, String key,
+                                Supplier<T> factory) {
+        ConcurrentMap<String, T> byPrefix = metrics.computeIfAbsent(name, k -> new ConcurrentHashMap<>());
+        String prefix = prefixOf(key);
+        T metric = byPrefix.get(prefix);
+        if (metric != null) {
+            return metric;
+        }
+        if (byPrefix.size() >= MAX_PREFIXES) {
+            prefix = OTHER;
+        }
+        return byPrefix.computeIfAbsent(prefix, k -> factory.get());
+    }
+}
@@ -0,0 +1,28 @@
+package com.scosyf.distLock.metrics;
+
+import org.springframework.data.redis.connection.jedis.JedisConnection;
+import org.springframework.data.redis.connection.jedis.JedisConnectionFactory;
+
+/**
+ * 记录RedisTemplate从连接池借连接的耗时，池耗尽时这里会先变慢
+ *
+ * 在redis-config.xml中替换JedisConnectionFactory，其他配置不变
+ */
+public class TimedJedisConnectionFactory extends JedisConnectionFactory {
+
+    /** 指标的key，区分DistributeLock直接用的jedisPool */
+    public static final String POOL_NAME = "jedisConnectionFactory";
+
+    @Override
+    public JedisConnection getConnection() {
+        long start = Metrics.start();
+        try {
+            return super.getConnection();
+        } catch (RuntimeException e) {
+            Metrics.increment("redis.borrow.error", POOL_NAME);
+            throw e;
+        } finally {
+            Metrics.recordSince("redis.borrow", POOL_NAME, start);
+        }
+    }
+}
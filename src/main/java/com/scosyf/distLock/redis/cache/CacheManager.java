@@ -1,8 +1,12 @@
 package com.scosyf.distLock.redis.cache;
 
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
+import java.util.stream.Stream;
 
 
 public interface CacheManager {
@@ -90,11 +94,33 @@ public interface CacheManager {
     
     String getSet(String key, String value);
 
+    /**
+     * 基于scan实现，结果全部放到内存，key很多时用scan
+     * @param keyPattern
+     * @return
+     */
     Set<String> keys(String keyPattern);
 
+    /**
+     * 按SCAN游标逐批遍历key，每次只保留一批，不阻塞redis；可以随时停止
+     * 遍历期间有修改时同一个key可能返回多次
+     * @param keyPattern
+     * @param count 每批数量的提示（SCAN的COUNT）
+     * @return
+     */
+    Iterator<String> scan(String keyPattern, int count);
+
+    /**
+     * 同scan，以Stream返回，可以用limit/anyMatch等提前结束
+     * @param keyPattern
+     * @param count
+     * @return
+     */
+    Stream<String> scanStream(String keyPattern, int count);
+
     long getExpire(String key);
     /**
-     * 该Set中是否存在该元素
+     * 该Set中是否存在该元素，实现可能有本地缓存，不能用来判重
      * @param setName Set的名称
      * @param values  要判断的元素
      * @return
@@ -104,11 +130,44 @@ public interface CacheManager {
      * 向Set中添加元素
      * @param setName Set的名称
      * @param value 要添加的元素
-     * @return
+     * @return 新加入的个数，判重以它为准
      */
     long addToSet(String setName, Serializable... values);
     
     long delFromSet(String setName, Serializable value);
     
     long sizeOfSet(String setName);
+
+    /**
+     * 批量获取
+     * @param keys
+     * @return key -> value，不存在的key不在结果中
+     */
+    <T extends Serializable> Map<String, T> mget(Collection<String> keys);
+
+    /**
+     * 批量写入，不过期
+     * @param values
+     */
+    void mput(Map<String, ? extends Serializable> values);
+
+    /**
+     * 批量写入，每个key单独的过期时间
+     * @param values
+     * @param expires key -> 过期时间（秒），没有或者小于0表示不过期
+     */
+    void mput(Map<String, ? extends Serializable> values, Map<String, Long> expires);
+
+    /**
+     * 批量设置过期时间
+     * @param keys
+     * @param expire 秒
+     */
+    void mexpire(Collection<String> keys, long expire);
+
+    /**
+     * 批量删除
+     * @param keys
+     */
+    void mdel(Collection<String> keys);
 }
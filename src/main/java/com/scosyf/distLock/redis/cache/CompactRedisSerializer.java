@@ -0,0 +1,235 @@
+package com.scosyf.distLock.redis.cache;
+
+import java.io.Serializable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+
+import com.alibaba.fastjson.JSON;
+
+/**
+ * 紧凑的value序列化，替换JdkSerializationRedisSerializer
+ *
+ * 格式（第一个字节决定类型，UTF-8中不会出现0xF8~0xFF开头和0xAC开头的字节）：
+ *      > String     原样的UTF-8，和StringRedisSerializer写的一样，getString可以直接读
+ *      > 0xF8       Long，zigzag varint
+ *      > 0xF9       Integer，zigzag varint
+ *      > 0xFA       Double，8字节
+ *      > 0xFB       Boolean，1字节
+ *      > 0xFC       空字符串
+ *      > 0xFE       fastjson对象：varint类名长度 + 类名 + json，只用于jsonPackages下的类
+ *      > 0xAC 0xED  JDK序列化，其他类型（集合、数组、第三方类）以及迁移前写入的旧数据
+ *
+ * 迁移：旧数据始终可以读；滚动发布时先用writeCompact=false部署（读新写旧，老节点仍能读），
+ * 全部节点升级后再改成true
+ *
+ * 注意数字不是十进制文本，和之前的JDK序列化一样，不能对这些key用INCR
+ *
+ * 空数组（null序列化的结果）读出来是null；截断或损坏的数据抛SerializationException
+ */
+public class CompactRedisSerializer implements RedisSerializer<Object> {
+
+    private static final byte TAG_LONG = (byte) 0xF8;
+    private static final byte TAG_INT = (byte) 0xF9;
+    private static final byte TAG_DOUBLE = (byte) 0xFA;
+    private static final byte TAG_BOOLEAN = (byte) 0xFB;
+    private static final byte TAG_EMPTY_STRING = (byte) 0xFC;
+    private static final byte TAG_JSON = (byte) 0xFE;
+
+    private static final byte JDK_MAGIC_0 = (byte) 0xAC;
+    private static final byte JDK_MAGIC_1 = (byte) 0xED;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final JdkSerializationRedisSerializer jdkSerializer = new JdkSerializationRedisSerializer();
+
+    /** 类名 -> 类，避免每次Class.forName */
+    private final ConcurrentHashMap<String, Class<?>> classes = new ConcurrentHashMap<>();
+
+    private volatile boolean writeCompact = true;
+
+    private volatile List<String> jsonPackages = Arrays.asList("com.scosyf.");
+
+    @Override
+    public byte[] serialize(Object value) throws SerializationException {
+        if (value == null) {
+            return EMPTY;
+        }
+        if (!writeCompact) {
+            return jdkSerializer.serialize(value);
+        }
+        if (value instanceof String) {
+            String string = (String) value;
+            return string.isEmpty() ? new byte[] {TAG_EMPTY_STRING} : string.getBytes(StandardCharsets.UTF_8);
+        }
+        if (value instanceof Long) {
+            return varint(TAG_LONG, (Long) value);
+        }
+        if (value instanceof Integer) {
+            return varint(TAG_INT, (Integer) value);
+        }
+        if (value instanceof Double) {
+            return ByteBuffer.allocate(9).put(TAG_DOUBLE).putDouble((Double) value).array();
+        }
+        if (value instanceof Boolean) {
+            return new byte[] {TAG_BOOLEAN, (byte) ((Boolean) value ? 1 : 0)};
+        }
+        if (value instanceof Serializable && isJsonType(value.getClass())) {
+            return json(value);
+        }
+        return jdkSerializer.serialize(value);
+    }
+
+    @Override
+    public Object deserialize(byte[] bytes) throws SerializationException {
+        if (bytes == null || bytes.length == 0) {
+            return null;
+        }
+        try {
+            return read(bytes);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new SerializationException("truncated value >>> " + bytes.length + " bytes", e);
+        }
+    }
+
+    private Object read(byte[] bytes) {
+        byte tag = bytes[0];
+        if (tag == JDK_MAGIC_0 && bytes.length > 1 && bytes[1] == JDK_MAGIC_1) {
+            return jdkSerializer.deserialize(bytes);
+        }
+        switch (tag) {
+            case TAG_LONG:
+                return unzigzag(readVarint(bytes));
+            case TAG_INT:
+                return (int) unzigzag(readVarint(bytes));
+            case TAG_DOUBLE:
+                return ByteBuffer.wrap(bytes, 1, 8).getDouble();
+            case TAG_BOOLEAN:
+                return bytes[1] != 0;
+            case TAG_EMPTY_STRING:
+                return "";
+            case TAG_JSON:
+                return parseJson(bytes);
+            default:
+                return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * false时全部按JDK格式写入，用于滚动发布期间兼容老节点
+     * @param writeCompact
+     */
+    public void setWriteCompact(boolean writeCompact) {
+        this.writeCompact = writeCompact;
+    }
+
+    /**
+     * 用fastjson序列化的类的包名前缀，这些类需要有无参构造和getter/setter
+     * @param jsonPackages 逗号分隔
+     */
+    public void setJsonPackages(String jsonPackages) {
+        List<String> packages = new ArrayList<>();
+        for (String prefix : jsonPackages.split(",")) {
+            if (!prefix.trim().isEmpty()) {
+                packages.add(prefix.trim());
+            }
+        }
+        this.jsonPackages = packages;
+    }
+
+    private boolean isJsonType(Class<?> type) {
+        return !type.isArray() && !type.isEnum() && isJsonPackage(type.getName());
+    }
+
+    private boolean isJsonPackage(String className) {
+        for (String prefix : jsonPackages) {
+            if (className.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private byte[] json(Object value) {
+        byte[] name = value.getClass().getName().getBytes(StandardCharsets.UTF_8);
+        byte[] body = JSON.toJSONBytes(value);
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 5 + name.length + body.length);
+        buffer.put(TAG_JSON);
+        writeVarint(buffer, name.length);
+        buffer.put(name).put(body);
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private Object parseJson(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 1, bytes.length - 1);
+        int nameLength = (int) readVarint(buffer);
+        String name = new String(bytes, buffer.position(), nameLength, StandardCharsets.UTF_8);
+        int bodyOffset = buffer.position() + nameLength;
+        Class<?> type = resolve(name);
+        return JSON.parseObject(new String(bytes, bodyOffset, bytes.length - bodyOffset, StandardCharsets.UTF_8), type);
+    }
+
+    private Class<?> resolve(String name) {
+        Class<?> type = classes.get(name);
+        if (type != null) {
+            return type;
+        }
+        // 只还原配置过的包下、实现了Serializable的类，不接受任意类名
+        if (!isJsonPackage(name)) {
+            throw new SerializationException("class not allowed >>> " + name);
+        }
+        try {
+            type = Class.forName(name, false, Thread.currentThread().getContextClassLoader());
+        } catch (ClassNotFoundException e) {
+            throw new SerializationException("cannot resolve class >>> " + name, e);
+        }
+        if (!isJsonType(type) || !Serializable.class.isAssignableFrom(type)) {
+            throw new SerializationException("class not allowed >>> " + name);
+        }
+        classes.putIfAbsent(name, type);
+        return type;
+    }
+
+    private static byte[] varint(byte tag, long value) {
+        ByteBuffer buffer = ByteBuffer.allocate(11);
+        buffer.put(tag);
+        writeVarint(buffer, (value << 1) ^ (value >> 63));
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private static void writeVarint(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static long readVarint(byte[] bytes) {
+        return readVarint(ByteBuffer.wrap(bytes, 1, bytes.length - 1));
+    }
+
+    private static long readVarint(ByteBuffer buffer) {
+        long value = 0L;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new SerializationException("malformed varint");
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,556 @@
+package com.scosyf.distLock.redis.cache;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 进程内的CacheManager，不依赖redis
+ *
+ * 可以作为DistributeLockBasic等的测试替身，也可以在单节点部署时直接代替RedisManager；
+ * 语义尽量和redis一致：setnx/getSet原子，incr保留过期时间，hash/set为空时删除key，类型不对时报WRONGTYPE
+ *
+ * 过期：读的时候检查（保证不会读到过期数据），同时由分层时间轮主动清理（保证内存及时释放），
+ * 添加和到期都是O(1)，和key的数量无关
+ *
+ * 没有注册为@Component，避免和RedisManager同时按类型注入时冲突，需要时手动创建或在xml中配置，
+ * 不用时调用destroy停止时间轮线程
+ */
+public class InMemoryCacheManager implements CacheManager {
+
+    private static Logger logger = LoggerFactory.getLogger(InMemoryCacheManager.class);
+
+    /** 默认时间轮精度，毫秒 */
+    public static final long DEFAULT_TICK_MILLIS = 10L;
+
+    private static final String WRONG_TYPE = "WRONGTYPE Operation against a key holding the wrong kind of value >>> ";
+
+    private final ConcurrentHashMap<String, Entry> data = new ConcurrentHashMap<>();
+
+    private final TimingWheel timingWheel;
+
+    private final ScheduledExecutorService ticker;
+
+    public InMemoryCacheManager() {
+        this(DEFAULT_TICK_MILLIS);
+    }
+
+    /**
+     * @param tickMillis 时间轮精度，主动过期最多晚这么久，读取不受影响
+     */
+    public InMemoryCacheManager(long tickMillis) {
+        this.timingWheel = new TimingWheel(tickMillis, System.currentTimeMillis(), new TimingWheel.Expirer() {
+            @Override
+            public void expire(String key, long deadline) {
+                expireIfDue(key, deadline);
+            }
+        });
+        this.ticker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "cache-timing-wheel");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.ticker.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    timingWheel.advance(System.currentTimeMillis());
+                } catch (Exception e) {
+                    logger.error("timing wheel advance error >>> " + e);
+                }
+            }
+        }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void destroy() {
+        ticker.shutdownNow();
+    }
+
+    /**
+     * 当前key数量，包括已过期但还没被清理的
+     * @return
+     */
+    public int size() {
+        return data.size();
+    }
+
+    @Override
+    public <T> CacheResult<T> put(String key, Serializable value) {
+        return put(key, value, -1L);
+    }
+
+    @Override
+    public <T> CacheResult<T> put(String key, Serializable value, long expire) {
+        if (StringUtils.isBlank(key)) {
+            return null;
+        }
+        //数据不过期
+        long expireAt = expire < 0 ? 0L : System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(expire);
+        data.put(key, new Entry(value, expireAt));
+        schedule(key, expireAt);
+        return CacheResult.of(true);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T extends Serializable> CacheResult<T> getObject(String key) {
+        Entry entry = live(key);
+        return CacheResult.of(true, entry == null ? null : (T) plainValue(key, entry));
+    }
+
+    @Override
+    public CacheResult<String> getString(String key) {
+        Entry entry = live(key);
+        return CacheResult.of(true, entry == null ? null : asString(key, entry.value));
+    }
+
+    @Override
+    public void expire(String key, long expire) {
+        if (expire <= 0) {
+            del(key);
+            return;
+        }
+        setExpireAt(key, System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(expire));
+    }
+
+    @Override
+    public void expireAt(String key, Date expireDate) {
+        if (expireDate.getTime() <= System.currentTimeMillis()) {
+            del(key);
+            return;
+        }
+        setExpireAt(key, expireDate.getTime());
+    }
+
+    @Override
+    public void del(String key) {
+        data.remove(key);
+    }
+
+    @Override
+    public long incPv(String namespace, String key) {
+        return hincr(namespace, key, 1L);
+    }
+
+    @Override
+    public Long getPv(String namespace, String key) {
+        Object value = hashValue(namespace, key);
+        return value == null ? null : toLong(namespace, value);
+    }
+
+    @Override
+    public Long getAndDelPv(String namespace, String key) {
+        final Object[] old = new Object[1];
+        data.computeIfPresent(namespace, (k, entry) -> {
+            if (entry.isExpired(System.currentTimeMillis())) {
+                return null;
+            }
+            Map<String, Object> hash = hashOf(k, entry);
+            old[0] = hash.remove(key);
+            return hash.isEmpty() ? null : entry;
+        });
+        return old[0] == null ? null : toLong(namespace, old[0]);
+    }
+
+    @Override
+    public long incr(String key) {
+        final long[] result = new long[1];
+        data.compute(key, (k, entry) -> {
+            long now = System.currentTimeMillis();
+            if (entry == null || entry.isExpired(now)) {
+                result[0] = 1L;
+                return new Entry(1L, 0L);
+            }
+            result[0] = toLong(k, entry.value) + 1;
+            // 和redis一样，incr不改变过期时间
+            return new Entry(result[0], entry.expireAt);
+        });
+        return result[0];
+    }
+
+    @Override
+    public void hput(String key, String hashKey, Long value) {
+        if (StringUtils.isBlank(key)) {
+            return;
+        }
+        data.compute(key, (k, entry) -> {
+            if (entry == null || entry.isExpired(System.currentTimeMillis())) {
+                entry = new Entry(new Hash(), 0L);
+            }
+            hashOf(k, entry).put(hashKey, value);
+            return entry;
+        });
+    }
+
+    @Override
+    public void hdel(String key, Object... hashKeys) {
+        if (StringUtils.isBlank(key)) {
+            return;
+        }
+        data.computeIfPresent(key, (k, entry) -> {
+            if (entry.isExpired(System.currentTimeMillis())) {
+                return null;
+            }
+            Map<String, Object> hash = hashOf(k, entry);
+            for (Object hashKey : hashKeys) {
+                hash.remove(String.valueOf(hashKey));
+            }
+            return hash.isEmpty() ? null : entry;
+        });
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> CacheResult<T> hget(String key, String hashKey) {
+        return CacheResult.of(true, (T) hashValue(key, hashKey));
+    }
+
+    @Override
+    public boolean setnx(String key, Long value) {
+        return setIfAbsent(key, value);
+    }
+
+    @Override
+    public boolean setnx(String key, String value) {
+        return setIfAbsent(key, value);
+    }
+
+    @Override
+    public String getSet(String key, String value) {
+        final Object[] old = new Object[1];
+        data.compute(key, (k, entry) -> {
+            if (entry != null && !entry.isExpired(System.currentTimeMillis())) {
+                old[0] = entry.value;
+            }
+            // getset会清除过期时间
+            return new Entry(value, 0L);
+        });
+        return old[0] == null ? null : asString(key, old[0]);
+    }
+
+    @Override
+    public Set<String> keys(String keyPattern) {
+        Set<String> keys = new HashSet<>();
+        Iterator<String> iterator = scan(keyPattern, 0);
+        while (iterator.hasNext()) {
+            keys.add(iterator.next());
+        }
+        return keys;
+    }
+
+    /**
+     * 直接在map的弱一致迭代器上过滤，不复制，count没有意义
+     */
+    @Override
+    public Iterator<String> scan(String keyPattern, int count) {
+        return scanStream(keyPattern, count).iterator();
+    }
+
+    @Override
+    public Stream<String> scanStream(String keyPattern, int count) {
+        final Pattern pattern = globToRegex(keyPattern);
+        return data.entrySet().stream()
+                .filter(entry -> !entry.getValue().isExpired(System.currentTimeMillis())
+                        && pattern.matcher(entry.getKey()).matches())
+                .map(Map.Entry::getKey);
+    }
+
+    @Override
+    public long getExpire(String key) {
+        Entry entry = live(key);
+        if (entry == null) {
+            return -2L;
+        }
+        if (entry.expireAt == 0L) {
+            return -1L;
+        }
+        // 和redis的TTL一样四舍五入到秒
+        return (entry.expireAt - System.currentTimeMillis() + 500L) / 1000L;
+    }
+
+    @Override
+    public boolean isMemberOfSet(String setName, Serializable value) {
+        Entry entry = live(setName);
+        return entry != null && setOf(setName, entry).contains(value);
+    }
+
+    @Override
+    public long addToSet(String setName, Serializable... values) {
+        final long[] added = new long[1];
+        data.compute(setName, (k, entry) -> {
+            if (entry == null || entry.isExpired(System.currentTimeMillis())) {
+                entry = new Entry(new Members(), 0L);
+            }
+            Set<Serializable> set = setOf(k, entry);
+            for (Serializable value : values) {
+                if (set.add(value)) {
+                    added[0]++;
+                }
+            }
+            return set.isEmpty() ? null : entry;
+        });
+        return added[0];
+    }
+
+    @Override
+    public long delFromSet(String setName, Serializable value) {
+        final long[] removed = new long[1];
+        data.computeIfPresent(setName, (k, entry) -> {
+            if (entry.isExpired(System.currentTimeMillis())) {
+                return null;
+            }
+            Set<Serializable> set = setOf(k, entry);
+            if (set.remove(value)) {
+                removed[0] = 1L;
+            }
+            return set.isEmpty() ? null : entry;
+        });
+        return removed[0];
+    }
+
+    @Override
+    public long sizeOfSet(String setName) {
+        Entry entry = live(setName);
+        return entry == null ? 0L : setOf(setName, entry).size();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T extends Serializable> Map<String, T> mget(Collection<String> keys) {
+        Map<String, T> result = new HashMap<>();
+        for (String key : keys) {
+            Entry entry = live(key);
+            // 和MGET一样，类型不对的当作不存在
+            if (entry != null && !(entry.value instanceof Hash) && !(entry.value instanceof Members)) {
+                result.put(key, (T) entry.value);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void mput(Map<String, ? extends Serializable> values) {
+        mput(values, Collections.<String, Long>emptyMap());
+    }
+
+    @Override
+    public void mput(Map<String, ? extends Serializable> values, Map<String, Long> expires) {
+        for (Map.Entry<String, ? extends Serializable> entry : values.entrySet()) {
+            Long expire = expires.get(entry.getKey());
+            put(entry.getKey(), entry.getValue(), expire == null ? -1L : expire);
+        }
+    }
+
+    @Override
+    public void mexpire(Collection<String> keys, long expire) {
+        for (String key : keys) {
+            expire(key, expire);
+        }
+    }
+
+    @Override
+    public void mdel(Collection<String> keys) {
+        for (String key : keys) {
+            del(key);
+        }
+    }
+
+    /**
+     * 时间轮回调，过期时间没被修改过才删除
+     */
+    private void expireIfDue(String key, long deadline) {
+        data.computeIfPresent(key, (k, entry) -> entry.expireAt == deadline ? null : entry);
+    }
+
+    /**
+     * 时间轮里的任务不能取消，key被覆盖或修改过期时间后旧任务仍会回调，
+     * 靠expireIfDue中 expireAt == deadline 的判断忽略；新旧过期时间相同时删除的本来就是该过期的值
+     */
+    private void schedule(String key, long expireAt) {
+        if (expireAt > 0L) {
+            timingWheel.add(key, expireAt);
+        }
+    }
+
+    private void setExpireAt(String key, long expireAt) {
+        Entry entry = data.computeIfPresent(key, (k, e) -> {
+            if (e.isExpired(System.currentTimeMillis())) {
+                return null;
+            }
+            return new Entry(e.value, expireAt);
+        });
+        if (entry != null) {
+            schedule(key, expireAt);
+        }
+    }
+
+    private boolean setIfAbsent(String key, Serializable value) {
+        final boolean[] set = new boolean[1];
+        data.compute(key, (k, entry) -> {
+            if (entry != null && !entry.isExpired(System.currentTimeMillis())) {
+                return entry;
+            }
+            set[0] = true;
+            return new Entry(value, 0L);
+        });
+        return set[0];
+    }
+
+    private long hincr(String key, String hashKey, long delta) {
+        final long[] result = new long[1];
+        data.compute(key, (k, entry) -> {
+            if (entry == null || entry.isExpired(System.currentTimeMillis())) {
+                entry = new Entry(new Hash(), 0L);
+            }
+            Map<String, Object> hash = hashOf(k, entry);
+            Object old = hash.get(hashKey);
+            result[0] = (old == null ? 0L : toLong(k, old)) + delta;
+            hash.put(hashKey, result[0]);
+            return entry;
+        });
+        return result[0];
+    }
+
+    private Object hashValue(String key, String hashKey) {
+        Entry entry = live(key);
+        return entry == null ? null : hashOf(key, entry).get(hashKey);
+    }
+
+    /**
+     * 读取未过期的entry，已过期的顺手删掉
+     */
+    private Entry live(String key) {
+        Entry entry = data.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.isExpired(System.currentTimeMillis())) {
+            data.remove(key, entry);
+            return null;
+        }
+        return entry;
+    }
+
+    private static Map<String, Object> hashOf(String key, Entry entry) {
+        if (!(entry.value instanceof Hash)) {
+            throw new IllegalStateException(WRONG_TYPE + key);
+        }
+        return (Hash) entry.value;
+    }
+
+    private static Set<Serializable> setOf(String key, Entry entry) {
+        if (!(entry.value instanceof Members)) {
+            throw new IllegalStateException(WRONG_TYPE + key);
+        }
+        return ((Members) entry.value).values;
+    }
+
+    private static Object plainValue(String key, Entry entry) {
+        if (entry.value instanceof Hash || entry.value instanceof Members) {
+            throw new IllegalStateException(WRONG_TYPE + key);
+        }
+        return entry.value;
+    }
+
+    private static String asString(String key, Object value) {
+        if (value instanceof Hash || value instanceof Members) {
+            throw new IllegalStateException(WRONG_TYPE + key);
+        }
+        return value.toString();
+    }
+
+    private static long toLong(String key, Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        try {
+            return Long.parseLong(asString(key, value));
+        } catch (NumberFormatException e) {
+            throw new IllegalStateException("value is not an integer >>> " + key);
+        }
+    }
+
+    /**
+     * redis的glob：* ? [abc] [^a] [a-z]，\转义
+     */
+    private static Pattern globToRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        boolean inClass = false;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '\\' && i + 1 < glob.length()) {
+                regex.append(Pattern.quote(String.valueOf(glob.charAt(++i))));
+            } else if (inClass) {
+                if (c == ']') {
+                    inClass = false;
+                }
+                regex.append(c == '\\' ? "\\\\" : String.valueOf(c));
+            } else if (c == '*') {
+                regex.append(".*");
+            } else if (c == '?') {
+                regex.append('.');
+            } else if (c == '[') {
+                inClass = true;
+                regex.append('[');
+                if (i + 1 < glob.length() && glob.charAt(i + 1) == '^') {
+                    regex.append('^');
+                    i++;
+                }
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+
+    /** hash类型的值 */
+    private static class Hash extends ConcurrentHashMap<String, Object> {
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /** set类型的值 */
+    private static class Members {
+
+        private final Set<Serializable> values = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * 值和过期时间，expireAt为0表示不过期；修改都是替换整个entry
+     */
+    private static class Entry {
+
+        private final Object value;
+
+        private final long expireAt;
+
+        Entry(Object value, long expireAt) {
+            this.value = value;
+            this.expireAt = expireAt;
+        }
+
+        boolean isExpired(long now) {
+            return expireAt != 0L && expireAt <= now;
+        }
+    }
+}
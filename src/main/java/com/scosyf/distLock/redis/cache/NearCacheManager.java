@@ -0,0 +1,458 @@
+package com.scosyf.distLock.redis.cache;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+
+/**
+ * 近端缓存（L1），装饰在RedisManager等CacheManager前面
+ *
+ * getObject/getString命中本地时不访问redis；本地缓存按条数或权重限制大小，并有写入后的过期时间，
+ * 过期时间同时也是跨节点不一致的上限
+ *
+ * 失效：经过本类的put/del/expire/incr/setnx/getSet以及批量操作会先清本地，再publish到INVALIDATE_CHANNEL，
+ * 其他节点收到后清掉自己的副本；没有使用keyspace notification，因为它默认关闭且需要改redis配置。
+ * 不经过本类直接改redis的写入、以及订阅断开期间的消息，只能靠本地过期时间兜底
+ *
+ * 不是@Component，在xml中配置（见redis-config.xml中注释掉的nearCacheManager，不参与按类型注入），
+ * 设置完大小和过期时间后调用init，停机时调用destroy
+ */
+public class NearCacheManager implements CacheManager {
+
+    private static Logger logger = LoggerFactory.getLogger(NearCacheManager.class);
+
+    /** 失效通知频道 */
+    public static final String INVALIDATE_CHANNEL = "cache:near:invalidate";
+
+    /** 版本号分段数，2的幂 */
+    private static final int STRIPES = 1024;
+
+    private final String nodeId = UUID.randomUUID().toString();
+
+    private final CacheManager delegate;
+
+    private final RedisConnectionFactory connectionFactory;
+
+    private long maximumSize = 10000L;
+
+    /** 大于0时按权重（key和value的大致字节数）限制，忽略maximumSize */
+    private long maximumWeight;
+
+    private long expireAfterWriteMillis = TimeUnit.SECONDS.toMillis(5);
+
+    private Cache<String, Serializable> objects;
+
+    private Cache<String, String> strings;
+
+    /**
+     * 按key分段的失效版本号，读redis期间发生了失效，读到的值就不放入本地，避免把旧值缓存下来
+     */
+    private final AtomicLongArray versions = new AtomicLongArray(STRIPES);
+
+    private StringRedisTemplate publisher;
+
+    private RedisMessageListenerContainer container;
+
+    public NearCacheManager(CacheManager delegate, RedisConnectionFactory connectionFactory) {
+        this.delegate = delegate;
+        this.connectionFactory = connectionFactory;
+    }
+
+    public void init() {
+        objects = this.<Serializable>newCache();
+        strings = this.<String>newCache();
+
+        publisher = new StringRedisTemplate(connectionFactory);
+        container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        container.addMessageListener(new MessageListener() {
+            @Override
+            public void onMessage(Message message, byte[] pattern) {
+                onInvalidate(new String(message.getBody(), StandardCharsets.UTF_8));
+            }
+        }, new ChannelTopic(INVALIDATE_CHANNEL));
+        container.afterPropertiesSet();
+        container.start();
+    }
+
+    public void destroy() throws Exception {
+        if (container != null) {
+            container.destroy();
+        }
+    }
+
+    /**
+     * 本地缓存统计：命中、未命中、淘汰，getObject和getString合计
+     * @return
+     */
+    public CacheStats stats() {
+        return objects.stats().plus(strings.stats());
+    }
+
+    /**
+     * 本地缓存条数
+     * @return
+     */
+    public long localSize() {
+        return objects.size() + strings.size();
+    }
+
+    public void setMaximumSize(long maximumSize) {
+        this.maximumSize = maximumSize;
+    }
+
+    public void setMaximumWeight(long maximumWeight) {
+        this.maximumWeight = maximumWeight;
+    }
+
+    public void setExpireAfterWriteMillis(long expireAfterWriteMillis) {
+        this.expireAfterWriteMillis = expireAfterWriteMillis;
+    }
+
+    @Override
+    public <T> CacheResult<T> put(String key, Serializable value) {
+        try {
+            return delegate.put(key, value);
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public <T> CacheResult<T> put(String key, Serializable value, long expire) {
+        try {
+            return delegate.put(key, value, expire);
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T extends Serializable> CacheResult<T> getObject(String key) {
+        Serializable value = objects.getIfPresent(key);
+        if (value != null) {
+            return CacheResult.of(true, (T) value);
+        }
+        long version = version(key);
+        CacheResult<T> result = delegate.getObject(key);
+        if (result != null && result.isSucc() && result.getModule() != null && version(key) == version) {
+            objects.put(key, result.getModule());
+        }
+        return result;
+    }
+
+    @Override
+    public CacheResult<String> getString(String key) {
+        String value = strings.getIfPresent(key);
+        if (value != null) {
+            return CacheResult.of(true, value);
+        }
+        long version = version(key);
+        CacheResult<String> result = delegate.getString(key);
+        if (result != null && result.isSucc() && result.getModule() != null && version(key) == version) {
+            strings.put(key, result.getModule());
+        }
+        return result;
+    }
+
+    @Override
+    public void expire(String key, long expire) {
+        try {
+            delegate.expire(key, expire);
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public void expireAt(String key, Date expireDate) {
+        try {
+            delegate.expireAt(key, expireDate);
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public void del(String key) {
+        try {
+            delegate.del(key);
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public long incPv(String namespace, String key) {
+        return delegate.incPv(namespace, key);
+    }
+
+    @Override
+    public Long getPv(String namespace, String key) {
+        return delegate.getPv(namespace, key);
+    }
+
+    @Override
+    public Long getAndDelPv(String namespace, String key) {
+        return delegate.getAndDelPv(namespace, key);
+    }
+
+    @Override
+    public long incr(String key) {
+        try {
+            return delegate.incr(key);
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public void hput(String key, String hashKey, Long value) {
+        delegate.hput(key, hashKey, value);
+    }
+
+    @Override
+    public void hdel(String key, Object... hashKeys) {
+        delegate.hdel(key, hashKeys);
+    }
+
+    @Override
+    public <T> CacheResult<T> hget(String key, String hashKey) {
+        return delegate.hget(key, hashKey);
+    }
+
+    @Override
+    public boolean setnx(String key, Long value) {
+        boolean set = delegate.setnx(key, value);
+        if (set) {
+            invalidate(key);
+        }
+        return set;
+    }
+
+    @Override
+    public boolean setnx(String key, String value) {
+        boolean set = delegate.setnx(key, value);
+        if (set) {
+            invalidate(key);
+        }
+        return set;
+    }
+
+    @Override
+    public String getSet(String key, String value) {
+        try {
+            return delegate.getSet(key, value);
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public Set<String> keys(String keyPattern) {
+        return delegate.keys(keyPattern);
+    }
+
+    @Override
+    public Iterator<String> scan(String keyPattern, int count) {
+        return delegate.scan(keyPattern, count);
+    }
+
+    @Override
+    public Stream<String> scanStream(String keyPattern, int count) {
+        return delegate.scanStream(keyPattern, count);
+    }
+
+    @Override
+    public long getExpire(String key) {
+        return delegate.getExpire(key);
+    }
+
+    @Override
+    public boolean isMemberOfSet(String setName, Serializable value) {
+        return delegate.isMemberOfSet(setName, value);
+    }
+
+    @Override
+    public long addToSet(String setName, Serializable... values) {
+        return delegate.addToSet(setName, values);
+    }
+
+    @Override
+    public long delFromSet(String setName, Serializable value) {
+        return delegate.delFromSet(setName, value);
+    }
+
+    @Override
+    public long sizeOfSet(String setName) {
+        return delegate.sizeOfSet(setName);
+    }
+
+    @Override
+    public <T extends Serializable> Map<String, T> mget(Collection<String> keys) {
+        Map<String, T> result = new HashMap<>();
+        List<String> misses = new ArrayList<>();
+        Map<String, Long> versions = new HashMap<>();
+        for (String key : keys) {
+            @SuppressWarnings("unchecked")
+            T value = (T) objects.getIfPresent(key);
+            if (value != null) {
+                result.put(key, value);
+            } else {
+                misses.add(key);
+                versions.put(key, version(key));
+            }
+        }
+        if (misses.isEmpty()) {
+            return result;
+        }
+        // 只有未命中的去redis
+        Map<String, T> loaded = delegate.mget(misses);
+        for (Map.Entry<String, T> entry : loaded.entrySet()) {
+            if (version(entry.getKey()) == versions.get(entry.getKey())) {
+                objects.put(entry.getKey(), entry.getValue());
+            }
+        }
+        result.putAll(loaded);
+        return result;
+    }
+
+    @Override
+    public void mput(Map<String, ? extends Serializable> values) {
+        try {
+            delegate.mput(values);
+        } finally {
+            invalidate(values.keySet());
+        }
+    }
+
+    @Override
+    public void mput(Map<String, ? extends Serializable> values, Map<String, Long> expires) {
+        try {
+            delegate.mput(values, expires);
+        } finally {
+            invalidate(values.keySet());
+        }
+    }
+
+    @Override
+    public void mexpire(Collection<String> keys, long expire) {
+        try {
+            delegate.mexpire(keys, expire);
+        } finally {
+            invalidate(keys);
+        }
+    }
+
+    @Override
+    public void mdel(Collection<String> keys) {
+        try {
+            delegate.mdel(keys);
+        } finally {
+            invalidate(keys);
+        }
+    }
+
+    /**
+     * 清本地并通知其他节点，通知失败不影响写入结果
+     */
+    private void invalidate(String key) {
+        invalidateLocal(key);
+        publish(key);
+    }
+
+    /**
+     * 批量失效只发一条消息，key之间用换行分隔
+     */
+    private void invalidate(Collection<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        StringBuilder message = new StringBuilder();
+        for (String key : keys) {
+            invalidateLocal(key);
+            if (message.length() > 0) {
+                message.append('\n');
+            }
+            message.append(key);
+        }
+        publish(message.toString());
+    }
+
+    private void publish(String keys) {
+        try {
+            publisher.convertAndSend(INVALIDATE_CHANNEL, nodeId + ":" + keys);
+        } catch (Exception e) {
+            logger.error("publish near cache invalidation error >>> " + keys + ", " + e);
+        }
+    }
+
+    private void onInvalidate(String message) {
+        int split = message.indexOf(':');
+        if (split < 0 || message.substring(0, split).equals(nodeId)) {
+            return;
+        }
+        for (String key : message.substring(split + 1).split("\n")) {
+            invalidateLocal(key);
+        }
+    }
+
+    private void invalidateLocal(String key) {
+        versions.incrementAndGet(stripe(key));
+        objects.invalidate(key);
+        strings.invalidate(key);
+    }
+
+    private long version(String key) {
+        return versions.get(stripe(key));
+    }
+
+    private static int stripe(String key) {
+        return key.hashCode() & (STRIPES - 1);
+    }
+
+    private <V> Cache<String, V> newCache() {
+        CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder()
+                .expireAfterWrite(expireAfterWriteMillis, TimeUnit.MILLISECONDS)
+                .recordStats();
+        if (maximumWeight > 0) {
+            builder.maximumWeight(maximumWeight).weigher(new Weigher<Object, Object>() {
+                @Override
+                public int weigh(Object key, Object value) {
+                    // 只是估算，String按字符数，其他对象按一个固定值
+                    int valueWeight = value instanceof String ? ((String) value).length() : 64;
+                    return ((String) key).length() + valueWeight;
+                }
+            });
+        } else {
+            builder.maximumSize(maximumSize);
+        }
+        return builder.build();
+    }
+}
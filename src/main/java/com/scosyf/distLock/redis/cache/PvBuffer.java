@@ -0,0 +1,395 @@
+package com.scosyf.distLock.redis.cache;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+/**
+ * pv计数的写缓冲
+ *
+ * 自增只加到本地的LongAdder，后台线程定时把各个key的增量用一次pipeline的HINCRBY写到redis，
+ * redis的写入次数只和刷新频率、key的数量有关，和访问量无关
+ *
+ * redis中每个namespace一个hash：PV_KEY_PREFIX + namespace -> {key: pv}
+ *
+ * 新建计数器时读一次redis中的值作为起点，之后的自增不访问redis，直到计数器被移除；
+ * 计数器只增不清零（LongAdder并发清零会丢数据），记录已经刷出去的部分，每次刷 sum - flushed；
+ * 已刷出、在途、redis中的值放在一个不可变的State里整体替换，刷新期间读到的值不会倒退；
+ * 连续几次没有增量的计数器从map中移除并标记retired，移除后再保留一个刷新周期把期间的增量刷掉；
+ * 拿到计数器后被挂起更久的自增线程，加完看到retired就把计数器交回刷新线程再刷一次，增量不会丢
+ */
+class PvBuffer {
+
+    private static Logger logger = LoggerFactory.getLogger(PvBuffer.class);
+
+    /** key前缀 */
+    static final String PV_KEY_PREFIX = "cache:pv:";
+
+    /** 连续多少次没有增量就移除 */
+    private static final int IDLE_FLUSHES = 3;
+
+    /**
+     * 原子的取出并删除，加上本地还没刷出去的增量
+     * KEYS[1] hash；ARGV[1] key，ARGV[2] 本地增量
+     */
+    private static final DefaultRedisScript<Long> GET_AND_DEL = new DefaultRedisScript<>(
+            "local pv = tonumber(redis.call('hget', KEYS[1], ARGV[1]) or '0') " +
+            "redis.call('hdel', KEYS[1], ARGV[1]) " +
+            "return pv + tonumber(ARGV[2])", Long.class);
+
+    private final StringRedisTemplate redisTemplate;
+
+    private final ConcurrentHashMap<CounterKey, Counter> counters = new ConcurrentHashMap<>();
+
+    /** 已移除、下次刷新后丢弃的计数器 */
+    private List<Map.Entry<CounterKey, Counter>> retiring = new ArrayList<>();
+
+    /** 已经丢弃之后又有自增的计数器，由刷新线程放回retiring */
+    private final ConcurrentLinkedQueue<Map.Entry<CounterKey, Counter>> revived = new ConcurrentLinkedQueue<>();
+
+    /** 刷新和getAndDel互斥，保证取出并清零时没有在途的HINCRBY */
+    private final ReentrantLock flushLock = new ReentrantLock();
+
+    private final ScheduledExecutorService flusher;
+
+    PvBuffer(StringRedisTemplate redisTemplate, long flushIntervalMillis) {
+        this.redisTemplate = redisTemplate;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "pv-flusher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.flusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush();
+                } catch (Exception e) {
+                    logger.error("pv flush error >>> " + e);
+                }
+            }
+        }, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 停止后台刷新并把剩余的增量刷掉
+     */
+    void shutdown() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        flush();
+    }
+
+    /**
+     * 自增，只有新建计数器时读一次redis
+     * @return 本节点看到的值：上次刷新（或新建）时redis中的值 + 本地还没刷出去的增量，其他节点未刷新的增量看不到
+     */
+    long increment(String namespace, String key) {
+        CounterKey counterKey = new CounterKey(namespace, key);
+        Counter counter = counters.get(counterKey);
+        if (counter == null) {
+            // 在computeIfAbsent外读redis，不占着map的桶；并发新建时只保留一个，起点读了两次也没关系
+            Counter created = new Counter(persisted(counterKey));
+            counter = counters.putIfAbsent(counterKey, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        counter.total.increment();
+        // 先加再看标记：没看到retired时，标记之后的刷新一定能读到这次的增量
+        if (counter.retired) {
+            revived.add(new AbstractMap.SimpleImmutableEntry<>(counterKey, counter));
+        }
+        return counter.localValue();
+    }
+
+    /**
+     * redis中的值 + 本地还没刷出去的增量，其他节点未刷新的增量看不到
+     */
+    Long get(String namespace, String key) {
+        Counter counter = counters.get(new CounterKey(namespace, key));
+        State before = counter == null ? null : counter.state;
+        Object value = redisTemplate.opsForHash().get(PV_KEY_PREFIX + namespace, key);
+        long pending = 0L;
+        if (counter != null) {
+            if (before.inFlight == 0L && counter.state == before) {
+                pending = counter.total.sum() - before.flushed;
+            } else {
+                // 读redis期间有刷新，不知道读到的值是否包含在途的增量，等刷新结束再读一次
+                flushLock.lock();
+                try {
+                    value = redisTemplate.opsForHash().get(PV_KEY_PREFIX + namespace, key);
+                    pending = counter.pending();
+                } finally {
+                    flushLock.unlock();
+                }
+            }
+        }
+        if (value == null && pending == 0L) {
+            return null;
+        }
+        return (value == null ? 0L : Long.parseLong(value.toString())) + pending;
+    }
+
+    /**
+     * 原子地取出并清零
+     */
+    Long getAndDelete(String namespace, String key) {
+        flushLock.lock();
+        try {
+            drainRevived();
+            CounterKey counterKey = new CounterKey(namespace, key);
+            long pending = 0L;
+            Counter counter = counters.get(counterKey);
+            if (counter != null) {
+                pending += take(counter);
+            }
+            for (Map.Entry<CounterKey, Counter> entry : retiring) {
+                if (entry.getKey().equals(counterKey)) {
+                    pending += take(entry.getValue());
+                }
+            }
+            return redisTemplate.execute(GET_AND_DEL, Collections.singletonList(PV_KEY_PREFIX + namespace),
+                    key, Long.toString(pending));
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * 一次pipeline把所有增量写到redis
+     */
+    void flush() {
+        flushLock.lock();
+        try {
+            final List<Map.Entry<CounterKey, Counter>> dirty = new ArrayList<>();
+            final List<Long> deltas = new ArrayList<>();
+            drainRevived();
+            // 上一轮移除的计数器，把移除前后拿到它的线程加的增量刷掉，之后丢弃
+            List<Map.Entry<CounterKey, Counter>> retired = retiring;
+            for (Map.Entry<CounterKey, Counter> entry : retired) {
+                long delta = entry.getValue().pending();
+                if (delta != 0L) {
+                    dirty.add(entry);
+                    deltas.add(delta);
+                }
+            }
+            List<Map.Entry<CounterKey, Counter>> removed = new ArrayList<>();
+            for (Map.Entry<CounterKey, Counter> entry : counters.entrySet()) {
+                Counter counter = entry.getValue();
+                long delta = counter.pending();
+                if (delta != 0L) {
+                    counter.idleFlushes = 0;
+                    dirty.add(entry);
+                    deltas.add(delta);
+                } else if (++counter.idleFlushes >= IDLE_FLUSHES && counters.remove(entry.getKey(), counter)) {
+                    counter.retired = true;
+                    removed.add(entry);
+                }
+            }
+            retiring = removed;
+            if (dirty.isEmpty()) {
+                return;
+            }
+            // 先记为在途，下一次刷新不会重复计算；increment看到的值仍包含在途的部分
+            for (int i = 0; i < dirty.size(); i++) {
+                Counter counter = dirty.get(i).getValue();
+                State state = counter.state;
+                counter.state = new State(state.flushed + deltas.get(i), deltas.get(i), state.persisted);
+            }
+            List<Object> results;
+            try {
+                results = redisTemplate.executePipelined(new RedisCallback<Object>() {
+                    @Override
+                    public Object doInRedis(RedisConnection connection) throws DataAccessException {
+                        for (int i = 0; i < dirty.size(); i++) {
+                            CounterKey key = dirty.get(i).getKey();
+                            connection.hIncrBy(bytes(PV_KEY_PREFIX + key.namespace), bytes(key.key), deltas.get(i));
+                        }
+                        return null;
+                    }
+                });
+            } catch (RuntimeException e) {
+                // 回滚，下次再刷
+                for (int i = 0; i < dirty.size(); i++) {
+                    Counter counter = dirty.get(i).getValue();
+                    State state = counter.state;
+                    counter.state = new State(state.flushed - deltas.get(i), 0L, state.persisted);
+                }
+                retiring.addAll(retired);
+                throw e;
+            }
+            for (int i = 0; i < dirty.size(); i++) {
+                Counter counter = dirty.get(i).getValue();
+                State state = counter.state;
+                Object result = results.get(i);
+                // 没有拿到结果时redis中的值至少是原来的加上这次的增量
+                long persisted = result instanceof Long ? (Long) result : state.persisted + deltas.get(i);
+                counter.state = new State(state.flushed, 0L, persisted);
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * 把又有自增的已丢弃计数器放回retiring，同一个计数器只放一次，避免一次刷新里重复计算
+     */
+    private void drainRevived() {
+        Map.Entry<CounterKey, Counter> entry;
+        while ((entry = revived.poll()) != null) {
+            if (!contains(retiring, entry.getValue())) {
+                retiring.add(entry);
+            }
+        }
+    }
+
+    private static boolean contains(List<Map.Entry<CounterKey, Counter>> entries, Counter counter) {
+        for (Map.Entry<CounterKey, Counter> entry : entries) {
+            if (entry.getValue() == counter) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 新计数器的起点，读不到时从0开始，下一次刷新后就是redis中的值
+     */
+    private long persisted(CounterKey counterKey) {
+        try {
+            Object value = redisTemplate.opsForHash().get(PV_KEY_PREFIX + counterKey.namespace, counterKey.key);
+            return value == null ? 0L : Long.parseLong(value.toString());
+        } catch (RuntimeException e) {
+            logger.error("pv seed error >>> " + counterKey.key + " >>> " + e);
+            return 0L;
+        }
+    }
+
+    /**
+     * 本地增量算作已取走，不再刷到redis；redis中的值随后被删除，所以起点归0
+     */
+    private static long take(Counter counter) {
+        long pending = counter.pending();
+        counter.state = new State(counter.state.flushed + pending, 0L, 0L);
+        return pending;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static class CounterKey {
+
+        private final String namespace;
+
+        private final String key;
+
+        CounterKey(String namespace, String key) {
+            this.namespace = namespace;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof CounterKey)) {
+                return false;
+            }
+            CounterKey other = (CounterKey) o;
+            return namespace.equals(other.namespace) && key.equals(other.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * namespace.hashCode() + key.hashCode();
+        }
+    }
+
+    private static class Counter {
+
+        /** 累计自增次数，只增不减 */
+        private final LongAdder total = new LongAdder();
+
+        /** 只在flushLock下替换 */
+        private volatile State state;
+
+        /** 已经从map中移除，不会再变回false */
+        private volatile boolean retired;
+
+        /** 连续没有增量的刷新次数，只在刷新线程修改 */
+        private int idleFlushes;
+
+        /**
+         * @param persisted 新建时redis中的值
+         */
+        Counter(long persisted) {
+            this.state = new State(0L, 0L, persisted);
+        }
+
+        /**
+         * 还没刷出去的增量，不含在途的
+         */
+        long pending() {
+            return total.sum() - state.flushed;
+        }
+
+        /**
+         * 本节点看到的值：redis中的值 + 在途的增量 + 还没刷出去的增量
+         */
+        long localValue() {
+            State s = state;
+            return s.persisted + s.inFlight + total.sum() - s.flushed;
+        }
+    }
+
+    /**
+     * 三个值一起替换，读的一方不会看到一半
+     */
+    private static class State {
+
+        /** 已经交给redis的部分（含在途） */
+        private final long flushed;
+
+        /** 正在写入redis、还没有确认的增量 */
+        private final long inFlight;
+
+        /** 上次刷新后redis中的值，不含在途和本地增量 */
+        private final long persisted;
+
+        State(long flushed, long inFlight, long persisted) {
+            this.flushed = flushed;
+            this.inFlight = inFlight;
+            this.persisted = persisted;
+        }
+    }
+}
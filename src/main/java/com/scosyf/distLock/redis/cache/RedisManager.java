@@ -1,18 +1,41 @@
 package com.scosyf.distLock.redis.cache;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.stereotype.Component;
 
+import com.google.common.collect.Iterables;
+import com.scosyf.distLock.metrics.Metrics;
+import com.scosyf.distLock.redis.pipeline.AutoPipeline;
+
+import redis.clients.jedis.Protocol;
+
 
 @Component("redisManager")
 public class RedisManager implements CacheManager{
@@ -21,6 +44,79 @@ public class RedisManager implements CacheManager{
     private RedisTemplate<String, Serializable>     redisTemplate;
     @Autowired
     private StringRedisTemplate                     stringRedisTemplate;
+    /** 配置了就把单key命令合并到共享连接上发送，否则走redisTemplate的连接池 */
+    @Autowired(required = false)
+    private AutoPipeline                            autoPipeline;
+
+    /** 批量操作每批的key数，太大会长时间占住redis */
+    public static final int DEFAULT_BATCH_SIZE      = 500;
+
+    private volatile int                            batchSize = DEFAULT_BATCH_SIZE;
+
+    /** keys()内部SCAN每批数量的提示 */
+    public static final int DEFAULT_SCAN_COUNT      = 1000;
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /** pv增量刷到redis的间隔 */
+    public static final long PV_FLUSH_INTERVAL      = 1000L;
+
+    private PvBuffer                                pvBuffer;
+
+    /** 布隆过滤器默认误判率 */
+    public static final double DEFAULT_BLOOM_FPP    = 0.01;
+
+    private SetBloomFilters                         bloomFilters;
+
+    @PostConstruct
+    public void init() {
+        pvBuffer = new PvBuffer(stringRedisTemplate, PV_FLUSH_INTERVAL);
+        bloomFilters = new SetBloomFilters(stringRedisTemplate);
+    }
+
+    @PreDestroy
+    public void destroy() throws Exception {
+        pvBuffer.shutdown();
+        bloomFilters.destroy();
+    }
+
+    /**
+     * 为某个set开启本地布隆过滤器，isMemberOfSet判定不存在时不访问redis，适合绝大多数查询都不存在、允许短暂误判的场景
+     * 开启时会SSCAN整个set重建，重启后需要重新调用
+     * @param setName
+     * @param expectedInsertions 预期元素数
+     * @param fpp 误判率，越小占内存越多
+     */
+    public void enableBloomFilter(String setName, long expectedInsertions, double fpp) {
+        bloomFilters.enable(setName, rawKey(setName), expectedInsertions, fpp);
+    }
+
+    public void enableBloomFilter(String setName, long expectedInsertions) {
+        enableBloomFilter(setName, expectedInsertions, DEFAULT_BLOOM_FPP);
+    }
+
+    public void disableBloomFilter(String setName) {
+        bloomFilters.disable(setName);
+    }
+
+    /**
+     * 按redis中当前的set重建布隆过滤器，清掉已删除元素，并按当前元素数重新估算大小
+     * @param setName
+     */
+    public void rebuildBloomFilter(String setName) {
+        bloomFilters.rebuild(setName);
+    }
+
+    /**
+     * 布隆过滤器当前的估计误判率，没有开启或者还没建好时为1
+     * @param setName
+     * @return
+     */
+    public double bloomFilterFpp(String setName) {
+        return bloomFilters.expectedFpp(setName);
+    }
 
     @Override
     public <T> CacheResult<T> put(String key, Serializable value) {
@@ -33,28 +129,25 @@ public class RedisManager implements CacheManager{
         if (StringUtils.isBlank(key)) {
             return null;
         }
-        //数据不过期
-        if (expire < 0) {
-            if (value instanceof String) {
-                stringRedisTemplate.opsForValue().set(key, (String) value);
-            } else {
-                redisTemplate.opsForValue().set(key, value);
-            }
-        } else {
-            if (value instanceof String) {
-                stringRedisTemplate.opsForValue().set(key, (String) value, expire, TimeUnit.SECONDS);
+        // String和stringRedisTemplate一样原样存UTF-8，其他用value序列化
+        byte[] rawValue = value instanceof String ? bytes((String) value) : rawValue(value);
+        return timed("cache.put", key, () -> {
+            //数据不过期
+            if (expire < 0) {
+                command(Protocol.Command.SET, rawKey(key), rawValue);
             } else {
-                redisTemplate.opsForValue().set(key, value, expire, TimeUnit.SECONDS);
+                command(Protocol.Command.SETEX, rawKey(key), bytes(Long.toString(expire)), rawValue);
             }
-        }
-        return CacheResult.of(true);
+            return CacheResult.of(true);
+        });
     }
 
     @Override
     @SuppressWarnings("unchecked")
     public <T extends Serializable> CacheResult<T> getObject(String key) {
         if (redisTemplate.opsForValue() != null) {
-            T value = (T) redisTemplate.opsForValue().get(key);
+            T value = (T) timed("cache.get", key, () -> valueSerializer().deserialize(
+                    (byte[]) command(Protocol.Command.GET, rawKey(key))));
             return CacheResult.of(true, value);
         } else {
             return CacheResult.of(false);
@@ -63,13 +156,16 @@ public class RedisManager implements CacheManager{
 
     @Override
     public CacheResult<String> getString(String key) {
-        String value = stringRedisTemplate.opsForValue().get(key);
+        String value = timed("cache.get", key, () -> {
+            byte[] raw = (byte[]) command(Protocol.Command.GET, rawKey(key));
+            return raw == null ? null : new String(raw, StandardCharsets.UTF_8);
+        });
         return CacheResult.of(true, value);
     }
 
     @Override
     public void expire(String key, long expire) {
-        redisTemplate.expire(key, expire, TimeUnit.SECONDS);
+        timed("cache.expire", key, () -> command(Protocol.Command.EXPIRE, rawKey(key), bytes(Long.toString(expire))));
     }
 
     @Override
@@ -79,30 +175,31 @@ public class RedisManager implements CacheManager{
 
     @Override
     public void del(String key) {
-        redisTemplate.delete(key);
+        timed("cache.del", key, () -> command(Protocol.Command.DEL, rawKey(key)));
     }
 
+    /**
+     * 只加本地计数，定时批量刷到redis；新的key第一次自增时读一次redis作为起点
+     * 返回redis中的值 + 本节点的增量，其他节点还没刷出去的增量不包含在内
+     */
     @Override
     public long incPv(String namespace, String key) {
-        // TODO Auto-generated method stub
-        return 0;
+        return pvBuffer.increment(namespace, key);
     }
 
     @Override
     public Long getPv(String namespace, String key) {
-        // TODO Auto-generated method stub
-        return null;
+        return pvBuffer.get(namespace, key);
     }
 
     @Override
     public Long getAndDelPv(String namespace, String key) {
-        // TODO Auto-generated method stub
-        return null;
+        return pvBuffer.getAndDelete(namespace, key);
     }
 
     @Override
     public long incr(String key) {
-        return redisTemplate.opsForValue().increment(key, 1);
+        return timed("cache.incr", key, () -> (Long) command(Protocol.Command.INCR, rawKey(key)));
     }
 
     @Override
@@ -128,22 +225,63 @@ public class RedisManager implements CacheManager{
 
     @Override
     public boolean setnx(String key, Long value) {
-        return redisTemplate.opsForValue().setIfAbsent(key, value);
+        return setnx(key, (Serializable) value);
     }
 
     @Override
     public boolean setnx(String key, String value) {
-        return redisTemplate.opsForValue().setIfAbsent(key, value);
+        return setnx(key, (Serializable) value);
+    }
+
+    private boolean setnx(String key, Serializable value) {
+        return timed("cache.setnx", key, () -> Long.valueOf(1L).equals(
+                command(Protocol.Command.SETNX, rawKey(key), rawValue(value))));
     }
     
     @Override
     public String getSet(String key, String value) {
-        return (String) redisTemplate.opsForValue().getAndSet(key, value);
+        return (String) timed("cache.getSet", key, () -> valueSerializer().deserialize(
+                (byte[]) command(Protocol.Command.GETSET, rawKey(key), rawValue(value))));
     }
 
     @Override
     public Set<String> keys(String keyPattern) {
-        return redisTemplate.keys(keyPattern);
+        // 不再用KEYS，避免一次遍历整个keyspace阻塞redis
+        Set<String> keys = new HashSet<>();
+        Iterator<String> iterator = scan(keyPattern, DEFAULT_SCAN_COUNT);
+        while (iterator.hasNext()) {
+            keys.add(iterator.next());
+        }
+        return keys;
+    }
+
+    @Override
+    public Iterator<String> scan(final String keyPattern, final int count) {
+        return new ScanIterator(new ScanIterator.Scanner() {
+            @Override
+            public ScanIterator.Page scan(final String cursor) {
+                return redisTemplate.execute(new RedisCallback<ScanIterator.Page>() {
+                    @Override
+                    @SuppressWarnings("unchecked")
+                    public ScanIterator.Page doInRedis(RedisConnection connection) throws DataAccessException {
+                        // jedis 2.3.1不支持spring-data-redis的connection.scan，直接发命令
+                        List<Object> reply = (List<Object>) connection.execute("SCAN", bytes(cursor),
+                                bytes("MATCH"), rawKey(keyPattern), bytes("COUNT"), bytes(Integer.toString(count)));
+                        List<byte[]> rawKeys = (List<byte[]>) reply.get(1);
+                        List<String> keys = new ArrayList<>(rawKeys.size());
+                        for (byte[] rawKey : rawKeys) {
+                            keys.add(keySerializer().deserialize(rawKey));
+                        }
+                        return new ScanIterator.Page(new String((byte[]) reply.get(0), StandardCharsets.UTF_8), keys);
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    public Stream<String> scanStream(String keyPattern, int count) {
+        return ScanIterator.stream(scan(keyPattern, count));
     }
 
     @Override
@@ -155,28 +293,184 @@ public class RedisManager implements CacheManager{
         return expire.longValue();
     }
 
+    /**
+     * 开启了布隆过滤器的set，过滤器判定不存在时直接返回false；
+     * 其他节点刚写入的元素同步过来之前会返回false，只能作为参考，判重用addToSet的返回值
+     */
     @Override
     public boolean isMemberOfSet(String setName, Serializable value) {
-        // TODO Auto-generated method stub
-        return false;
+        if (!bloomFilters.mightContain(setName, rawValue(value))) {
+            Metrics.increment("cache.bloom.negative", setName);
+            return false;
+        }
+        return timed("cache.sismember", setName, () -> Long.valueOf(1L).equals(
+                command(Protocol.Command.SISMEMBER, rawKey(setName), rawValue(value))));
     }
 
+    /**
+     * @return 新加入的个数，元素已经存在时不计数，可以用来原子地判重
+     */
     @Override
     public long addToSet(String setName, Serializable... values) {
-        // TODO Auto-generated method stub
-        return 0;
+        if (values.length == 0) {
+            return 0;
+        }
+        List<byte[]> rawValues = new ArrayList<>(values.length);
+        for (Serializable value : values) {
+            rawValues.add(rawValue(value));
+        }
+        // 先放入过滤器再写redis
+        bloomFilters.add(setName, rawValues);
+        Long added = timed("cache.sadd", setName, () -> redisTemplate.opsForSet().add(setName, values));
+        return added == null ? 0 : added;
     }
 
     @Override
     public long delFromSet(String setName, Serializable value) {
-        // TODO Auto-generated method stub
-        return 0;
+        Long removed = redisTemplate.opsForSet().remove(setName, value);
+        return removed == null ? 0 : removed;
     }
 
     @Override
     public long sizeOfSet(String setName) {
-        // TODO Auto-generated method stub
-        return 0;
+        Long size = redisTemplate.opsForSet().size(setName);
+        return size == null ? 0 : size;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T extends Serializable> Map<String, T> mget(Collection<String> keys) {
+        Map<String, T> result = new HashMap<>();
+        // 每批一次MGET
+        for (List<String> batch : Iterables.partition(new ArrayList<>(keys), batchSize)) {
+            List<Serializable> values = redisTemplate.opsForValue().multiGet(batch);
+            if (values == null) {
+                continue;
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                if (values.get(i) != null) {
+                    result.put(batch.get(i), (T) values.get(i));
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void mput(Map<String, ? extends Serializable> values) {
+        mput(values, Collections.<String, Long>emptyMap());
+    }
+
+    @Override
+    public void mput(Map<String, ? extends Serializable> values, final Map<String, Long> expires) {
+        List<Map.Entry<String, ? extends Serializable>> entries = new ArrayList<>(values.entrySet());
+        for (final List<Map.Entry<String, ? extends Serializable>> batch : Iterables.partition(entries, batchSize)) {
+            if (expires.isEmpty()) {
+                // 都不过期时一批一次MSET
+                Map<String, Serializable> map = new LinkedHashMap<>();
+                for (Map.Entry<String, ? extends Serializable> entry : batch) {
+                    map.put(entry.getKey(), entry.getValue());
+                }
+                redisTemplate.opsForValue().multiSet(map);
+                continue;
+            }
+            // 有过期时间的一批一次pipeline，SETEX/SET
+            redisTemplate.executePipelined(new RedisCallback<Object>() {
+                @Override
+                public Object doInRedis(RedisConnection connection) throws DataAccessException {
+                    for (Map.Entry<String, ? extends Serializable> entry : batch) {
+                        byte[] key = rawKey(entry.getKey());
+                        byte[] value = rawValue(entry.getValue());
+                        Long expire = expires.get(entry.getKey());
+                        if (expire == null || expire < 0) {
+                            connection.set(key, value);
+                        } else {
+                            connection.setEx(key, expire, value);
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+    }
+
+    @Override
+    public void mexpire(Collection<String> keys, final long expire) {
+        for (final List<String> batch : Iterables.partition(new ArrayList<>(keys), batchSize)) {
+            redisTemplate.executePipelined(new RedisCallback<Object>() {
+                @Override
+                public Object doInRedis(RedisConnection connection) throws DataAccessException {
+                    for (String key : batch) {
+                        connection.expire(rawKey(key), expire);
+                    }
+                    return null;
+                }
+            });
+        }
+    }
+
+    @Override
+    public void mdel(Collection<String> keys) {
+        // 每批一次DEL
+        for (List<String> batch : Iterables.partition(new ArrayList<>(keys), batchSize)) {
+            redisTemplate.delete(batch);
+        }
+    }
+
+    /**
+     * 打开指标时记录耗时和异常次数，按key前缀聚合
+     */
+    private static <T> T timed(String op, String key, Supplier<T> call) {
+        long start = Metrics.start();
+        if (start == 0L) {
+            return call.get();
+        }
+        try {
+            return call.get();
+        } catch (RuntimeException e) {
+            Metrics.increment(op + ".error", key);
+            throw e;
+        } finally {
+            Metrics.recordSince(op, key, start);
+        }
+    }
+
+    /**
+     * 单条命令，返回redis的原始回复（byte[]、Long、List）
+     * 配置了AutoPipeline时和其他线程的命令合并发送，否则从redisTemplate的连接池借连接
+     */
+    private Object command(final Protocol.Command command, final byte[]... args) {
+        if (autoPipeline != null) {
+            return autoPipeline.execute(command, args);
+        }
+        return redisTemplate.execute(new RedisCallback<Object>() {
+            @Override
+            public Object doInRedis(RedisConnection connection) throws DataAccessException {
+                return connection.execute(command.name(), args);
+            }
+        });
+    }
+
+    private byte[] rawKey(String key) {
+        return keySerializer().serialize(key);
+    }
+
+    @SuppressWarnings("unchecked")
+    private RedisSerializer<String> keySerializer() {
+        return (RedisSerializer<String>) redisTemplate.getKeySerializer();
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] rawValue(Serializable value) {
+        return valueSerializer().serialize(value);
+    }
+
+    @SuppressWarnings("unchecked")
+    private RedisSerializer<Object> valueSerializer() {
+        return (RedisSerializer<Object>) redisTemplate.getValueSerializer();
     }
 
 }
@@ -0,0 +1,85 @@
+package com.scosyf.distLock.redis.cache;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * SCAN游标的惰性迭代器，用到下一批时才发下一次SCAN，内存中只有当前一批
+ *
+ * 每次SCAN单独借还连接，调用方中途不再迭代也不需要关闭
+ */
+public class ScanIterator implements Iterator<String> {
+
+    /** 游标起点和终点 */
+    public static final String START = "0";
+
+    /**
+     * 执行一次SCAN
+     */
+    public interface Scanner {
+
+        Page scan(String cursor);
+    }
+
+    /**
+     * 一次SCAN的结果
+     */
+    public static class Page {
+
+        private final String cursor;
+
+        private final List<String> keys;
+
+        public Page(String cursor, List<String> keys) {
+            this.cursor = cursor;
+            this.keys = keys;
+        }
+    }
+
+    private final Scanner scanner;
+
+    private String cursor = START;
+
+    private Iterator<String> current = Collections.<String>emptyList().iterator();
+
+    private boolean finished;
+
+    public ScanIterator(Scanner scanner) {
+        this.scanner = scanner;
+    }
+
+    /**
+     * 转成Stream
+     * @param iterator
+     * @return
+     */
+    public static Stream<String> stream(Iterator<String> iterator) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.NONNULL), false);
+    }
+
+    @Override
+    public boolean hasNext() {
+        // 一批可能是空的，要继续往下扫直到拿到key或游标回到0
+        while (!current.hasNext() && !finished) {
+            Page page = scanner.scan(cursor);
+            cursor = page.cursor;
+            finished = START.equals(cursor);
+            current = page.keys.iterator();
+        }
+        return current.hasNext();
+    }
+
+    @Override
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return current.next();
+    }
+}
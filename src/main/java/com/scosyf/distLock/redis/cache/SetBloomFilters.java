@@ -0,0 +1,317 @@
+package com.scosyf.distLock.redis.cache;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+
+/**
+ * 挡在redis set前面的本地布隆过滤器，按set名称单独开启
+ *
+ * 过滤器里放的是元素序列化后的字节，和redis中存的一致，SSCAN拿到的原始字节可以直接放入；
+ * 本节点写入的元素一定在过滤器中，过滤器说不存在时isMemberOfSet不访问redis，说存在时再去SISMEMBER
+ *
+ * 同步：本节点addToSet时直接放入，同时publish到ADD_CHANNEL，其他节点收到后放入自己的过滤器。
+ * 消息到达前、订阅断开期间或者publish失败时，其他节点写入的元素会被误判为不存在，
+ * 所以过滤器的"不存在"只是参考，不能用来判重；判重以SADD的返回值为准（返回0说明已经存在）
+ *
+ * 布隆过滤器不能删除，delFromSet后该元素仍然会被判为可能存在，只是多一次redis访问；
+ * 删除多了或者实际元素数超过预期导致误判率升高时，调用rebuild按当前的set重建
+ */
+class SetBloomFilters {
+
+    private static Logger logger = LoggerFactory.getLogger(SetBloomFilters.class);
+
+    /** 新增元素通知频道 */
+    static final String ADD_CHANNEL = "cache:bloom:add";
+
+    /** 重建时SSCAN每批数量的提示 */
+    private static final int SCAN_COUNT = 1000;
+
+    private final StringRedisTemplate redisTemplate;
+
+    private final ConcurrentHashMap<String, Filter> filters = new ConcurrentHashMap<>();
+
+    private RedisMessageListenerContainer container;
+
+    SetBloomFilters(StringRedisTemplate redisTemplate) {
+        this.redisTemplate = redisTemplate;
+    }
+
+    /**
+     * 为某个set开启过滤器，并从redis中重建
+     * @param setName
+     * @param rawKey set的key序列化后的字节
+     * @param expectedInsertions 预期元素数，重建时取它和当前元素数两倍中较大的
+     * @param fpp 误判率
+     */
+    void enable(String setName, byte[] rawKey, long expectedInsertions, double fpp) {
+        if (expectedInsertions <= 0 || fpp <= 0 || fpp >= 1) {
+            throw new IllegalArgumentException("expectedInsertions > 0, 0 < fpp < 1");
+        }
+        // 先订阅再重建，重建期间其他节点新增的元素不会漏掉
+        subscribe();
+        filters.put(setName, new Filter(rawKey, expectedInsertions, fpp));
+        rebuild(setName);
+    }
+
+    void disable(String setName) {
+        filters.remove(setName);
+    }
+
+    /**
+     * 用SSCAN把当前的set重新放进一个新的过滤器，重建完成前查询都走redis
+     */
+    void rebuild(String setName) {
+        Filter filter = filters.get(setName);
+        if (filter == null) {
+            return;
+        }
+        // 同一个set同时只有一个重建，否则后开始的重建会替换building，先开始的那个漏掉之后新增的元素
+        synchronized (filter) {
+            long size = redisTemplate.execute(new RedisCallback<Long>() {
+                @Override
+                public Long doInRedis(RedisConnection connection) throws DataAccessException {
+                    Long size = connection.sCard(filter.rawKey);
+                    return size == null ? 0L : size;
+                }
+            });
+            BloomFilter<byte[]> building = BloomFilter.create(Funnels.byteArrayFunnel(),
+                    Math.max(filter.expectedInsertions, size * 2), filter.fpp);
+            // 重建期间addToSet和通知会同时放入旧的和新的过滤器
+            filter.lock.writeLock().lock();
+            try {
+                filter.building = building;
+                filter.ready = false;
+            } finally {
+                filter.lock.writeLock().unlock();
+            }
+            boolean done = false;
+            try {
+                String cursor = ScanIterator.START;
+                do {
+                    cursor = sscan(filter, cursor);
+                } while (!ScanIterator.START.equals(cursor));
+                done = true;
+            } catch (RuntimeException e) {
+                logger.error("rebuild bloom filter error >>> " + setName + ", " + e);
+                throw e;
+            } finally {
+                // 和put互斥，替换时不会有放入了building却没放入current的元素
+                filter.lock.writeLock().lock();
+                try {
+                    if (done) {
+                        filter.current = building;
+                        filter.ready = true;
+                    }
+                    filter.building = null;
+                } finally {
+                    filter.lock.writeLock().unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return false表示本节点的过滤器中没有（其他节点刚写入的可能还没同步过来）；true表示可能在，或者这个set没有开启过滤器
+     */
+    boolean mightContain(String setName, byte[] rawValue) {
+        Filter filter = filters.get(setName);
+        if (filter == null || !filter.ready) {
+            return true;
+        }
+        return filter.mightContain(rawValue);
+    }
+
+    /**
+     * SADD之前调用，放入本地并通知其他节点；先放入再写redis，避免写完到放入之间的查询误判
+     */
+    void add(String setName, List<byte[]> rawValues) {
+        Filter filter = filters.get(setName);
+        if (filter == null) {
+            return;
+        }
+        for (byte[] rawValue : rawValues) {
+            filter.put(rawValue);
+        }
+        publish(setName, rawValues);
+    }
+
+    /**
+     * 当前过滤器的估计误判率
+     */
+    double expectedFpp(String setName) {
+        Filter filter = filters.get(setName);
+        if (filter == null || !filter.ready) {
+            return 1.0;
+        }
+        filter.lock.readLock().lock();
+        try {
+            return filter.current.expectedFpp();
+        } finally {
+            filter.lock.readLock().unlock();
+        }
+    }
+
+    void destroy() throws Exception {
+        if (container != null) {
+            container.destroy();
+        }
+    }
+
+    private synchronized void subscribe() {
+        if (container != null) {
+            return;
+        }
+        RedisConnectionFactory connectionFactory = redisTemplate.getConnectionFactory();
+        container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        container.addMessageListener(new MessageListener() {
+            @Override
+            public void onMessage(Message message, byte[] pattern) {
+                onAdd(message.getBody());
+            }
+        }, new ChannelTopic(ADD_CHANNEL));
+        container.afterPropertiesSet();
+        container.start();
+    }
+
+    @SuppressWarnings("unchecked")
+    private String sscan(final Filter filter, final String cursor) {
+        return redisTemplate.execute(new RedisCallback<String>() {
+            @Override
+            public String doInRedis(RedisConnection connection) throws DataAccessException {
+                // jedis 2.3.1不支持spring-data-redis的connection.sScan，直接发命令
+                List<Object> reply = (List<Object>) connection.execute("SSCAN", filter.rawKey, bytes(cursor),
+                        bytes("COUNT"), bytes(Integer.toString(SCAN_COUNT)));
+                for (byte[] member : (List<byte[]>) reply.get(1)) {
+                    filter.put(member);
+                }
+                return new String((byte[]) reply.get(0), StandardCharsets.UTF_8);
+            }
+        });
+    }
+
+    /**
+     * 消息格式：int长度 + set名称，之后每个元素 int长度 + 字节
+     */
+    private void publish(String setName, List<byte[]> rawValues) {
+        byte[] name = bytes(setName);
+        int length = 4 + name.length;
+        for (byte[] rawValue : rawValues) {
+            length += 4 + rawValue.length;
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.putInt(name.length).put(name);
+        for (byte[] rawValue : rawValues) {
+            buffer.putInt(rawValue.length).put(rawValue);
+        }
+        try {
+            redisTemplate.execute(new RedisCallback<Object>() {
+                @Override
+                public Object doInRedis(RedisConnection connection) throws DataAccessException {
+                    connection.publish(bytes(ADD_CHANNEL), buffer.array());
+                    return null;
+                }
+            });
+        } catch (Exception e) {
+            logger.error("publish bloom filter add error >>> " + setName + ", " + e);
+        }
+    }
+
+    private void onAdd(byte[] body) {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(body);
+            byte[] name = new byte[buffer.getInt()];
+            buffer.get(name);
+            Filter filter = filters.get(new String(name, StandardCharsets.UTF_8));
+            if (filter == null) {
+                return;
+            }
+            List<byte[]> rawValues = new ArrayList<>();
+            while (buffer.hasRemaining()) {
+                byte[] rawValue = new byte[buffer.getInt()];
+                buffer.get(rawValue);
+                rawValues.add(rawValue);
+            }
+            for (byte[] rawValue : rawValues) {
+                filter.put(rawValue);
+            }
+        } catch (RuntimeException e) {
+            logger.error("bad bloom filter message >>> " + e);
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static class Filter {
+
+        private final byte[] rawKey;
+
+        private final long expectedInsertions;
+
+        private final double fpp;
+
+        /** 查询用的过滤器，重建完成时整体替换 */
+        private volatile BloomFilter<byte[]> current;
+
+        /** 正在重建的过滤器，重建期间新增的元素也要放进去 */
+        private volatile BloomFilter<byte[]> building;
+
+        /** 第一次重建完成前不能用来判断不存在 */
+        private volatile boolean ready;
+
+        /** guava 22的BloomFilter不是线程安全的，并发put会丢位，查询用读锁，放入用写锁 */
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+        Filter(byte[] rawKey, long expectedInsertions, double fpp) {
+            this.rawKey = rawKey;
+            this.expectedInsertions = expectedInsertions;
+            this.fpp = fpp;
+        }
+
+        boolean mightContain(byte[] rawValue) {
+            lock.readLock().lock();
+            try {
+                return current.mightContain(rawValue);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        void put(byte[] rawValue) {
+            lock.writeLock().lock();
+            try {
+                BloomFilter<byte[]> bloomFilter = current;
+                if (bloomFilter != null) {
+                    bloomFilter.put(rawValue);
+                }
+                bloomFilter = building;
+                if (bloomFilter != null) {
+                    bloomFilter.put(rawValue);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+}
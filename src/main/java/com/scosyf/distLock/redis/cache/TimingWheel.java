@@ -0,0 +1,168 @@
+package com.scosyf.distLock.redis.cache;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 分层时间轮，用于过期
+ *
+ * 第0层每格tickMillis，共WHEEL_SIZE格；上一层每格是下一层转一圈的时间，以此类推，
+ * 默认10ms一格时四层可以覆盖二十年，更远的任务放在最高层，转到时重新计算
+ *
+ * 添加任务O(1)，每个tick只处理当前格；上层的格转到时把其中的任务降级放入下层
+ * 任务不支持取消，到期回调时由调用方自己判断是否仍然有效（比如过期时间已经被修改）
+ */
+class TimingWheel {
+
+    /** 每层格数，2的幂 */
+    private static final int WHEEL_BITS = 9;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int LEVELS = 4;
+
+    /**
+     * 到期回调，在推进时间轮的线程上执行，不能有阻塞操作
+     */
+    interface Expirer {
+
+        void expire(String key, long deadline);
+    }
+
+    private final long tickMillis;
+
+    private final Expirer expirer;
+
+    /** [层][格] */
+    private final Bucket[][] buckets;
+
+    /** 已经处理到的tick，只在写锁下修改 */
+    private volatile long currentTick;
+
+    /** 添加任务用读锁可以并发，推进用写锁，保证添加时看到的currentTick不会在放入格子前被越过 */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    TimingWheel(long tickMillis, long startMillis, Expirer expirer) {
+        this.tickMillis = tickMillis;
+        this.expirer = expirer;
+        this.currentTick = startMillis / tickMillis;
+        this.buckets = new Bucket[LEVELS][WHEEL_SIZE];
+        for (int level = 0; level < LEVELS; level++) {
+            for (int slot = 0; slot < WHEEL_SIZE; slot++) {
+                buckets[level][slot] = new Bucket();
+            }
+        }
+    }
+
+    /**
+     * 添加到期任务
+     * @param key
+     * @param deadline 到期时间（毫秒时间戳）
+     */
+    void add(String key, long deadline) {
+        Task task = new Task(key, deadline);
+        lock.readLock().lock();
+        try {
+            if (!place(task)) {
+                // 已经到期，放到下一格，由推进线程回调
+                buckets[0][(int) ((currentTick + 1) & WHEEL_MASK)].add(task);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 推进到某个时间，回调期间到期的任务
+     * @param nowMillis
+     */
+    void advance(long nowMillis) {
+        long targetTick = nowMillis / tickMillis;
+        while (currentTick < targetTick) {
+            lock.writeLock().lock();
+            try {
+                long tick = currentTick + 1;
+                currentTick = tick;
+                // 从高层往低层降级，降级后的任务可能正好落在当前格
+                for (int level = LEVELS - 1; level > 0; level--) {
+                    if ((tick & ((1L << (WHEEL_BITS * level)) - 1)) == 0) {
+                        cascade(level, (int) ((tick >>> (WHEEL_BITS * level)) & WHEEL_MASK));
+                    }
+                }
+                fire(buckets[0][(int) (tick & WHEEL_MASK)]);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * 放入合适的层，已经到期返回false
+     */
+    private boolean place(Task task) {
+        long deadlineTick = task.deadline / tickMillis;
+        long tick = currentTick;
+        if (deadlineTick <= tick) {
+            return false;
+        }
+        for (int level = 0; level < LEVELS; level++) {
+            int shift = WHEEL_BITS * level;
+            if ((deadlineTick >>> shift) - (tick >>> shift) < WHEEL_SIZE) {
+                buckets[level][(int) ((deadlineTick >>> shift) & WHEEL_MASK)].add(task);
+                return true;
+            }
+        }
+        // 超出最高层范围，放到最高层即将转到的最后一格，转到时重新计算
+        int shift = WHEEL_BITS * (LEVELS - 1);
+        buckets[LEVELS - 1][(int) (((tick >>> shift) - 1) & WHEEL_MASK)].add(task);
+        return true;
+    }
+
+    private void cascade(int level, int slot) {
+        Bucket bucket = buckets[level][slot];
+        Task task;
+        while ((task = bucket.poll()) != null) {
+            if (!place(task)) {
+                expirer.expire(task.key, task.deadline);
+            }
+        }
+    }
+
+    private void fire(Bucket bucket) {
+        Task task;
+        while ((task = bucket.poll()) != null) {
+            if (task.deadline / tickMillis <= currentTick) {
+                expirer.expire(task.key, task.deadline);
+            } else {
+                place(task);
+            }
+        }
+    }
+
+    /**
+     * 一格中的任务，添加可以并发
+     */
+    private static class Bucket {
+
+        private final ConcurrentLinkedQueue<Task> tasks = new ConcurrentLinkedQueue<>();
+
+        void add(Task task) {
+            tasks.add(task);
+        }
+
+        Task poll() {
+            return tasks.poll();
+        }
+    }
+
+    private static class Task {
+
+        private final String key;
+
+        private final long deadline;
+
+        Task(String key, long deadline) {
+            this.key = key;
+            this.deadline = deadline;
+        }
+    }
+}
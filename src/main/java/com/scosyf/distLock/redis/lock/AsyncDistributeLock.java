@@ -0,0 +1,203 @@
+package com.scosyf.distLock.redis.lock;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * 异步加锁，基于DistributeLock的同一套key和脚本
+ *
+ * 等待中的加锁请求不占用线程：每次尝试在一个很小的线程池（事件循环）上执行，
+ * 失败后登记释放通知回调和一个重试定时器，两者谁先到就再试一次；
+ * 成千上万个等待中的请求只是一些回调和定时任务
+ *
+ * 配合Spring MVC的DeferredResult使用，等锁期间请求线程可以先归还给容器
+ */
+@Component
+public class AsyncDistributeLock {
+
+    private static Logger logger = LoggerFactory.getLogger(AsyncDistributeLock.class);
+
+    /** 事件循环线程数，只执行单次redis调用，不需要很多 */
+    private static final int LOOP_THREADS = 2;
+
+    @Autowired
+    private DistributeLock distributeLock;
+    @Autowired
+    private LockNotifier lockNotifier;
+
+    private volatile RetryPolicy retryPolicy = RetryPolicies.exponentialBackoff(2L, 50L, TimeUnit.MILLISECONDS);
+
+    private final ScheduledExecutorService loop;
+
+    public AsyncDistributeLock() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(LOOP_THREADS, new ThreadFactory() {
+            private final AtomicInteger index = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "lock-async-" + index.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // 被通知提前唤醒后，取消掉的定时器要及时移出队列
+        executor.setRemoveOnCancelPolicy(true);
+        this.loop = executor;
+    }
+
+    @PreDestroy
+    public void destroy() {
+        loop.shutdownNow();
+    }
+
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * 异步加锁
+     * @param lockKey
+     * @param timeout 最长等待时间
+     * @param unit
+     * @return 加锁成功时为LockHandle，超时为null
+     */
+    public CompletableFuture<LockHandle> tryLockAsync(String lockKey, long timeout, TimeUnit unit) {
+        PendingLock pending = new PendingLock(lockKey, DistributeLock.newValue(), System.nanoTime() + unit.toNanos(timeout));
+        pending.start();
+        return pending.future;
+    }
+
+    /**
+     * 异步释放
+     * @param handle
+     * @return
+     */
+    public CompletableFuture<Boolean> unLockAsync(final LockHandle handle) {
+        return CompletableFuture.supplyAsync(() -> distributeLock.unLock(handle.getLockKey(), handle.getValue()), loop);
+    }
+
+    /**
+     * 一个等待中的加锁请求
+     *
+     * triggers记录触发次数（通知或定时器），只有从0变为1的那次会提交任务，
+     * 执行期间到达的触发不会丢，执行完后发现有新的触发会立即再试一次
+     */
+    private class PendingLock implements Runnable {
+
+        private final String lockKey;
+        private final String key;
+        private final String value;
+        private final long deadline;
+
+        private final CompletableFuture<LockHandle> future = new CompletableFuture<>();
+        private final AtomicInteger triggers = new AtomicInteger();
+
+        private LockNotifier.Waiter waiter;
+        private ScheduledFuture<?> timer;
+        private int attempt;
+        private long delay;
+
+        PendingLock(String lockKey, String value, long deadline) {
+            this.lockKey = lockKey;
+            this.key = DistributeLock.LOCK_KEY_PREFIX + lockKey;
+            this.value = value;
+            this.deadline = deadline;
+        }
+
+        void start() {
+            // 先登记再尝试，避免错过通知；登记完成前到达的通知只计数，不提交任务
+            triggers.set(1);
+            waiter = lockNotifier.register(lockKey, this::trigger);
+            submit();
+        }
+
+        void trigger() {
+            if (triggers.getAndIncrement() == 0) {
+                submit();
+            }
+        }
+
+        private void submit() {
+            try {
+                loop.execute(this);
+            } catch (Exception e) {
+                finish(null, e);
+            }
+        }
+
+        @Override
+        public void run() {
+            for (;;) {
+                int seen = triggers.get();
+                if (attemptOnce()) {
+                    return;
+                }
+                if (triggers.addAndGet(-seen) == 0) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return 是否已经结束（成功、超时或异常）
+         */
+        private boolean attemptOnce() {
+            if (future.isDone()) {
+                return true;
+            }
+            if (timer != null) {
+                timer.cancel(false);
+                timer = null;
+            }
+            Long ttl;
+            try {
+                ttl = distributeLock.acquire(key, value);
+            } catch (Exception e) {
+                logger.error("async try lock error >>> " + e);
+                finish(null, e);
+                return true;
+            }
+            if (ttl == null) {
+                finish(new LockHandle(AsyncDistributeLock.this, lockKey, value), null);
+                return true;
+            }
+            long remaining = deadline - System.nanoTime();
+            delay = retryPolicy.nextDelayNanos(++attempt, delay);
+            if (remaining <= 0 || delay < 0) {
+                finish(null, null);
+                return true;
+            }
+            long wait = Math.min(delay, remaining);
+            if (ttl >= 0) {
+                wait = Math.min(wait, TimeUnit.MILLISECONDS.toNanos(ttl));
+            }
+            timer = loop.schedule(this::trigger, Math.max(wait, 0L), TimeUnit.NANOSECONDS);
+            return false;
+        }
+
+        private void finish(LockHandle handle, Throwable error) {
+            lockNotifier.unregister(waiter);
+            if (timer != null) {
+                timer.cancel(false);
+                timer = null;
+            }
+            if (error != null) {
+                future.completeExceptionally(error);
+            } else {
+                future.complete(handle);
+            }
+        }
+    }
+}
@@ -1,11 +1,21 @@
 package com.scosyf.distLock.redis.lock;
 
+import java.util.Collection;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
-import com.google.common.collect.Lists;
+import com.scosyf.distLock.metrics.Metrics;
+import com.scosyf.distLock.redis.pipeline.AutoPipeline;
 
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
@@ -15,15 +25,15 @@ import redis.clients.jedis.JedisPool;
  * 
  * 分布式锁为了解决：
  *      1.安全独享，任意时刻只有一个线程持有
- *          > value需要唯一标识，系统时间+id（每台服务器时间须一致）
- *          > 补充问题：如何保证过期时间大于业务时间 TODO
+ *          > value需要唯一标识，JVM标识+序号（newValue），本地闸门和释放都靠它区分持有者
+ *          > 补充问题：如何保证过期时间大于业务时间 -> LockWatchdog续期（lock方法开启watchdog）
  *      2.无死锁：即使持锁线程崩溃或网络问题，锁仍能正常释放被其他线程获取
  *          > 设置锁过期时间（重试时间）
  *          > 避免释放其他线程锁，需要在释放前检查value，且保证get和del是原子性的（i++）
  *      3.容错：若大部分redis节点活着，线程就可以获取和释放锁（多节点环境）
  *
  *      
- * 多节点用Redlock     
+ * 多节点用Redlock -> RedLock
  * http://www.redis.cn/topics/distlock
  * https://juejin.im/post/5b737b9b518825613d3894f4
  */
@@ -41,8 +51,40 @@ public class DistributeLock {
     /** key前缀 */
     public static final String LOCK_KEY_PREFIX = "cache:lock:dist:";
     
+    /** 默认重试策略，没有收到释放通知时的轮询间隔 */
+    private volatile RetryPolicy defaultRetryPolicy = RetryPolicies.exponentialBackoff(2L, 50L, TimeUnit.MILLISECONDS);
+
+    /** 按key指定的重试策略 */
+    private final Map<String, RetryPolicy> keyRetryPolicies = new ConcurrentHashMap<>();
+
+    /** 本地合并竞争，同一JVM同一key只有一个线程访问redis */
+    private final LocalLockGate localLockGate = new LocalLockGate();
+
+    private volatile boolean localCoalescing = true;
+
+    /** 打开指标时记录加锁成功的时间，unLock时算持有时间；key + value -> nanoTime */
+    private final Map<String, Long> holdStarts = new ConcurrentHashMap<>();
+
+    /** holdStarts上限，只加锁不释放的调用方不会让它无限增长 */
+    private static final int MAX_HOLD_STARTS = 10000;
+
+    /** 当前JVM标识，newValue()用 */
+    private static final String JVM_ID = UUID.randomUUID().toString();
+
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    /** jedisPool借连接耗时的指标key */
+    private static final String POOL_NAME = "jedisPool";
+
     @Autowired
     private JedisPool jedisPool;
+    /** 配置了就走共享连接自动pipeline，不再从jedisPool借连接 */
+    @Autowired(required = false)
+    private AutoPipeline autoPipeline;
+    @Autowired
+    private LockNotifier lockNotifier;
+    @Autowired
+    private LockWatchdog lockWatchdog;
     
     /**
      * 直接用于业务
@@ -51,8 +93,19 @@ public class DistributeLock {
      * @return
      */
     public boolean lock(String lockKey, BizHandler handler) {
+        return lock(lockKey, handler, false);
+    }
+
+    /**
+     * 直接用于业务
+     * @param lockKey
+     * @param handler
+     * @param watchdog 是否由看门狗自动续期，业务时间可能超过LOCK_EXPIRE_TIME时开启
+     * @return
+     */
+    public boolean lock(String lockKey, BizHandler handler, boolean watchdog) {
         boolean lock = false;
-        String newLockTimeValue = Long.toString(System.currentTimeMillis() + LOCK_EXPIRE_TIME);
+        String newLockTimeValue = newValue();
         try {
             lock = tryLock(lockKey, newLockTimeValue);
         } catch (Exception e) {
@@ -62,44 +115,253 @@ public class DistributeLock {
         if (!lock) {
             return false;
         }
+        LockWatchdog.Lease lease = null;
+        if (watchdog) {
+            lease = lockWatchdog.watch(LOCK_KEY_PREFIX + lockKey, newLockTimeValue, LOCK_EXPIRE_TIME);
+        }
         try {
             return handler.doBiz();
         } finally {
+            if (lease != null) {
+                lockWatchdog.unwatch(lease);
+                if (lease.isLost()) {
+                    logger.warn("lock >>> lease lost during biz >>> " + lockKey);
+                    Metrics.increment("lock.leaseLost", lockKey);
+                }
+            }
             unLock(lockKey, newLockTimeValue);
         }
     }
     
     /**
-     * 
+     * 生成唯一的锁value，同一毫秒加锁的两个线程、不同JVM也不会相同
+     * @return
+     */
+    public static String newValue() {
+        return JVM_ID + ":" + SEQUENCE.incrementAndGet();
+    }
+
+    /**
+     * 加锁，使用该key登记的重试策略，等待LOCK_TIMEOUT
      * @param lockKey
-     * @param newValue
+     * @param newValue 每次加锁唯一，用newValue()生成
      * @return
      */
     public boolean tryLock(String lockKey, String newValue) {
-        Jedis jedis = null;
-        try {
-            jedis = jedisPool.getResource();
+        return tryLock(lockKey, newValue, LOCK_TIMEOUT, TimeUnit.MILLISECONDS, retryPolicyOf(lockKey));
+    }
 
-            Long lockBeginTime = System.currentTimeMillis();
-            String key = LOCK_KEY_PREFIX + lockKey;
-            for (;;) {
-                if ((System.currentTimeMillis() - lockBeginTime) > LOCK_TIMEOUT) {
+    /**
+     * 加锁，抢不到时阻塞等待释放通知，而不是循环发送SET
+     * 每次等待不超过重试策略给出的间隔和锁的剩余过期时间（兜底过期释放和通知丢失），
+     * 收到释放通知则提前醒来重试；等待期间不持有redis连接
+     * @param lockKey
+     * @param newValue
+     * @param timeout 最长等待时间
+     * @param unit
+     * @param retryPolicy
+     * @return
+     */
+    public boolean tryLock(String lockKey, final String newValue, long timeout, TimeUnit unit, RetryPolicy retryPolicy) {
+        final String key = LOCK_KEY_PREFIX + lockKey;
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        long start = Metrics.start();
+        final int[] attempts = new int[1];
+        String outcome = "lock.timeout";
+        boolean gated = false;
+        boolean lock = false;
+        try {
+            // 本地先排队，同一个JVM同一时刻只有一个线程去redis抢这个key
+            if (localCoalescing) {
+                if (!localLockGate.enter(lockKey, newValue, LOCK_EXPIRE_TIME, timeout, unit)) {
                     return false;
                 }
-                /**
-                 * 保证设置过期时间和设置锁具有原子性（基础版中的合并）
-                 * TODO 这个也避免了getset方法将原本没过期的锁的value刷新掉
-                 * 
-                 * set:如果key不存在(NX)则保存value，且设置过期毫秒(PX)时间
-                 */
-                String result = jedis.set(key, newValue, "NX", "PX", LOCK_EXPIRE_TIME);
-                if ("OK".equals(result)) {
-                    return true;
+                gated = true;
+            }
+            lock = LockAcquirer.acquire(lockNotifier, lockKey, deadline - System.nanoTime(), retryPolicy, new LockAcquirer.Attempt() {
+                @Override
+                public Long tryAcquire() {
+                    attempts[0]++;
+                    return acquire(key, newValue);
+                }
+            });
+            if (lock) {
+                outcome = "lock.acquired";
+                if (start != 0L && holdStarts.size() < MAX_HOLD_STARTS) {
+                    holdStarts.put(lockKey + '\n' + newValue, System.nanoTime());
                 }
             }
+            return lock;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            outcome = "lock.interrupted";
+            return false;
         } catch (Exception e) {
             logger.error("try lock error >>> " + e);
+            outcome = "lock.error";
+            return false;
+        } finally {
+            if (gated && !lock) {
+                localLockGate.exit(lockKey, newValue);
+            }
+            if (start != 0L) {
+                Metrics.recordSince("lock.wait", lockKey, start);
+                Metrics.record("lock.attempts", lockKey, attempts[0]);
+                Metrics.increment(outcome, lockKey);
+            }
+        }
+    }
+
+    /**
+     * 批量加锁后执行业务，多个资源（比如一个订单里的多个SKU）一次加锁
+     * @param lockKeys
+     * @param handler
+     * @return
+     */
+    public boolean lockAll(Collection<String> lockKeys, BizHandler handler) {
+        String newLockTimeValue = newValue();
+        if (!tryLockAll(lockKeys, newLockTimeValue)) {
+            return false;
+        }
+        try {
+            return handler.doBiz();
+        } finally {
+            unLockAll(lockKeys, newLockTimeValue);
+        }
+    }
+
+    /**
+     * 批量加锁，等待LOCK_TIMEOUT
+     * @param lockKeys
+     * @param newValue
+     * @return
+     */
+    public boolean tryLockAll(Collection<String> lockKeys, String newValue) {
+        return tryLockAll(lockKeys, newValue, LOCK_TIMEOUT, TimeUnit.MILLISECONDS, defaultRetryPolicy);
+    }
+
+    /**
+     * 批量加锁，一个lua脚本里全部加上或者一个都不加，一次往返；
+     * 不存在部分持有的中间状态，所以不同业务以不同顺序加同一批锁也不会死锁
+     * 
+     * 不经过本地闸门，任意一个key收到释放通知都会提前醒来重试
+     * @param lockKeys
+     * @param newValue
+     * @param timeout
+     * @param unit
+     * @param retryPolicy
+     * @return
+     */
+    public boolean tryLockAll(Collection<String> lockKeys, final String newValue, long timeout, TimeUnit unit, RetryPolicy retryPolicy) {
+        // 去重排序，保证同一批key生成的脚本参数一致
+        final SortedSet<String> sortedKeys = new TreeSet<>(lockKeys);
+        final String[] params = new String[sortedKeys.size() + 2];
+        int i = 0;
+        for (String lockKey : sortedKeys) {
+            params[i++] = LOCK_KEY_PREFIX + lockKey;
+        }
+        params[i++] = newValue;
+        params[i] = Long.toString(LOCK_EXPIRE_TIME);
+        try {
+            return LockAcquirer.acquire(lockNotifier, sortedKeys, unit.toNanos(timeout), retryPolicy, new LockAcquirer.Attempt() {
+                @Override
+                public Long tryAcquire() {
+                    return (Long) eval(LockScripts.LOCK_ALL, sortedKeys.size(), params);
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (Exception e) {
+            logger.error("try lock all error >>> " + e);
             return false;
+        }
+    }
+
+    /**
+     * 批量释放，一次往返
+     * @param lockKeys
+     * @param oldValue
+     * @return 是否全部释放成功
+     */
+    public boolean unLockAll(Collection<String> lockKeys, String oldValue) {
+        SortedSet<String> sortedKeys = new TreeSet<>(lockKeys);
+        int n = sortedKeys.size();
+        String[] params = new String[n * 2 + 2];
+        int i = 0;
+        for (String lockKey : sortedKeys) {
+            params[i] = LOCK_KEY_PREFIX + lockKey;
+            params[n + i] = LockNotifier.channel(lockKey);
+            i++;
+        }
+        params[n * 2] = oldValue;
+        params[n * 2 + 1] = Integer.toString(n);
+        try {
+            Object result = eval(LockScripts.UNLOCK_ALL, n * 2, params);
+            return Long.valueOf(n).equals(result);
+        } catch (Exception e) {
+            logger.error("unLock all error >>> " + e);
+            return false;
+        }
+    }
+
+    /**
+     * 为某个key单独指定重试策略
+     * @param lockKey
+     * @param retryPolicy
+     */
+    public void setRetryPolicy(String lockKey, RetryPolicy retryPolicy) {
+        keyRetryPolicies.put(lockKey, retryPolicy);
+    }
+
+    public void setDefaultRetryPolicy(RetryPolicy defaultRetryPolicy) {
+        this.defaultRetryPolicy = defaultRetryPolicy;
+    }
+
+    /**
+     * 是否在本地合并同一key的竞争，默认开启
+     * @param localCoalescing
+     */
+    public void setLocalCoalescing(boolean localCoalescing) {
+        this.localCoalescing = localCoalescing;
+    }
+
+    private RetryPolicy retryPolicyOf(String lockKey) {
+        RetryPolicy retryPolicy = keyRetryPolicies.get(lockKey);
+        return retryPolicy != null ? retryPolicy : defaultRetryPolicy;
+    }
+
+    /**
+     * 借连接，打开指标时记录耗时，池耗尽时这里会等到maxWait
+     * @return
+     */
+    private Jedis borrow() {
+        long start = Metrics.start();
+        try {
+            return jedisPool.getResource();
+        } catch (RuntimeException e) {
+            Metrics.increment("redis.borrow.error", POOL_NAME);
+            throw e;
+        } finally {
+            Metrics.recordSince("redis.borrow", POOL_NAME, start);
+        }
+    }
+
+    /**
+     * 执行脚本：配置了AutoPipeline时和其他线程的命令合并发送，否则借用连接后立即归还
+     * @param script
+     * @param keyCount
+     * @param params
+     * @return
+     */
+    private Object eval(LuaScript script, int keyCount, String... params) {
+        if (autoPipeline != null) {
+            return script.eval(autoPipeline, keyCount, params);
+        }
+        Jedis jedis = null;
+        try {
+            jedis = borrow();
+            return script.eval(jedis, keyCount, params);
         } finally {
             if (jedis != null) {
                 jedisPool.returnResource(jedis);
@@ -107,13 +369,23 @@ public class DistributeLock {
         }
     }
 
-    //lua脚本，将get和del合并为原子性操作
-    public String luaScript = "if redis.call('get', KEYS[1]) == ARGV[1] then " + 
-                                  "return redis.call('del', KEYS[1]) " + 
-                              "else " + 
-                                  "return 0 " + 
-                              "end";
-    
+    /**
+     * 单次加锁
+     * @param key
+     * @param newValue
+     * @return null表示加锁成功，否则为锁的剩余过期时间（毫秒）
+     */
+    Long acquire(String key, String newValue) {
+        /**
+         * 保证设置过期时间和设置锁具有原子性（基础版中的合并）
+         * TODO 这个也避免了getset方法将原本没过期的锁的value刷新掉
+         * 
+         * set:如果key不存在(NX)则保存value，且设置过期毫秒(PX)时间
+         * 失败时顺便带回pttl，用于决定最长等待多久
+         */
+        return (Long) eval(LockScripts.ACQUIRE, 1, key, newValue, Long.toString(LOCK_EXPIRE_TIME));
+    }
+
     /**
      * 
      * @param lockKey
@@ -121,21 +393,25 @@ public class DistributeLock {
      * @return
      */
     public boolean unLock(String lockKey, String oldValue) {
-        Jedis jedis = null;
+        Long holdStart = holdStarts.isEmpty() ? null : holdStarts.remove(lockKey + '\n' + oldValue);
+        if (holdStart != null) {
+            Metrics.recordSince("lock.hold", lockKey, holdStart);
+        }
         try {
-            jedis = jedisPool.getResource();
             String key = LOCK_KEY_PREFIX + lockKey;
-            //
-            Object result = jedis.eval(luaScript, Lists.newArrayList(key), Lists.newArrayList(oldValue));
-            if ("1".equals(result)) {
+            //lua脚本，将get和del合并为原子性操作，释放成功后通知等待者
+            Object result = eval(LockScripts.RELEASE, 2, key, LockNotifier.channel(lockKey), oldValue);
+            if (Long.valueOf(1L).equals(result)) {
                 return true;
             }
+            // 释放时锁已经不是自己的：业务期间过期了（可能已被别人拿走）
+            Metrics.increment("lock.expired", lockKey);
         } catch (Exception e) {
             logger.error("unLock error >>> " + e);
+            Metrics.increment("unlock.error", lockKey);
         } finally {
-            if (jedis != null) {
-                jedisPool.returnResource(jedis);
-            }
+            // redis释放之后再放行本地下一个线程
+            localLockGate.exit(lockKey, oldValue);
         }
         return false;
     }
@@ -1,9 +1,12 @@
 package com.scosyf.distLock.redis.lock;
 
+import java.util.concurrent.TimeUnit;
+
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.scosyf.distLock.metrics.Metrics;
 import com.scosyf.distLock.redis.cache.CacheManager;
 
 
@@ -43,9 +46,13 @@ public class DistributeLockBasic {
     public static final long LOCK_TIMEOUT = 200L;
     /** 重试次数 */
     // public static final int LOOP_TIME = 50; //如果不使用轮询，则需要配置重试次数
+    // 现在由RetryPolicies.boundedAttempts控制
 
     public static final String LOCK_KEY_PREFIX = "cache:lock:";
     
+    /** 默认重试策略 */
+    public static final RetryPolicy DEFAULT_RETRY_POLICY = RetryPolicies.exponentialBackoff(2L, 50L, TimeUnit.MILLISECONDS);
+
     /**
      * 获取锁
      * @param cacheManager
@@ -54,36 +61,77 @@ public class DistributeLockBasic {
      * @return
      */
     public static boolean lock(CacheManager cacheManager, String lockKey, BizHandler bizHandler) {
+        return lock(cacheManager, lockKey, bizHandler, LOCK_TIMEOUT, TimeUnit.MILLISECONDS, DEFAULT_RETRY_POLICY);
+    }
+
+    /**
+     * 获取锁
+     * @param cacheManager
+     * @param lockKey
+     * @param bizHandler
+     * @param timeout 最长等待时间
+     * @param unit
+     * @param retryPolicy 两次尝试之间的等待策略
+     * @return
+     */
+    public static boolean lock(CacheManager cacheManager, String lockKey, BizHandler bizHandler,
+                               long timeout, TimeUnit unit, RetryPolicy retryPolicy) {
         boolean lock;
-        // 加锁开始
-        Long lockBeginTime = System.currentTimeMillis();
+        // 加锁开始，等待预算用nanoTime计算，不受系统时间调整影响
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
         // 设置加锁时间
-        String newLockTime = Long.toString(lockBeginTime + LOCK_EXPIRE_TIME);
+        String newLockTime = Long.toString(System.currentTimeMillis() + LOCK_EXPIRE_TIME);
+        long start = Metrics.start();
+        int attempts = 0;
+        String outcome = "basicLock.timeout";
         
         try {
-            // for (int i = 0; i < LOOP_TIME; i++) {
-            for (;;) {
+            long delay = 0L;
+            for (int attempt = 1; ; attempt++) {
+                attempts = attempt;
+                if (innerLock(cacheManager, LOCK_KEY_PREFIX + lockKey, newLockTime)) {
+                    lock = true ;
+                    outcome = "basicLock.acquired";
+                    break;
+                }
                 // 检查是否超过重试时间
-                if ((System.currentTimeMillis() - lockBeginTime) > LOCK_TIMEOUT) {
+                long remaining = deadline - System.nanoTime();
+                delay = retryPolicy.nextDelayNanos(attempt, delay);
+                if (remaining <= 0 || delay < 0) {
                     lock = false;
                     break;
                 }
-                if (innerLock(cacheManager, LOCK_KEY_PREFIX + lockKey, newLockTime)) {
-                    lock = true ;
-                    break;
+                if (delay > 0) {
+                    TimeUnit.NANOSECONDS.sleep(Math.min(delay, remaining));
                 }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            lock = false;
+            outcome = "basicLock.interrupted";
         } catch (Exception e) {
             logger.error("try lock error >>> " + e);
             lock = false;
+            outcome = "basicLock.error";
+        }
+        if (start != 0L) {
+            Metrics.recordSince("basicLock.wait", lockKey, start);
+            Metrics.record("basicLock.attempts", lockKey, attempts);
+            Metrics.increment(outcome, lockKey);
         }
         //如果获取到锁则执行业务
         if (!lock) {
             return false;
         }
+        long holdStart = Metrics.start();
         try {
             return bizHandler.doBiz();
         } finally {
+            Metrics.recordSince("basicLock.hold", lockKey, holdStart);
+            // 业务结束时已经过了锁上记录的过期时间，期间锁可能被别人拿走
+            if (holdStart != 0L && System.currentTimeMillis() > Long.parseLong(newLockTime)) {
+                Metrics.increment("basicLock.expired", lockKey);
+            }
             //有可能释放锁的时候出现异常，即没拿到锁对应的时间
             try {
                 unLock(cacheManager, lockKey, newLockTime);
@@ -113,9 +161,8 @@ public class DistributeLockBasic {
 
         //锁已经存在的情况下，获取上次加锁时间
         String lastLockTime = (String) cacheManager.getObject(lockKey).getModule();
-        //TODO 这里用getString()取到的value会带上\xAC\xED\x00\x05t\x00\x0D，原因是序列化问题
-        //     虽然设置了String序列化器，但是貌似不行，用原始redisTemplate，配置中
-        //     <property name="hashKeySerializer" ref="stringRedisSerializer" />
+        // 原来value用JDK序列化，getString()取到的value会带上\xAC\xED\x00\x05t\x00\x0D；
+        // 现在redisTemplate的value序列化换成了CompactRedisSerializer，String原样存储，两种取法结果一致
 
         // 如果锁不存在或者，当前系统时间 > 锁的旧时间，表示已过期，可以尝试上锁
         if (StringUtils.isNotBlank(lastLockTime) || System.currentTimeMillis() > Long.valueOf(lastLockTime)) { 
@@ -0,0 +1,176 @@
+package com.scosyf.distLock.redis.lock;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.scosyf.distLock.redis.pipeline.AutoPipeline;
+
+import redis.clients.jedis.JedisPool;
+
+/**
+ * 分布式读写锁，读多写少的临界区（比如查库存）用读锁，读者之间互不阻塞
+ *
+ * redis中用hash保存：key -> {mode: read/write, owner1: 次数, owner2: 次数...}
+ * 以及每个读者的到期时间：key:readers -> zset(owner, 到期时间)
+ *      > 读锁：没有写锁时计数+1，多个读者可以同时持有；
+ *        读者各自到期，进程挂掉的读者到期后在下一次加锁时被清掉，不会因为新读者不断续期而一直占着
+ *      > 写锁：没有任何读写者时才能加，独占
+ *      > 写优先：写者抢锁失败时留下一个等待标记，新的读者看到标记就不再进入，
+ *        已有读者释放完后写者就能拿到锁，避免读者源源不断导致写者饿死
+ *
+ * 释放都是lua原子操作，最后一个持有者离开时通知等待者
+ */
+@Component
+public class DistributeReadWriteLock {
+
+    private static Logger logger = LoggerFactory.getLogger(DistributeReadWriteLock.class);
+
+    /** key前缀，与DistributeLock同一命名空间 */
+    public static final String LOCK_KEY_PREFIX = DistributeLock.LOCK_KEY_PREFIX + "rw:";
+
+    /** 写者等待标记的后缀 */
+    private static final String WRITE_WAIT_SUFFIX = ":write-wait";
+
+    /** 读者到期时间的后缀 */
+    private static final String READERS_SUFFIX = ":readers";
+
+    @Autowired
+    private JedisPool jedisPool;
+    /** 配置了就走共享连接自动pipeline */
+    @Autowired(required = false)
+    private AutoPipeline autoPipeline;
+    @Autowired
+    private LockNotifier lockNotifier;
+
+    private volatile boolean writerPreference = true;
+
+    private volatile RetryPolicy retryPolicy = RetryPolicies.exponentialBackoff(2L, 50L, TimeUnit.MILLISECONDS);
+
+    /**
+     * 读锁下执行业务
+     * @param lockKey
+     * @param handler
+     * @return
+     */
+    public boolean readLock(String lockKey, BizHandler handler) {
+        String value = DistributeLock.newValue();
+        if (!tryReadLock(lockKey, value)) {
+            return false;
+        }
+        try {
+            return handler.doBiz();
+        } finally {
+            unReadLock(lockKey, value);
+        }
+    }
+
+    /**
+     * 写锁下执行业务
+     * @param lockKey
+     * @param handler
+     * @return
+     */
+    public boolean writeLock(String lockKey, BizHandler handler) {
+        String value = DistributeLock.newValue();
+        if (!tryWriteLock(lockKey, value)) {
+            return false;
+        }
+        try {
+            return handler.doBiz();
+        } finally {
+            unWriteLock(lockKey, value);
+        }
+    }
+
+    public boolean tryReadLock(String lockKey, String value) {
+        return tryReadLock(lockKey, value, DistributeLock.LOCK_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     *
+     * @param lockKey
+     * @param value 读者标识，释放时使用
+     * @param timeout
+     * @param unit
+     * @return
+     */
+    public boolean tryReadLock(String lockKey, String value, long timeout, TimeUnit unit) {
+        return tryAcquire(LockScripts.READ_ACQUIRE, lockKey, value, timeout, unit);
+    }
+
+    public boolean unReadLock(String lockKey, String value) {
+        return release(LockScripts.READ_RELEASE, lockKey, value);
+    }
+
+    public boolean tryWriteLock(String lockKey, String value) {
+        return tryWriteLock(lockKey, value, DistributeLock.LOCK_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     *
+     * @param lockKey
+     * @param value 写者标识，释放时使用
+     * @param timeout
+     * @param unit
+     * @return
+     */
+    public boolean tryWriteLock(String lockKey, String value, long timeout, TimeUnit unit) {
+        return tryAcquire(LockScripts.WRITE_ACQUIRE, lockKey, value, timeout, unit);
+    }
+
+    public boolean unWriteLock(String lockKey, String value) {
+        return release(LockScripts.WRITE_RELEASE, lockKey, value);
+    }
+
+    /**
+     * 是否写优先，默认开启
+     * @param writerPreference
+     */
+    public void setWriterPreference(boolean writerPreference) {
+        this.writerPreference = writerPreference;
+    }
+
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    private boolean tryAcquire(final LuaScript script, String lockKey, String value, long timeout, TimeUnit unit) {
+        final String key = LOCK_KEY_PREFIX + lockKey;
+        final String[] params = {key, key + WRITE_WAIT_SUFFIX, key + READERS_SUFFIX, value,
+                Long.toString(DistributeLock.LOCK_EXPIRE_TIME), writerPreference ? "1" : "0"};
+        try {
+            return LockAcquirer.acquire(lockNotifier, channelKey(lockKey), unit.toNanos(timeout), retryPolicy, new LockAcquirer.Attempt() {
+                @Override
+                public Long tryAcquire() {
+                    return (Long) script.eval(autoPipeline, jedisPool, 3, params);
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (Exception e) {
+            logger.error("try read write lock error >>> " + e);
+            return false;
+        }
+    }
+
+    private boolean release(LuaScript script, String lockKey, String value) {
+        try {
+            String key = LOCK_KEY_PREFIX + lockKey;
+            Object result = script.eval(autoPipeline, jedisPool, 3, key, LockNotifier.channel(channelKey(lockKey)),
+                    key + READERS_SUFFIX, value);
+            return Long.valueOf(1L).equals(result);
+        } catch (Exception e) {
+            logger.error("unLock read write lock error >>> " + e);
+            return false;
+        }
+    }
+
+    private static String channelKey(String lockKey) {
+        return "rw:" + lockKey;
+    }
+}
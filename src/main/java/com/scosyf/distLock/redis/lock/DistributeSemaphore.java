@@ -0,0 +1,137 @@
+package com.scosyf.distLock.redis.lock;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.scosyf.distLock.redis.pipeline.AutoPipeline;
+
+import redis.clients.jedis.JedisPool;
+
+/**
+ * 分布式信号量，允许N个持有者同时进入，而不是像互斥锁一样只有一个
+ *
+ * redis中用zset保存已发出的许可：member为许可id，score为到期时间
+ *      > 获取：清掉已到期的许可，数量不足N时占一个，一次lua调用
+ *      > 释放：删除许可并通知等待者，一次lua调用
+ *      > 持有者崩溃时许可到期自动回收，不会永久占用
+ *
+ * 到期时间用redis的时间计算，各服务器时钟不一致也不会提前回收别人的许可
+ */
+@Component
+public class DistributeSemaphore {
+
+    private static Logger logger = LoggerFactory.getLogger(DistributeSemaphore.class);
+
+    /** key前缀 */
+    public static final String SEMAPHORE_KEY_PREFIX = DistributeLock.LOCK_KEY_PREFIX + "semaphore:";
+
+    @Autowired
+    private JedisPool jedisPool;
+    /** 配置了就走共享连接自动pipeline */
+    @Autowired(required = false)
+    private AutoPipeline autoPipeline;
+    @Autowired
+    private LockNotifier lockNotifier;
+
+    /** 许可租期 */
+    private volatile long leaseMillis = DistributeLock.LOCK_EXPIRE_TIME;
+
+    private volatile RetryPolicy retryPolicy = RetryPolicies.exponentialBackoff(2L, 50L, TimeUnit.MILLISECONDS);
+
+    /**
+     * 获取一个许可后执行业务
+     * @param semaphoreKey
+     * @param permits 许可总数
+     * @param handler
+     * @return
+     */
+    public boolean acquire(String semaphoreKey, int permits, BizHandler handler) {
+        String permitId = DistributeLock.newValue();
+        if (!tryAcquire(semaphoreKey, permitId, permits)) {
+            return false;
+        }
+        try {
+            return handler.doBiz();
+        } finally {
+            release(semaphoreKey, permitId);
+        }
+    }
+
+    public boolean tryAcquire(String semaphoreKey, String permitId, int permits) {
+        return tryAcquire(semaphoreKey, permitId, permits, DistributeLock.LOCK_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     *
+     * @param semaphoreKey
+     * @param permitId 许可id，释放时使用，需要全局唯一；同一个id重复获取只会续期
+     * @param permits 许可总数，所有调用方需要一致，必须大于0
+     * @param timeout
+     * @param unit
+     * @return
+     */
+    public boolean tryAcquire(String semaphoreKey, final String permitId, final int permits, long timeout, TimeUnit unit) {
+        if (permits <= 0) {
+            throw new IllegalArgumentException("permits > 0");
+        }
+        final String key = SEMAPHORE_KEY_PREFIX + semaphoreKey;
+        try {
+            return LockAcquirer.acquire(lockNotifier, channelKey(semaphoreKey), unit.toNanos(timeout), retryPolicy, new LockAcquirer.Attempt() {
+                @Override
+                public Long tryAcquire() {
+                    return (Long) LockScripts.SEMAPHORE_ACQUIRE.eval(autoPipeline, jedisPool, 1, key, permitId,
+                            Long.toString(leaseMillis), Integer.toString(permits));
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (Exception e) {
+            logger.error("semaphore try acquire error >>> " + e);
+            return false;
+        }
+    }
+
+    /**
+     * 归还许可
+     * @param semaphoreKey
+     * @param permitId
+     * @return 许可已经到期被回收时为false
+     */
+    public boolean release(String semaphoreKey, String permitId) {
+        try {
+            Object result = LockScripts.SEMAPHORE_RELEASE.eval(autoPipeline, jedisPool, 2, SEMAPHORE_KEY_PREFIX + semaphoreKey,
+                    LockNotifier.channel(channelKey(semaphoreKey)), permitId);
+            return Long.valueOf(1L).equals(result);
+        } catch (Exception e) {
+            logger.error("semaphore release error >>> " + e);
+            return false;
+        }
+    }
+
+    /**
+     * 当前未到期的许可数
+     * @param semaphoreKey
+     * @return
+     */
+    public long usedPermits(String semaphoreKey) {
+        // 和获取时一样以redis的时间为准
+        return (Long) LockScripts.SEMAPHORE_USED.eval(autoPipeline, jedisPool, 1, SEMAPHORE_KEY_PREFIX + semaphoreKey);
+    }
+
+    public void setLeaseMillis(long leaseMillis) {
+        this.leaseMillis = leaseMillis;
+    }
+
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    private static String channelKey(String semaphoreKey) {
+        return "semaphore:" + semaphoreKey;
+    }
+}
@@ -0,0 +1,226 @@
+package com.scosyf.distLock.redis.lock;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.scosyf.distLock.metrics.Metrics;
+import com.scosyf.distLock.redis.pipeline.AutoPipeline;
+
+import redis.clients.jedis.JedisPool;
+
+/**
+ * 公平分布式锁，按到达顺序获得锁
+ *
+ * DistributeLock抢不到时各自重试，释放后谁恰好先重试谁拿到，高并发下有的请求一直抢不到直到超时，尾延迟很高；
+ * 这里抢不到的请求在redis中排队：
+ *      > key          锁本身，value为持有者
+ *      > key:queue    等待队列（list），按到达顺序
+ *      > key:timeouts 等待者租期（zset），等待者每次重试都会续租
+ *
+ * 锁空闲时只有队头能拿到锁；释放时只通知队头的等待者（每个等待者一个通知频道），其他等待者不会被唤醒
+ * 等待者所在进程挂掉后不再续租，租期一过就会在下一次加锁/释放时从队头清掉，队列不会被卡住；
+ * 等待超时的请求主动离开队列
+ *
+ * 租期和没有通知时的轮询间隔按调用方的等待时间计算：
+ *      > 租期 = 等待时间，限制在[MIN_WAITER_LEASE, WAITER_LEASE]之间；轮询间隔 = 租期/4，不超过等待时间/4
+ *      > 轮询用来续租，也是通知丢失时的兜底，等待时间很短（默认LOCK_TIMEOUT=100ms）时也能轮询几次
+ *      > 取舍：租期越短，挂掉的等待者越快被清掉，但网络抖动或GC停顿超过租期时活着的等待者会被当成挂掉、失去位置；
+ *        轮询越密，通知丢失后越快重试，但每个等待者对redis的请求越多
+ *
+ * 不经过本地闸门：本地合并会打乱到达顺序
+ */
+@Component
+public class FairDistributeLock {
+
+    private static Logger logger = LoggerFactory.getLogger(FairDistributeLock.class);
+
+    /** key前缀，与DistributeLock的锁区分开 */
+    public static final String LOCK_KEY_PREFIX = DistributeLock.LOCK_KEY_PREFIX + "fair:";
+
+    /** 等待者租期的上限，每次重试续租，超过租期没有续租的等待者被视为已经挂掉 */
+    public static final long WAITER_LEASE = 2000L;
+
+    /** 等待者租期的下限，要容得下几次往返和短暂的停顿 */
+    public static final long MIN_WAITER_LEASE = 100L;
+
+    /** 轮询间隔的下限 */
+    private static final long MIN_POLL_INTERVAL = 5L;
+
+    /** 没有通知时的轮询策略，为null时按等待时间计算（见类注释） */
+    private volatile RetryPolicy retryPolicy;
+
+    @Autowired
+    private JedisPool jedisPool;
+    /** 配置了就走共享连接自动pipeline */
+    @Autowired(required = false)
+    private AutoPipeline autoPipeline;
+    @Autowired
+    private LockNotifier lockNotifier;
+
+    /**
+     * 直接用于业务
+     * @param lockKey
+     * @param handler
+     * @return
+     */
+    public boolean lock(String lockKey, BizHandler handler) {
+        String value = DistributeLock.newValue();
+        if (!tryLock(lockKey, value)) {
+            return false;
+        }
+        try {
+            return handler.doBiz();
+        } finally {
+            unLock(lockKey, value);
+        }
+    }
+
+    /**
+     * 加锁，等待LOCK_TIMEOUT
+     * @param lockKey
+     * @param value 每次加锁唯一，同时是排队的标识
+     * @return
+     */
+    public boolean tryLock(String lockKey, String value) {
+        return tryLock(lockKey, value, DistributeLock.LOCK_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 加锁，排队等待直到轮到自己或者超时，超时后离开队列
+     * @param lockKey
+     * @param value 每次加锁唯一，同时是排队的标识
+     * @param timeout 最长等待时间
+     * @param unit
+     * @return
+     */
+    public boolean tryLock(final String lockKey, final String value, long timeout, TimeUnit unit) {
+        long start = Metrics.start();
+        long timeoutMillis = unit.toMillis(timeout);
+        final long waiterLease = waiterLease(timeoutMillis);
+        RetryPolicy policy = retryPolicy;
+        if (policy == null) {
+            policy = RetryPolicies.fixedDelay(pollInterval(timeoutMillis, waiterLease), TimeUnit.MILLISECONDS);
+        }
+        final int[] attempts = new int[1];
+        String outcome = "fairLock.timeout";
+        boolean lock = false;
+        try {
+            // 只登记自己的频道，释放时只有队头被唤醒
+            lock = LockAcquirer.acquire(lockNotifier, waiterChannelKey(lockKey, value), unit.toNanos(timeout), policy, new LockAcquirer.Attempt() {
+                @Override
+                public Long tryAcquire() {
+                    attempts[0]++;
+                    return (Long) eval(LockScripts.FAIR_ACQUIRE, 3, keys(lockKey, value,
+                            Long.toString(DistributeLock.LOCK_EXPIRE_TIME), Long.toString(waiterLease)));
+                }
+            });
+            if (lock) {
+                outcome = "fairLock.acquired";
+            }
+            return lock;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            outcome = "fairLock.interrupted";
+            return false;
+        } catch (Exception e) {
+            logger.error("fair try lock error >>> " + e);
+            outcome = "fairLock.error";
+            return false;
+        } finally {
+            if (!lock) {
+                cancel(lockKey, value);
+            }
+            if (start != 0L) {
+                Metrics.recordSince("fairLock.wait", lockKey, start);
+                Metrics.record("fairLock.attempts", lockKey, attempts[0]);
+                Metrics.increment(outcome, lockKey);
+            }
+        }
+    }
+
+    /**
+     * 释放，并通知队头的等待者
+     * @param lockKey
+     * @param value
+     * @return
+     */
+    public boolean unLock(String lockKey, String value) {
+        try {
+            Object result = eval(LockScripts.FAIR_RELEASE, 3, keys(lockKey, value,
+                    waiterChannelPrefix(lockKey)));
+            if (Long.valueOf(1L).equals(result)) {
+                return true;
+            }
+            Metrics.increment("fairLock.expired", lockKey);
+        } catch (Exception e) {
+            logger.error("fair unLock error >>> " + e);
+        }
+        return false;
+    }
+
+    /**
+     * 自定义轮询策略，间隔需要明显小于租期才能保证续租；设置为null恢复按等待时间计算
+     * @param retryPolicy
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * 等待者租期：等待时间，限制在[MIN_WAITER_LEASE, WAITER_LEASE]之间
+     */
+    static long waiterLease(long timeoutMillis) {
+        return Math.max(MIN_WAITER_LEASE, Math.min(timeoutMillis, WAITER_LEASE));
+    }
+
+    /**
+     * 轮询间隔：不超过租期/4（保证续租）和等待时间/4（超时前至少重试几次）
+     */
+    static long pollInterval(long timeoutMillis, long waiterLease) {
+        return Math.max(MIN_POLL_INTERVAL, Math.min(waiterLease, timeoutMillis) / 4);
+    }
+
+    /**
+     * 离开队列，失败也没关系，租期到了会被清掉
+     */
+    private void cancel(String lockKey, String value) {
+        try {
+            eval(LockScripts.FAIR_CANCEL, 3, keys(lockKey, value,
+                    waiterChannelPrefix(lockKey)));
+        } catch (Exception e) {
+            logger.error("fair lock cancel error >>> " + e);
+        }
+    }
+
+    /**
+     * KEYS为锁、队列、租期，后面跟ARGV
+     */
+    private static String[] keys(String lockKey, String... argv) {
+        String key = LOCK_KEY_PREFIX + lockKey;
+        String[] params = new String[argv.length + 3];
+        params[0] = key;
+        params[1] = key + ":queue";
+        params[2] = key + ":timeouts";
+        System.arraycopy(argv, 0, params, 3, argv.length);
+        return params;
+    }
+
+    /**
+     * 等待者的通知频道：LockNotifier.channel(waiterChannelKey)，即 waiterChannelPrefix + value
+     */
+    private static String waiterChannelKey(String lockKey, String value) {
+        return "fair:" + lockKey + ":" + value;
+    }
+
+    private static String waiterChannelPrefix(String lockKey) {
+        return LockNotifier.channel("fair:" + lockKey + ":");
+    }
+
+    private Object eval(LuaScript script, int keyCount, String... params) {
+        return script.eval(autoPipeline, jedisPool, keyCount, params);
+    }
+}
@@ -0,0 +1,139 @@
+package com.scosyf.distLock.redis.lock;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 本地按key排队的闸门，放在分布式锁前面
+ *
+ * 同一个JVM里同一时刻只有一个线程去redis抢某个key，其余线程在本地排队，
+ * N个节点 x M个线程的竞争变成每个节点一个竞争者
+ *
+ * 没有线程使用的key会立即从map中移除，内存只和正在竞争的key数量有关；
+ * 闸门的持有时间不超过锁的过期时间，持有者忘记释放时后面的线程也能进来
+ */
+public class LocalLockGate {
+
+    /** key -> 闸门，users为0时移除 */
+    private final ConcurrentHashMap<String, Gate> gates = new ConcurrentHashMap<>();
+
+    /**
+     * 进入闸门
+     * @param key
+     * @param owner 持有者标识，释放时校验
+     * @param leaseMillis 最长持有时间，超过后视为已释放
+     * @param timeout
+     * @param unit
+     * @return
+     * @throws InterruptedException
+     */
+    public boolean enter(String key, String owner, long leaseMillis, long timeout, TimeUnit unit) throws InterruptedException {
+        Gate gate = gates.compute(key, (k, g) -> {
+            if (g == null) {
+                g = new Gate();
+            }
+            g.users++;
+            return g;
+        });
+        boolean entered = false;
+        try {
+            int result = gate.enter(owner, TimeUnit.MILLISECONDS.toNanos(leaseMillis), unit.toNanos(timeout));
+            if (result == Gate.TAKEN_OVER) {
+                // 原持有者超时未释放，之后它的exit会被忽略，这里替它减掉计数
+                leave(key, gate);
+            }
+            entered = result != Gate.TIMEOUT;
+            return entered;
+        } finally {
+            if (!entered) {
+                leave(key, gate);
+            }
+        }
+    }
+
+    /**
+     * 离开闸门，不是持有者时忽略
+     * @param key
+     * @param owner
+     */
+    public void exit(String key, String owner) {
+        Gate gate = gates.get(key);
+        if (gate != null && gate.exit(owner)) {
+            leave(key, gate);
+        }
+    }
+
+    /**
+     * 当前有线程使用的key数量
+     * @return
+     */
+    public int size() {
+        return gates.size();
+    }
+
+    private void leave(String key, Gate gate) {
+        gates.computeIfPresent(key, (k, g) -> {
+            if (g != gate) {
+                return g;
+            }
+            return --g.users == 0 ? null : g;
+        });
+    }
+
+    private static class Gate {
+
+        static final int TIMEOUT = 0;
+        static final int ENTERED = 1;
+        static final int TAKEN_OVER = 2;
+
+        /** 等待中和持有中的线程数，只在ConcurrentHashMap.compute内修改 */
+        private int users;
+
+        private final ReentrantLock lock = new ReentrantLock(true);
+
+        private final Condition released = lock.newCondition();
+
+        private String owner;
+
+        private long ownerDeadline;
+
+        int enter(String newOwner, long leaseNanos, long timeoutNanos) throws InterruptedException {
+            long deadline = System.nanoTime() + timeoutNanos;
+            lock.lockInterruptibly();
+            try {
+                for (;;) {
+                    long now = System.nanoTime();
+                    if (owner == null || now - ownerDeadline >= 0) {
+                        int result = owner == null ? ENTERED : TAKEN_OVER;
+                        owner = newOwner;
+                        ownerDeadline = now + leaseNanos;
+                        return result;
+                    }
+                    long remaining = deadline - now;
+                    if (remaining <= 0) {
+                        return TIMEOUT;
+                    }
+                    released.awaitNanos(Math.min(remaining, ownerDeadline - now));
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean exit(String oldOwner) {
+            lock.lock();
+            try {
+                if (owner == null || !owner.equals(oldOwner)) {
+                    return false;
+                }
+                owner = null;
+                released.signal();
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
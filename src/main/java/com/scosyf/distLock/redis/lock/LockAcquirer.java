@@ -0,0 +1,108 @@
+package com.scosyf.distLock.redis.lock;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 加锁等待循环，各种锁共用
+ * 
+ * 单次尝试失败后按重试策略和锁的剩余过期时间等待，期间收到释放通知会提前醒来；
+ * 等待时不持有redis连接
+ */
+final class LockAcquirer {
+
+    private LockAcquirer() {
+    }
+
+    /**
+     * 单次加锁尝试
+     */
+    interface Attempt {
+
+        /**
+         * @return null表示成功，否则为锁剩余过期时间（毫秒），-1没有过期时间，-2已经过期
+         */
+        Long tryAcquire();
+    }
+
+    /**
+     * 
+     * @param lockNotifier
+     * @param channelKey 释放通知的频道（不带前缀）
+     * @param timeoutNanos 最长等待时间
+     * @param retryPolicy
+     * @param attempt
+     * @return
+     * @throws InterruptedException
+     */
+    static boolean acquire(LockNotifier lockNotifier, String channelKey, long timeoutNanos,
+                           RetryPolicy retryPolicy, Attempt attempt) throws InterruptedException {
+        return acquire(lockNotifier, Collections.singletonList(channelKey), timeoutNanos, retryPolicy, attempt);
+    }
+
+    /**
+     * 同时等待多个频道，任意一个收到释放通知都会醒来重试（批量加锁）
+     * @param lockNotifier
+     * @param channelKeys
+     * @param timeoutNanos
+     * @param retryPolicy
+     * @param attempt
+     * @return
+     * @throws InterruptedException
+     */
+    static boolean acquire(LockNotifier lockNotifier, Collection<String> channelKeys, long timeoutNanos,
+                           RetryPolicy retryPolicy, Attempt attempt) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        final Semaphore signal = new Semaphore(0);
+        Runnable wakeUp = new Runnable() {
+            @Override
+            public void run() {
+                // 只保留一个许可，多次通知合并为一次唤醒
+                if (signal.availablePermits() == 0) {
+                    signal.release();
+                }
+            }
+        };
+        // 先登记再尝试，避免错过尝试失败到开始等待之间的释放通知
+        List<LockNotifier.Waiter> waiters = new ArrayList<>(channelKeys.size());
+        for (String channelKey : channelKeys) {
+            waiters.add(lockNotifier.register(channelKey, wakeUp));
+        }
+        try {
+            long delay = 0L;
+            for (int i = 1; ; i++) {
+                Long ttl = attempt.tryAcquire();
+                if (ttl == null) {
+                    return true;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                delay = retryPolicy.nextDelayNanos(i, delay);
+                if (delay < 0) {
+                    return false;
+                }
+                // -2：锁刚好过期，立即重试；-1：锁没有过期时间，只能等通知或者下次重试
+                if (ttl == -2L) {
+                    continue;
+                }
+                long wait = Math.min(delay, remaining);
+                if (ttl >= 0) {
+                    wait = Math.min(wait, TimeUnit.MILLISECONDS.toNanos(ttl));
+                }
+                if (wait > 0) {
+                    signal.tryAcquire(wait, TimeUnit.NANOSECONDS);
+                }
+            }
+        } finally {
+            for (LockNotifier.Waiter waiter : waiters) {
+                lockNotifier.unregister(waiter);
+            }
+        }
+    }
+}
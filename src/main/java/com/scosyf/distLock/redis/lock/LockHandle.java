@@ -0,0 +1,37 @@
+package com.scosyf.distLock.redis.lock;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 异步加锁成功后持有的锁，通过它释放
+ */
+public class LockHandle {
+
+    private final AsyncDistributeLock lock;
+
+    private final String lockKey;
+
+    private final String value;
+
+    LockHandle(AsyncDistributeLock lock, String lockKey, String value) {
+        this.lock = lock;
+        this.lockKey = lockKey;
+        this.value = value;
+    }
+
+    public String getLockKey() {
+        return lockKey;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * 异步释放
+     * @return 是否释放成功（锁已过期被别人抢到时为false）
+     */
+    public CompletableFuture<Boolean> unLockAsync() {
+        return lock.unLockAsync(this);
+    }
+}
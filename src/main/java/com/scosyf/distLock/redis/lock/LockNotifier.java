@@ -0,0 +1,243 @@
+package com.scosyf.distLock.redis.lock;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPubSub;
+
+/**
+ * 锁释放通知
+ *
+ * 整个JVM只占用一个订阅连接，通过psubscribe监听所有锁的释放频道，
+ * 释放锁的lua脚本会publish到 CHANNEL_PREFIX + lockKey，
+ * 收到消息后唤醒本地等待该锁的线程，等待中的线程不占用redis连接
+ *
+ * 订阅连接断开时会自动重连，期间等待线程退化为按锁的剩余过期时间轮询
+ */
+@Component
+public class LockNotifier {
+
+    private static Logger logger = LoggerFactory.getLogger(LockNotifier.class);
+
+    /** 释放通知频道前缀 */
+    public static final String CHANNEL_PREFIX = "cache:lock:channel:";
+
+    /** 订阅断开后重连间隔 */
+    private static final long RECONNECT_INTERVAL = 1000L;
+
+    @Autowired
+    private JedisPool jedisPool;
+
+    /** lockKey -> 等待该锁的线程 */
+    private final ConcurrentHashMap<String, Set<Waiter>> waiters = new ConcurrentHashMap<>();
+
+    private final JedisPubSub pubSub = new ReleaseListener();
+
+    private volatile boolean running;
+
+    private Thread subscribeThread;
+
+    @PostConstruct
+    public void start() {
+        running = true;
+        subscribeThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                subscribeLoop();
+            }
+        }, "lock-notifier");
+        subscribeThread.setDaemon(true);
+        subscribeThread.start();
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        if (pubSub.isSubscribed()) {
+            pubSub.punsubscribe();
+        }
+        if (subscribeThread != null) {
+            subscribeThread.interrupt();
+        }
+    }
+
+    /**
+     * 订阅是否正常，未订阅时调用方不能依赖通知
+     * @return
+     */
+    public boolean isSubscribed() {
+        return pubSub.isSubscribed();
+    }
+
+    /**
+     * 释放锁频道
+     * @param lockKey 不带前缀的key
+     * @return
+     */
+    public static String channel(String lockKey) {
+        return CHANNEL_PREFIX + lockKey;
+    }
+
+    /**
+     * 登记等待，必须在尝试加锁之前登记，否则可能错过加锁失败和登记之间的释放通知
+     * @param lockKey
+     * @return
+     */
+    public Waiter register(String lockKey) {
+        return register(lockKey, null);
+    }
+
+    /**
+     * 登记回调式等待，收到通知时在订阅线程上执行callback，callback里不能有阻塞操作
+     * @param lockKey
+     * @param callback
+     * @return
+     */
+    public Waiter register(String lockKey, Runnable callback) {
+        Waiter waiter = new Waiter(lockKey, callback);
+        waiters.compute(lockKey, (k, set) -> {
+            if (set == null) {
+                set = new CopyOnWriteArraySet<>();
+            }
+            set.add(waiter);
+            return set;
+        });
+        return waiter;
+    }
+
+    /**
+     * 取消等待，最后一个等待者离开时移除该key，保证map不会无限增长
+     * @param waiter
+     */
+    public void unregister(Waiter waiter) {
+        waiters.computeIfPresent(waiter.lockKey, (k, set) -> {
+            set.remove(waiter);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    private void wakeUp(String lockKey) {
+        Set<Waiter> set = waiters.get(lockKey);
+        if (set == null) {
+            return;
+        }
+        for (Waiter waiter : set) {
+            waiter.signal();
+        }
+    }
+
+    private void subscribeLoop() {
+        while (running) {
+            Jedis jedis = null;
+            try {
+                jedis = jedisPool.getResource();
+                // 阻塞直到punsubscribe或连接异常
+                jedis.psubscribe(pubSub, CHANNEL_PREFIX + "*");
+            } catch (Exception e) {
+                logger.error("lock notifier subscribe error >>> " + e);
+                if (jedis != null) {
+                    jedisPool.returnBrokenResource(jedis);
+                    jedis = null;
+                }
+                // 连接断开期间可能漏掉通知，唤醒所有等待者让其重新尝试
+                for (String lockKey : waiters.keySet()) {
+                    wakeUp(lockKey);
+                }
+                sleepQuietly(RECONNECT_INTERVAL);
+            } finally {
+                if (jedis != null) {
+                    jedisPool.returnResource(jedis);
+                }
+            }
+        }
+    }
+
+    private void sleepQuietly(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private class ReleaseListener extends JedisPubSub {
+
+        @Override
+        public void onPMessage(String pattern, String channel, String message) {
+            wakeUp(channel.substring(CHANNEL_PREFIX.length()));
+        }
+
+        @Override
+        public void onMessage(String channel, String message) {
+        }
+
+        @Override
+        public void onSubscribe(String channel, int subscribedChannels) {
+        }
+
+        @Override
+        public void onUnsubscribe(String channel, int subscribedChannels) {
+        }
+
+        @Override
+        public void onPUnsubscribe(String pattern, int subscribedChannels) {
+        }
+
+        @Override
+        public void onPSubscribe(String pattern, int subscribedChannels) {
+            logger.info("lock notifier subscribed >>> " + pattern);
+        }
+    }
+
+    /**
+     * 单个等待者，收到通知前阻塞（或者收到通知时回调），期间不持有任何redis连接
+     */
+    public static class Waiter {
+
+        private final String lockKey;
+
+        private final Runnable callback;
+
+        private final Semaphore signal = new Semaphore(0);
+
+        Waiter(String lockKey, Runnable callback) {
+            this.lockKey = lockKey;
+            this.callback = callback;
+        }
+
+        void signal() {
+            if (callback != null) {
+                callback.run();
+                return;
+            }
+            // 只保留一个许可，多次通知合并为一次唤醒
+            if (signal.availablePermits() == 0) {
+                signal.release();
+            }
+        }
+
+        /**
+         * 等待释放通知
+         * @param timeout
+         * @param unit
+         * @return true 收到通知，false 超时
+         * @throws InterruptedException
+         */
+        public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+            return signal.tryAcquire(timeout, unit);
+        }
+    }
+}
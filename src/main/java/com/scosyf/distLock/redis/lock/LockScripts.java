@@ -0,0 +1,397 @@
+package com.scosyf.distLock.redis.lock;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+/**
+ * 锁相关的lua脚本
+ *
+ * 启动时统一SCRIPT LOAD，之后全部通过EVALSHA调用；
+ * 新增脚本需要加到ALL里，才会被预加载
+ */
+@Component
+public class LockScripts {
+
+    private static Logger logger = LoggerFactory.getLogger(LockScripts.class);
+
+    /**
+     * 加锁，成功返回nil，失败返回锁的剩余过期时间
+     * KEYS[1] 锁；ARGV[1] value，ARGV[2] 过期时间（毫秒）
+     */
+    public static final LuaScript ACQUIRE = LuaScript.of(
+            "if redis.call('set', KEYS[1], ARGV[1], 'NX', 'PX', ARGV[2]) then " +
+                "return nil " +
+            "end " +
+            "return redis.call('pttl', KEYS[1])");
+
+    /**
+     * 将get和del合并为原子性操作，释放成功后通知等待者
+     * KEYS[1] 锁，KEYS[2] 通知频道；ARGV[1] value
+     */
+    public static final LuaScript RELEASE = LuaScript.of(
+            "if redis.call('get', KEYS[1]) == ARGV[1] then " +
+                "redis.call('del', KEYS[1]) " +
+                "redis.call('publish', KEYS[2], ARGV[1]) " +
+                "return 1 " +
+            "else " +
+                "return 0 " +
+            "end");
+
+    /**
+     * 看门狗续期，value一致才续期，保证只续自己的锁
+     * KEYS[1] 锁；ARGV[1] value，ARGV[2] 过期时间（毫秒）
+     */
+    public static final LuaScript RENEW = LuaScript.of(
+            "if redis.call('get', KEYS[1]) == ARGV[1] then " +
+                "return redis.call('pexpire', KEYS[1], ARGV[2]) " +
+            "else " +
+                "return 0 " +
+            "end");
+
+    /**
+     * 可重入加锁，锁不存在或者属于自己时计数+1，成功返回nil，失败返回锁的剩余过期时间
+     * KEYS[1] 锁；ARGV[1] owner，ARGV[2] 过期时间（毫秒）
+     */
+    public static final LuaScript REENTRANT_ACQUIRE = LuaScript.of(
+            "if (redis.call('exists', KEYS[1]) == 0) or (redis.call('hexists', KEYS[1], ARGV[1]) == 1) then " +
+                "redis.call('hincrby', KEYS[1], ARGV[1], 1) " +
+                "redis.call('pexpire', KEYS[1], ARGV[2]) " +
+                "return nil " +
+            "end " +
+            "return redis.call('pttl', KEYS[1])");
+
+    /**
+     * 可重入释放，计数-1，减到0时删除并通知等待者
+     * KEYS[1] 锁，KEYS[2] 通知频道；ARGV[1] owner，ARGV[2] 过期时间（毫秒）
+     */
+    public static final LuaScript REENTRANT_RELEASE = LuaScript.of(
+            "if redis.call('hexists', KEYS[1], ARGV[1]) == 0 then " +
+                "return 0 " +
+            "end " +
+            "if redis.call('hincrby', KEYS[1], ARGV[1], -1) > 0 then " +
+                "redis.call('pexpire', KEYS[1], ARGV[2]) " +
+                "return 1 " +
+            "end " +
+            "redis.call('del', KEYS[1]) " +
+            "redis.call('publish', KEYS[2], ARGV[1]) " +
+            "return 1");
+
+    /**
+     * 可重入锁续期，仍由自己持有才续
+     * KEYS[1] 锁；ARGV[1] owner，ARGV[2] 过期时间（毫秒）
+     */
+    public static final LuaScript REENTRANT_RENEW = LuaScript.of(
+            "if redis.call('hexists', KEYS[1], ARGV[1]) == 1 then " +
+                "return redis.call('pexpire', KEYS[1], ARGV[2]) " +
+            "else " +
+                "return 0 " +
+            "end");
+
+    /**
+     * Redlock释放，各节点独立，不需要通知
+     * KEYS[1] 锁；ARGV[1] value
+     */
+    public static final LuaScript REDLOCK_RELEASE = LuaScript.of(
+            "if redis.call('get', KEYS[1]) == ARGV[1] then " +
+                "return redis.call('del', KEYS[1]) " +
+            "else " +
+                "return 0 " +
+            "end");
+
+    /**
+     * 批量加锁，全部空闲才一起加锁，否则一个都不加；成功返回nil，失败返回第一个被占用的锁的剩余过期时间
+     * KEYS 所有锁；ARGV[1] value，ARGV[2] 过期时间（毫秒）
+     */
+    public static final LuaScript LOCK_ALL = LuaScript.of(
+            "for i, key in ipairs(KEYS) do " +
+                "if redis.call('exists', key) == 1 then " +
+                    "return redis.call('pttl', key) " +
+                "end " +
+            "end " +
+            "for i, key in ipairs(KEYS) do " +
+                "redis.call('set', key, ARGV[1], 'PX', ARGV[2]) " +
+            "end " +
+            "return nil");
+
+    /**
+     * 批量释放，只释放value一致的锁并通知等待者，返回释放的个数
+     * KEYS[1..n] 锁，KEYS[n+1..2n] 对应的通知频道；ARGV[1] value，ARGV[2] n
+     */
+    public static final LuaScript UNLOCK_ALL = LuaScript.of(
+            "local n = tonumber(ARGV[2]) " +
+            "local released = 0 " +
+            "for i = 1, n do " +
+                "if redis.call('get', KEYS[i]) == ARGV[1] then " +
+                    "redis.call('del', KEYS[i]) " +
+                    "redis.call('publish', KEYS[n + i], ARGV[1]) " +
+                    "released = released + 1 " +
+                "end " +
+            "end " +
+            "return released");
+
+    /**
+     * 当前时间取redis的TIME，不受各节点时钟偏差影响；之后还要写，按命令复制，需要放在脚本的第一次写之前；定义local now
+     */
+    private static final String REDIS_NOW =
+            "redis.replicate_commands() " +
+            "local time = redis.call('time') " +
+            "local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000) ";
+
+    /**
+     * 清掉到期的读者（进程挂了没有释放），读者都没了就删除锁，写者不会被残留的计数饿死
+     * 调用前需要有 local now
+     */
+    private static final String RW_DROP_EXPIRED_READERS =
+            "for _, owner in ipairs(redis.call('zrangebyscore', KEYS[3], '-inf', now)) do " +
+                "redis.call('hdel', KEYS[1], owner) " +
+            "end " +
+            "redis.call('zremrangebyscore', KEYS[3], '-inf', now) " +
+            "if redis.call('hget', KEYS[1], 'mode') == 'read' and redis.call('hlen', KEYS[1]) == 1 then " +
+                "redis.call('del', KEYS[1], KEYS[3]) " +
+            "end ";
+
+    /**
+     * 读锁，没有写锁（写优先时还要求没有等待中的写者）就计数+1；成功返回nil，失败返回需要等待的时间
+     * 每个读者在KEYS[3]中有自己的到期时间，锁的过期时间跟随最晚到期的读者
+     * KEYS[1] 锁，KEYS[2] 写者等待标记，KEYS[3] 读者到期时间（zset）；ARGV[1] owner，ARGV[2] 过期时间（毫秒），ARGV[3] 是否写优先
+     */
+    public static final LuaScript READ_ACQUIRE = LuaScript.of(
+            REDIS_NOW +
+            RW_DROP_EXPIRED_READERS +
+            "if redis.call('hget', KEYS[1], 'mode') == 'write' then " +
+                "return redis.call('pttl', KEYS[1]) " +
+            "end " +
+            "if ARGV[3] == '1' and redis.call('exists', KEYS[2]) == 1 then " +
+                "return redis.call('pttl', KEYS[2]) " +
+            "end " +
+            "redis.call('hset', KEYS[1], 'mode', 'read') " +
+            "redis.call('hincrby', KEYS[1], ARGV[1], 1) " +
+            "redis.call('zadd', KEYS[3], now + tonumber(ARGV[2]), ARGV[1]) " +
+            "local last = redis.call('zrange', KEYS[3], -1, -1, 'WITHSCORES') " +
+            "local ttl = math.ceil(tonumber(last[2]) - now) " +
+            "redis.call('pexpire', KEYS[1], ttl) " +
+            "redis.call('pexpire', KEYS[3], ttl) " +
+            "return nil");
+
+    /**
+     * 读锁释放，最后一个读者离开时删除并通知等待者
+     * KEYS[1] 锁，KEYS[2] 通知频道，KEYS[3] 读者到期时间；ARGV[1] owner
+     */
+    public static final LuaScript READ_RELEASE = LuaScript.of(
+            "if redis.call('hget', KEYS[1], 'mode') ~= 'read' or redis.call('hexists', KEYS[1], ARGV[1]) == 0 then " +
+                "return 0 " +
+            "end " +
+            "if redis.call('hincrby', KEYS[1], ARGV[1], -1) <= 0 then " +
+                "redis.call('hdel', KEYS[1], ARGV[1]) " +
+                "redis.call('zrem', KEYS[3], ARGV[1]) " +
+            "end " +
+            "if redis.call('hlen', KEYS[1]) == 1 then " +
+                "redis.call('del', KEYS[1], KEYS[3]) " +
+                "redis.call('publish', KEYS[2], ARGV[1]) " +
+            "end " +
+            "return 1");
+
+    /**
+     * 写锁，没有任何读写者时才能加，先清掉到期的读者；失败时（写优先）留下等待标记，挡住后来的读者
+     * KEYS[1] 锁，KEYS[2] 写者等待标记，KEYS[3] 读者到期时间；ARGV[1] owner，ARGV[2] 过期时间（毫秒），ARGV[3] 是否写优先
+     */
+    public static final LuaScript WRITE_ACQUIRE = LuaScript.of(
+            REDIS_NOW +
+            RW_DROP_EXPIRED_READERS +
+            "if redis.call('exists', KEYS[1]) == 0 then " +
+                "redis.call('hset', KEYS[1], 'mode', 'write') " +
+                "redis.call('hset', KEYS[1], ARGV[1], 1) " +
+                "redis.call('pexpire', KEYS[1], ARGV[2]) " +
+                "if redis.call('get', KEYS[2]) == ARGV[1] then " +
+                    "redis.call('del', KEYS[2]) " +
+                "end " +
+                "return nil " +
+            "end " +
+            "if ARGV[3] == '1' then " +
+                "redis.call('set', KEYS[2], ARGV[1], 'PX', ARGV[2]) " +
+            "end " +
+            "return redis.call('pttl', KEYS[1])");
+
+    /**
+     * 写锁释放
+     * KEYS[1] 锁，KEYS[2] 通知频道，KEYS[3] 读者到期时间（不使用，和读锁释放参数一致）；ARGV[1] owner
+     */
+    public static final LuaScript WRITE_RELEASE = LuaScript.of(
+            "if redis.call('hget', KEYS[1], 'mode') == 'write' and redis.call('hexists', KEYS[1], ARGV[1]) == 1 then " +
+                "redis.call('del', KEYS[1]) " +
+                "redis.call('publish', KEYS[2], ARGV[1]) " +
+                "return 1 " +
+            "end " +
+            "return 0");
+
+    /**
+     * 信号量获取，先清掉过期的许可，还有空位就占一个；成功返回nil，失败返回最早一个许可到期的剩余时间
+     * 时间取redis的TIME，不受各节点时钟偏差影响；集合的过期时间跟随最晚到期的许可
+     * KEYS[1] 许可集合（zset，score为到期时间）；ARGV[1] 许可id，ARGV[2] 租期（毫秒），ARGV[3] 许可总数
+     */
+    public static final LuaScript SEMAPHORE_ACQUIRE = LuaScript.of(
+            // TIME是非确定性命令，之后还要写，按命令而不是按脚本复制
+            "redis.replicate_commands() " +
+            "local time = redis.call('time') " +
+            "local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000) " +
+            "redis.call('zremrangebyscore', KEYS[1], '-inf', now) " +
+            "if redis.call('zscore', KEYS[1], ARGV[1]) or redis.call('zcard', KEYS[1]) < tonumber(ARGV[3]) then " +
+                "redis.call('zadd', KEYS[1], now + tonumber(ARGV[2]), ARGV[1]) " +
+                "local last = redis.call('zrange', KEYS[1], -1, -1, 'WITHSCORES') " +
+                "redis.call('pexpire', KEYS[1], math.ceil(tonumber(last[2]) - now)) " +
+                "return nil " +
+            "end " +
+            "local first = redis.call('zrange', KEYS[1], 0, 0, 'WITHSCORES') " +
+            "if not first[2] then " +
+                "return tonumber(ARGV[2]) " +
+            "end " +
+            "return tonumber(first[2]) - now");
+
+    /**
+     * 未到期的许可数，按redis的时间计算
+     * KEYS[1] 许可集合
+     */
+    public static final LuaScript SEMAPHORE_USED = LuaScript.of(
+            "local time = redis.call('time') " +
+            "local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000) " +
+            "return redis.call('zcount', KEYS[1], '(' .. now, '+inf')");
+
+    /**
+     * 信号量释放，归还后通知等待者
+     * KEYS[1] 许可集合，KEYS[2] 通知频道；ARGV[1] 许可id
+     */
+    public static final LuaScript SEMAPHORE_RELEASE = LuaScript.of(
+            "if redis.call('zrem', KEYS[1], ARGV[1]) == 1 then " +
+                "redis.call('publish', KEYS[2], ARGV[1]) " +
+                "return 1 " +
+            "end " +
+            "return 0");
+
+    /**
+     * 公平锁中从队头清掉租期已过的等待者（进程挂了、不再续租），找到第一个活着的等待者放在first里
+     * 调用前需要有 local now
+     */
+    private static final String FAIR_SKIP_DEAD =
+            "local first = redis.call('lindex', KEYS[2], 0) " +
+            "while first do " +
+                "local deadline = redis.call('zscore', KEYS[3], first) " +
+                "if deadline and tonumber(deadline) > now then " +
+                    "break " +
+                "end " +
+                "redis.call('lpop', KEYS[2]) " +
+                "redis.call('zrem', KEYS[3], first) " +
+                "first = redis.call('lindex', KEYS[2], 0) " +
+            "end ";
+
+    /**
+     * 公平锁加锁：锁空闲且队列为空或者自己在队头时加锁成功，返回nil；
+     * 否则排到队尾（已经在队列中则只续租），返回锁的剩余过期时间，锁空闲时返回队头等待者的剩余租期
+     * KEYS[1] 锁，KEYS[2] 等待队列（list），KEYS[3] 等待者租期（zset，score为到期时间）；
+     * ARGV[1] value，ARGV[2] 锁过期时间（毫秒），ARGV[3] 等待者租期（毫秒）
+     * 租期按redis的时间计算，各节点时钟不一致时不会把别的节点上活着的等待者当成过期
+     */
+    public static final LuaScript FAIR_ACQUIRE = LuaScript.of(
+            REDIS_NOW +
+            FAIR_SKIP_DEAD +
+            "if redis.call('exists', KEYS[1]) == 0 and ((not first) or first == ARGV[1]) then " +
+                "if first then " +
+                    "redis.call('lpop', KEYS[2]) " +
+                    "redis.call('zrem', KEYS[3], first) " +
+                "end " +
+                "redis.call('set', KEYS[1], ARGV[1], 'PX', ARGV[2]) " +
+                "return nil " +
+            "end " +
+            "local lease = tonumber(ARGV[3]) " +
+            "if not redis.call('zscore', KEYS[3], ARGV[1]) then " +
+                "redis.call('rpush', KEYS[2], ARGV[1]) " +
+            "end " +
+            "redis.call('zadd', KEYS[3], now + lease, ARGV[1]) " +
+            "redis.call('pexpire', KEYS[2], lease * 2) " +
+            "redis.call('pexpire', KEYS[3], lease * 2) " +
+            "local ttl = redis.call('pttl', KEYS[1]) " +
+            "if ttl < 0 then " +
+                "first = redis.call('lindex', KEYS[2], 0) " +
+                "ttl = tonumber(redis.call('zscore', KEYS[3], first)) - now " +
+            "end " +
+            "return ttl");
+
+    /**
+     * 公平锁释放，只通知队头第一个活着的等待者
+     * KEYS[1] 锁，KEYS[2] 等待队列，KEYS[3] 等待者租期；ARGV[1] value，ARGV[2] 等待者通知频道前缀
+     */
+    public static final LuaScript FAIR_RELEASE = LuaScript.of(
+            REDIS_NOW +
+            "if redis.call('get', KEYS[1]) ~= ARGV[1] then " +
+                "return 0 " +
+            "end " +
+            "redis.call('del', KEYS[1]) " +
+            FAIR_SKIP_DEAD +
+            "if first then " +
+                "redis.call('publish', ARGV[2] .. first, ARGV[1]) " +
+            "end " +
+            "return 1");
+
+    /**
+     * 公平锁放弃等待（超时），离开队列；锁空闲时通知新的队头，避免它等到租期或轮询
+     * KEYS[1] 锁，KEYS[2] 等待队列，KEYS[3] 等待者租期；ARGV[1] value，ARGV[2] 等待者通知频道前缀
+     */
+    public static final LuaScript FAIR_CANCEL = LuaScript.of(
+            REDIS_NOW +
+            "local removed = redis.call('lrem', KEYS[2], 0, ARGV[1]) " +
+            "redis.call('zrem', KEYS[3], ARGV[1]) " +
+            "if removed > 0 and redis.call('exists', KEYS[1]) == 0 then " +
+                FAIR_SKIP_DEAD +
+                "if first then " +
+                    "redis.call('publish', ARGV[2] .. first, ARGV[1]) " +
+                "end " +
+            "end " +
+            "return removed");
+
+    public static final List<LuaScript> ALL = Collections.unmodifiableList(Arrays.asList(
+            ACQUIRE, RELEASE, RENEW, REENTRANT_ACQUIRE, REENTRANT_RELEASE, REENTRANT_RENEW, REDLOCK_RELEASE,
+            LOCK_ALL, UNLOCK_ALL, READ_ACQUIRE, READ_RELEASE, WRITE_ACQUIRE, WRITE_RELEASE,
+            SEMAPHORE_ACQUIRE, SEMAPHORE_USED, SEMAPHORE_RELEASE, FAIR_ACQUIRE, FAIR_RELEASE, FAIR_CANCEL));
+
+    @Autowired
+    private JedisPool jedisPool;
+
+    @PostConstruct
+    public void preload() {
+        loadAll(jedisPool);
+    }
+
+    /**
+     * 把所有脚本加载到某个节点，失败不影响启动，调用时遇到NOSCRIPT会再加载
+     * @param pool
+     */
+    public static void loadAll(JedisPool pool) {
+        Jedis jedis = null;
+        try {
+            jedis = pool.getResource();
+            for (LuaScript script : ALL) {
+                script.load(jedis);
+            }
+        } catch (Exception e) {
+            logger.error("lock scripts preload error >>> " + e);
+            if (jedis != null) {
+                pool.returnBrokenResource(jedis);
+                jedis = null;
+            }
+        } finally {
+            if (jedis != null) {
+                pool.returnResource(jedis);
+            }
+        }
+    }
+}
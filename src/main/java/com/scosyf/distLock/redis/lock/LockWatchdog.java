@@ -0,0 +1,212 @@
+package com.scosyf.distLock.redis.lock;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+/**
+ * 看门狗：为业务时间可能超过锁过期时间的持锁者自动续期
+ *
+ * 整个JVM只有一个调度线程，每个tick把所有持有中的锁的续期命令
+ * 放进同一个pipeline，一次往返完成，持有的锁再多也只占用一个连接
+ *
+ * 续期前会检查value，锁已经不属于自己（过期后被别人抢到）时不会续期，
+ * 并把该租约标记为丢失，调用方可以据此判断临界区是否被破坏
+ */
+@Component
+public class LockWatchdog {
+
+    private static Logger logger = LoggerFactory.getLogger(LockWatchdog.class);
+
+    /** 默认续期间隔，需要明显小于锁过期时间 */
+    public static final long DEFAULT_RENEW_INTERVAL = DistributeLock.LOCK_EXPIRE_TIME / 3;
+
+    @Autowired
+    private JedisPool jedisPool;
+
+    private long renewInterval = DEFAULT_RENEW_INTERVAL;
+
+    /** (redis key, owner) -> 租约；同一个key先后被不同owner持有时互不覆盖 */
+    private final ConcurrentHashMap<SimpleImmutableEntry<String, String>, Lease> leases = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    public void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "lock-watchdog");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                renewAll();
+            }
+        }, renewInterval, renewInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    public void setRenewInterval(long renewInterval) {
+        this.renewInterval = renewInterval;
+    }
+
+    /**
+     * 开始续期
+     * @param key 带前缀的redis key
+     * @param owner 锁的value
+     * @param leaseMillis 每次续期后的过期时间
+     * @return
+     */
+    public Lease watch(String key, String owner, long leaseMillis) {
+        return watch(key, owner, leaseMillis, LockScripts.RENEW);
+    }
+
+    /**
+     * 使用自定义续期脚本，KEYS[1]为key，ARGV[1]为owner，ARGV[2]为过期时间，返回0表示锁已丢失
+     */
+    Lease watch(String key, String owner, long leaseMillis, LuaScript renewScript) {
+        Lease lease = new Lease(key, owner, leaseMillis, renewScript);
+        leases.put(lease.id, lease);
+        return lease;
+    }
+
+    /**
+     * 停止续期，需要在释放锁之前调用
+     * @param lease
+     */
+    public void unwatch(Lease lease) {
+        leases.remove(lease.id, lease);
+    }
+
+    /**
+     * 当前续期中的锁数量
+     * @return
+     */
+    public int size() {
+        return leases.size();
+    }
+
+    private void renewAll() {
+        if (leases.isEmpty()) {
+            return;
+        }
+        List<Lease> batch = new ArrayList<>(leases.values());
+        Jedis jedis = null;
+        try {
+            jedis = jedisPool.getResource();
+            List<Lease> noScript = renew(jedis, batch);
+            if (!noScript.isEmpty()) {
+                // redis重启或切换后脚本缓存丢失，重新加载后补一次
+                for (LuaScript script : LockScripts.ALL) {
+                    script.load(jedis);
+                }
+                renew(jedis, noScript);
+            }
+        } catch (Exception e) {
+            // 本次没续上，下个tick再试，租约本身还有剩余时间
+            logger.error("lock watchdog renew error >>> " + e);
+            if (jedis != null) {
+                jedisPool.returnBrokenResource(jedis);
+                jedis = null;
+            }
+        } finally {
+            if (jedis != null) {
+                jedisPool.returnResource(jedis);
+            }
+        }
+    }
+
+    /**
+     * 一次pipeline续期一批
+     * @return 因NOSCRIPT失败、需要重试的租约
+     */
+    private List<Lease> renew(Jedis jedis, List<Lease> batch) {
+        List<Response<?>> responses = new ArrayList<>(batch.size());
+        Pipeline pipeline = jedis.pipelined();
+        for (Lease lease : batch) {
+            responses.add(lease.renewScript.eval(pipeline, 1, lease.key, lease.owner, Long.toString(lease.leaseMillis)));
+        }
+        pipeline.sync();
+
+        List<Lease> noScript = new ArrayList<>();
+        for (int i = 0; i < batch.size(); i++) {
+            Lease lease = batch.get(i);
+            Object result;
+            try {
+                result = responses.get(i).get();
+            } catch (JedisDataException e) {
+                if (LuaScript.isNoScript(e)) {
+                    noScript.add(lease);
+                } else {
+                    logger.error("lock watchdog renew error >>> " + lease.key + " >>> " + e);
+                }
+                continue;
+            }
+            if (Long.valueOf(0L).equals(result)) {
+                lease.lost = true;
+                leases.remove(lease.id, lease);
+                logger.warn("lock watchdog lease lost >>> " + lease.key);
+            }
+        }
+        return noScript;
+    }
+
+    /**
+     * 一把被续期中的锁
+     */
+    public static class Lease {
+
+        private final String key;
+        private final String owner;
+        private final long leaseMillis;
+        private final LuaScript renewScript;
+        private final SimpleImmutableEntry<String, String> id;
+
+        private volatile boolean lost;
+
+        Lease(String key, String owner, long leaseMillis, LuaScript renewScript) {
+            this.id = new SimpleImmutableEntry<>(key, owner);
+            this.key = key;
+            this.owner = owner;
+            this.leaseMillis = leaseMillis;
+            this.renewScript = renewScript;
+        }
+
+        /**
+         * 续期时发现锁已经不属于自己
+         * @return
+         */
+        public boolean isLost() {
+            return lost;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.scosyf.distLock.redis.lock;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.scosyf.distLock.redis.pipeline.AutoPipeline;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+/**
+ * lua脚本，通过EVALSHA调用，只发送40字节的sha而不是整个脚本
+ * 
+ * sha在本地计算，与redis SCRIPT LOAD返回的一致，所以同一个脚本可以在多个节点上使用；
+ * redis重启或主从切换后脚本缓存丢失，遇到NOSCRIPT自动重新加载再执行
+ */
+public final class LuaScript {
+
+    private final String script;
+
+    private final String sha;
+
+    private LuaScript(String script) {
+        this.script = script;
+        this.sha = sha1Hex(script);
+    }
+
+    /**
+     * 和redis SCRIPT LOAD一样：utf-8编码后sha1，小写十六进制
+     */
+    private static String sha1Hex(String script) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1").digest(script.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            // 每个JRE都必须支持SHA-1
+            throw new IllegalStateException(e);
+        }
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    public static LuaScript of(String script) {
+        return new LuaScript(script);
+    }
+
+    public String getScript() {
+        return script;
+    }
+
+    public String getSha() {
+        return sha;
+    }
+
+    /**
+     * 
+     * @param jedis
+     * @param keyCount KEYS的个数，params前keyCount个为KEYS，其余为ARGV
+     * @param params
+     * @return
+     */
+    public Object eval(Jedis jedis, int keyCount, String... params) {
+        try {
+            return jedis.evalsha(sha, keyCount, params);
+        } catch (JedisDataException e) {
+            if (!isNoScript(e)) {
+                throw e;
+            }
+            load(jedis);
+            return jedis.evalsha(sha, keyCount, params);
+        }
+    }
+
+    /**
+     * pipeline中调用，NOSCRIPT会在Response.get()时抛出，需要调用方处理
+     * @param pipeline
+     * @param keyCount
+     * @param params
+     * @return
+     */
+    public Response<?> eval(Pipeline pipeline, int keyCount, String... params) {
+        return pipeline.evalsha(sha, keyCount, params);
+    }
+
+    /**
+     * 通过共享连接执行，返回值和eval(Jedis...)一致：bulk转成String
+     * @param autoPipeline
+     * @param keyCount
+     * @param params
+     * @return
+     */
+    public Object eval(AutoPipeline autoPipeline, int keyCount, String... params) {
+        try {
+            return convert(autoPipeline.execute(Protocol.Command.EVALSHA, args(sha, keyCount, params)));
+        } catch (JedisDataException e) {
+            if (!isNoScript(e)) {
+                throw e;
+            }
+            // EVAL会顺便把脚本放进缓存
+            return convert(autoPipeline.execute(Protocol.Command.EVAL, args(script, keyCount, params)));
+        }
+    }
+
+    /**
+     * 配置了自动pipeline就走共享连接，否则从连接池借一条
+     * @param autoPipeline 可以为null
+     * @param jedisPool
+     * @param keyCount
+     * @param params
+     * @return
+     */
+    public Object eval(AutoPipeline autoPipeline, JedisPool jedisPool, int keyCount, String... params) {
+        if (autoPipeline != null) {
+            return eval(autoPipeline, keyCount, params);
+        }
+        Jedis jedis = null;
+        try {
+            jedis = jedisPool.getResource();
+            return eval(jedis, keyCount, params);
+        } catch (RuntimeException e) {
+            if (jedis != null) {
+                jedisPool.returnBrokenResource(jedis);
+                jedis = null;
+            }
+            throw e;
+        } finally {
+            if (jedis != null) {
+                jedisPool.returnResource(jedis);
+            }
+        }
+    }
+
+    /**
+     * SCRIPT LOAD
+     * @param jedis
+     */
+    public void load(Jedis jedis) {
+        jedis.scriptLoad(script);
+    }
+
+    private static byte[][] args(String scriptOrSha, int keyCount, String[] params) {
+        byte[][] args = new byte[params.length + 2][];
+        args[0] = scriptOrSha.getBytes(StandardCharsets.UTF_8);
+        args[1] = Integer.toString(keyCount).getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < params.length; i++) {
+            args[i + 2] = params[i].getBytes(StandardCharsets.UTF_8);
+        }
+        return args;
+    }
+
+    private static Object convert(Object reply) {
+        if (reply instanceof byte[]) {
+            return new String((byte[]) reply, StandardCharsets.UTF_8);
+        }
+        if (reply instanceof List) {
+            List<?> replies = (List<?>) reply;
+            List<Object> values = new ArrayList<>(replies.size());
+            for (Object value : replies) {
+                values.add(convert(value));
+            }
+            return values;
+        }
+        return reply;
+    }
+
+    /**
+     * pipeline中返回的异常会被包装一层，所以用contains判断
+     * @param e
+     * @return
+     */
+    public static boolean isNoScript(JedisDataException e) {
+        return e.getMessage() != null && e.getMessage().contains("NOSCRIPT");
+    }
+}
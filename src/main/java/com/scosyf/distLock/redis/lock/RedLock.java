@@ -0,0 +1,373 @@
+package com.scosyf.distLock.redis.lock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import redis.clients.jedis.Client;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+/**
+ * Redlock：多个相互独立的redis master上的分布式锁
+ *
+ * 流程如下：
+ *      [1] 同时向N个节点发送SET NX PX，而不是逐个发送，加锁耗时取决于最慢的节点而不是所有节点之和
+ *      [2] 超过半数（N/2+1）节点加锁成功，且有效时间 = 过期时间 - 加锁耗时 - 时钟漂移 > 0，才算加锁成功
+ *      [3] 加锁失败时同样并发地向所有节点释放（包括返回失败的节点，可能是响应超时但实际已经设置成功）；
+ *          释放之后才返回的SET，由发送SET的线程自己再释放一次
+ *
+ * 单个节点的读超时设为nodeTimeout，超时的请求会被取消；线程池有界，排满时由调用线程自己执行
+ *
+ * 节点在redlock-config.xml中配置，测试时可以指向多个本地redis-server实例
+ * http://www.redis.cn/topics/distlock
+ */
+public class RedLock {
+
+    private static Logger logger = LoggerFactory.getLogger(RedLock.class);
+
+    /** 时钟漂移系数 */
+    public static final double CLOCK_DRIFT_FACTOR = 0.01;
+
+    /** 时钟漂移的固定补偿（毫秒） */
+    public static final long CLOCK_DRIFT_MIN = 2L;
+
+    /** 单个节点的默认响应超时，要远小于锁过期时间 */
+    public static final long DEFAULT_NODE_TIMEOUT = 50L;
+
+    /** 每个节点的线程数上限 */
+    private static final int THREADS_PER_NODE = 8;
+
+    /** 每个节点排队的任务数上限 */
+    private static final int QUEUE_PER_NODE = 256;
+
+    /** key前缀 */
+    public static final String LOCK_KEY_PREFIX = "cache:lock:red:";
+
+    private final List<JedisPool> nodes;
+
+    private final int quorum;
+
+    /** 是否由本类创建的连接池，销毁时需要关闭 */
+    private final boolean ownPools;
+
+    private final ExecutorService executor;
+
+    /** 连接池原本的读超时，借出时改为nodeTimeout，还回去时恢复 */
+    private final ConcurrentMap<JedisPool, Integer> poolTimeouts = new ConcurrentHashMap<>();
+
+    private long nodeTimeout = DEFAULT_NODE_TIMEOUT;
+
+    private RetryPolicy retryPolicy = RetryPolicies.exponentialBackoff(5L, 50L, TimeUnit.MILLISECONDS);
+
+    /**
+     *
+     * @param nodes 相互独立的redis节点
+     */
+    public RedLock(List<JedisPool> nodes) {
+        this(nodes, false);
+    }
+
+    /**
+     * 供spring xml配置
+     * @param poolConfig
+     * @param nodes host:port,host:port,...
+     * @param timeout 连接超时（毫秒）
+     */
+    public RedLock(GenericObjectPoolConfig poolConfig, String nodes, int timeout) {
+        this(createPools(poolConfig, nodes, timeout), true);
+    }
+
+    private RedLock(List<JedisPool> nodes, boolean ownPools) {
+        if (nodes == null || nodes.isEmpty()) {
+            throw new IllegalArgumentException("redlock nodes must not be empty");
+        }
+        this.nodes = nodes;
+        for (JedisPool pool : nodes) {
+            LockScripts.loadAll(pool);
+        }
+        this.quorum = nodes.size() / 2 + 1;
+        this.ownPools = ownPools;
+        // 线程数和队列都有界；排满时由调用线程执行，节点读超时保证不会卡太久
+        int threads = nodes.size() * THREADS_PER_NODE;
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(nodes.size() * QUEUE_PER_NODE), new ThreadFactory() {
+            private final AtomicInteger index = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "redlock-" + index.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+        pool.allowCoreThreadTimeOut(true);
+        this.executor = pool;
+    }
+
+    private static List<JedisPool> createPools(GenericObjectPoolConfig poolConfig, String nodes, int timeout) {
+        List<JedisPool> pools = new ArrayList<>();
+        for (String node : StringUtils.split(nodes, ',')) {
+            String[] hostAndPort = StringUtils.split(node.trim(), ':');
+            pools.add(new JedisPool(poolConfig, hostAndPort[0], Integer.parseInt(hostAndPort[1]), timeout));
+        }
+        return pools;
+    }
+
+    @PreDestroy
+    public void destroy() {
+        executor.shutdownNow();
+        if (ownPools) {
+            for (JedisPool pool : nodes) {
+                pool.destroy();
+            }
+        }
+    }
+
+    public void setNodeTimeout(long nodeTimeout) {
+        this.nodeTimeout = nodeTimeout;
+    }
+
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    public int getQuorum() {
+        return quorum;
+    }
+
+    /**
+     * 直接用于业务
+     * @param lockKey
+     * @param handler
+     * @return
+     */
+    public boolean lock(String lockKey, BizHandler handler) {
+        String value = DistributeLock.newValue();
+        if (tryLock(lockKey, value) <= 0) {
+            return false;
+        }
+        try {
+            return handler.doBiz();
+        } finally {
+            unLock(lockKey, value);
+        }
+    }
+
+    /**
+     * 加锁，过期时间LOCK_EXPIRE_TIME，最长等待LOCK_TIMEOUT
+     * @param lockKey
+     * @param value
+     * @return 锁的剩余有效时间（毫秒），<=0表示加锁失败
+     */
+    public long tryLock(String lockKey, String value) {
+        return tryLock(lockKey, value, DistributeLock.LOCK_EXPIRE_TIME, DistributeLock.LOCK_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     *
+     * @param lockKey
+     * @param value
+     * @param leaseMillis 锁过期时间
+     * @param timeout 最长等待时间
+     * @param unit
+     * @return 锁的剩余有效时间（毫秒），<=0表示加锁失败
+     */
+    public long tryLock(String lockKey, String value, long leaseMillis, long timeout, TimeUnit unit) {
+        String key = LOCK_KEY_PREFIX + lockKey;
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        long delay = 0L;
+        try {
+            for (int attempt = 1; ; attempt++) {
+                long validity = acquireOnce(key, value, leaseMillis);
+                if (validity > 0) {
+                    return validity;
+                }
+                long remaining = deadline - System.nanoTime();
+                delay = retryPolicy.nextDelayNanos(attempt, delay);
+                if (remaining <= 0 || delay < 0) {
+                    return 0L;
+                }
+                if (delay > 0) {
+                    TimeUnit.NANOSECONDS.sleep(Math.min(delay, remaining));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            releaseAsync(key, value);
+            return 0L;
+        }
+    }
+
+    /**
+     * 释放所有节点上的锁，并发执行
+     * @param lockKey
+     * @param value
+     * @return 释放成功的节点数
+     */
+    public int unLock(String lockKey, String value) {
+        List<Future<Boolean>> futures = fanOut(releaseCalls(LOCK_KEY_PREFIX + lockKey, value));
+        return countSuccess(futures, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(nodeTimeout));
+    }
+
+    /**
+     * 一轮加锁
+     * @return 有效时间，<=0表示失败（已经发起释放）
+     */
+    private long acquireOnce(final String key, final String value, final long leaseMillis) {
+        long start = System.nanoTime();
+        // 这一轮已经放弃，之后才成功的SET要自己释放
+        final AtomicBoolean abandoned = new AtomicBoolean();
+        List<Callable<Boolean>> calls = new ArrayList<>(nodes.size());
+        for (final JedisPool pool : nodes) {
+            calls.add(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    Jedis jedis = borrow(pool);
+                    boolean broken = false;
+                    try {
+                        boolean locked = "OK".equals(jedis.set(key, value, "NX", "PX", leaseMillis));
+                        if (locked && abandoned.get()) {
+                            LockScripts.REDLOCK_RELEASE.eval(jedis, 1, key, value);
+                            return false;
+                        }
+                        return locked;
+                    } catch (RuntimeException e) {
+                        broken = true;
+                        throw e;
+                    } finally {
+                        giveBack(pool, jedis, broken);
+                    }
+                }
+            });
+        }
+        int locked = countSuccess(fanOut(calls), start + TimeUnit.MILLISECONDS.toNanos(nodeTimeout));
+
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        long drift = (long) (leaseMillis * CLOCK_DRIFT_FACTOR) + CLOCK_DRIFT_MIN;
+        long validity = leaseMillis - elapsed - drift;
+        if (locked >= quorum && validity > 0) {
+            return validity;
+        }
+        abandoned.set(true);
+        releaseAsync(key, value);
+        return 0L;
+    }
+
+    private List<Callable<Boolean>> releaseCalls(final String key, final String value) {
+        List<Callable<Boolean>> calls = new ArrayList<>(nodes.size());
+        for (final JedisPool pool : nodes) {
+            calls.add(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    Jedis jedis = borrow(pool);
+                    boolean broken = false;
+                    try {
+                        return Long.valueOf(1L).equals(LockScripts.REDLOCK_RELEASE.eval(jedis, 1, key, value));
+                    } catch (RuntimeException e) {
+                        broken = true;
+                        throw e;
+                    } finally {
+                        giveBack(pool, jedis, broken);
+                    }
+                }
+            });
+        }
+        return calls;
+    }
+
+    /**
+     * 借出的连接读超时改为nodeTimeout
+     */
+    private Jedis borrow(JedisPool pool) {
+        Jedis jedis = pool.getResource();
+        Client client = jedis.getClient();
+        poolTimeouts.putIfAbsent(pool, client.getTimeout());
+        client.setTimeout((int) nodeTimeout);
+        client.rollbackTimeout();
+        return jedis;
+    }
+
+    /**
+     * 还回去之前恢复连接池的读超时；出错的连接（包括读超时）不再复用
+     */
+    private void giveBack(JedisPool pool, Jedis jedis, boolean broken) {
+        if (broken) {
+            pool.returnBrokenResource(jedis);
+            return;
+        }
+        try {
+            Client client = jedis.getClient();
+            client.setTimeout(poolTimeouts.get(pool));
+            client.rollbackTimeout();
+        } catch (RuntimeException e) {
+            pool.returnBrokenResource(jedis);
+            return;
+        }
+        pool.returnResource(jedis);
+    }
+
+    /**
+     * 加锁失败后的释放不需要等结果
+     */
+    private void releaseAsync(String key, String value) {
+        fanOut(releaseCalls(key, value));
+    }
+
+    private List<Future<Boolean>> fanOut(List<Callable<Boolean>> calls) {
+        List<Future<Boolean>> futures = new ArrayList<>(calls.size());
+        for (Callable<Boolean> call : calls) {
+            futures.add(executor.submit(call));
+        }
+        return futures;
+    }
+
+    /**
+     * 统计在截止时间前返回成功的节点数，超时或异常的节点按失败算
+     */
+    private int countSuccess(List<Future<Boolean>> futures, long deadline) {
+        int success = 0;
+        for (Future<Boolean> future : futures) {
+            try {
+                long remaining = Math.max(0L, deadline - System.nanoTime());
+                if (Boolean.TRUE.equals(future.get(remaining, TimeUnit.NANOSECONDS))) {
+                    success++;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cancelAll(futures);
+                return success;
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                logger.error("redlock node timeout >>> " + e);
+            } catch (Exception e) {
+                logger.error("redlock node error >>> " + e);
+            }
+        }
+        return success;
+    }
+
+    private static void cancelAll(List<Future<Boolean>> futures) {
+        for (Future<Boolean> future : futures) {
+            future.cancel(true);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.scosyf.distLock.redis.lock;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.scosyf.distLock.redis.pipeline.AutoPipeline;
+
+import redis.clients.jedis.JedisPool;
+
+/**
+ * 可重入分布式锁
+ *
+ * redis中用hash保存：key -> {owner: 持有次数}，owner = JVM标识 + 线程id，锁归属于线程
+ *
+ * 同一线程的嵌套加锁只在本地ThreadLocal里计数，不访问redis；
+ * 只有最外层的加锁和最后一次释放才会走网络
+ */
+@Component
+public class ReentrantDistributeLock {
+
+    private static Logger logger = LoggerFactory.getLogger(ReentrantDistributeLock.class);
+
+    /** key前缀，与DistributeLock的string锁区分开，避免同名key类型冲突 */
+    public static final String LOCK_KEY_PREFIX = DistributeLock.LOCK_KEY_PREFIX + "reentrant:";
+
+    /** 当前JVM标识 */
+    private static final String JVM_ID = UUID.randomUUID().toString();
+
+    /** 当前线程持有的锁：lockKey -> 本地重入次数 */
+    private static final ThreadLocal<Map<String, Hold>> HOLDS = new ThreadLocal<Map<String, Hold>>() {
+        @Override
+        protected Map<String, Hold> initialValue() {
+            return new HashMap<>();
+        }
+    };
+
+    private volatile RetryPolicy retryPolicy = RetryPolicies.exponentialBackoff(2L, 50L, TimeUnit.MILLISECONDS);
+
+    @Autowired
+    private JedisPool jedisPool;
+    /** 配置了就走共享连接自动pipeline */
+    @Autowired(required = false)
+    private AutoPipeline autoPipeline;
+    @Autowired
+    private LockNotifier lockNotifier;
+    @Autowired
+    private LockWatchdog lockWatchdog;
+
+    /**
+     * 直接用于业务，嵌套调用同一个key不会死锁
+     * @param lockKey
+     * @param handler
+     * @return
+     */
+    public boolean lock(String lockKey, BizHandler handler) {
+        return lock(lockKey, handler, false);
+    }
+
+    /**
+     * 直接用于业务
+     * @param lockKey
+     * @param handler
+     * @param watchdog 是否自动续期，只在最外层生效
+     * @return
+     */
+    public boolean lock(String lockKey, BizHandler handler, boolean watchdog) {
+        if (!tryLock(lockKey)) {
+            return false;
+        }
+        Hold hold = HOLDS.get().get(lockKey);
+        if (watchdog && hold.count == 1) {
+            hold.lease = lockWatchdog.watch(LOCK_KEY_PREFIX + lockKey, ownerId(), DistributeLock.LOCK_EXPIRE_TIME, LockScripts.REENTRANT_RENEW);
+        }
+        try {
+            return handler.doBiz();
+        } finally {
+            unLock(lockKey);
+        }
+    }
+
+    /**
+     * 加锁，等待LOCK_TIMEOUT
+     * @param lockKey
+     * @return
+     */
+    public boolean tryLock(String lockKey) {
+        return tryLock(lockKey, DistributeLock.LOCK_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 加锁，当前线程已持有时直接计数返回
+     * @param lockKey
+     * @param timeout
+     * @param unit
+     * @return
+     */
+    public boolean tryLock(String lockKey, long timeout, TimeUnit unit) {
+        Map<String, Hold> holds = HOLDS.get();
+        Hold hold = holds.get(lockKey);
+        if (hold != null) {
+            hold.count++;
+            return true;
+        }
+        final String key = LOCK_KEY_PREFIX + lockKey;
+        final String owner = ownerId();
+        try {
+            boolean lock = LockAcquirer.acquire(lockNotifier, channelKey(lockKey), unit.toNanos(timeout), retryPolicy, new LockAcquirer.Attempt() {
+                @Override
+                public Long tryAcquire() {
+                    return acquire(key, owner);
+                }
+            });
+            if (lock) {
+                holds.put(lockKey, new Hold());
+            }
+            return lock;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (Exception e) {
+            logger.error("reentrant try lock error >>> " + e);
+            return false;
+        }
+    }
+
+    /**
+     * 释放一次，计数减到0才真正释放redis中的锁
+     * @param lockKey
+     * @return 当前线程没有持有该锁时返回false
+     */
+    public boolean unLock(String lockKey) {
+        Map<String, Hold> holds = HOLDS.get();
+        Hold hold = holds.get(lockKey);
+        if (hold == null) {
+            logger.warn("reentrant unLock >>> not held by current thread >>> " + lockKey);
+            return false;
+        }
+        if (--hold.count > 0) {
+            return true;
+        }
+        holds.remove(lockKey);
+        if (holds.isEmpty()) {
+            HOLDS.remove();
+        }
+        if (hold.lease != null) {
+            lockWatchdog.unwatch(hold.lease);
+            if (hold.lease.isLost()) {
+                logger.warn("reentrant lock >>> lease lost during biz >>> " + lockKey);
+            }
+        }
+        return release(LOCK_KEY_PREFIX + lockKey, LockNotifier.channel(channelKey(lockKey)), ownerId());
+    }
+
+    /**
+     * 当前线程是否持有
+     * @param lockKey
+     * @return
+     */
+    public boolean isHeldByCurrentThread(String lockKey) {
+        return HOLDS.get().containsKey(lockKey);
+    }
+
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    private Long acquire(String key, String owner) {
+        return (Long) LockScripts.REENTRANT_ACQUIRE.eval(autoPipeline, jedisPool, 1, key, owner,
+                Long.toString(DistributeLock.LOCK_EXPIRE_TIME));
+    }
+
+    private boolean release(String key, String channel, String owner) {
+        try {
+            Object result = LockScripts.REENTRANT_RELEASE.eval(autoPipeline, jedisPool, 2, key, channel, owner,
+                    Long.toString(DistributeLock.LOCK_EXPIRE_TIME));
+            return Long.valueOf(1L).equals(result);
+        } catch (Exception e) {
+            logger.error("reentrant unLock error >>> " + e);
+            return false;
+        }
+    }
+
+    private static String channelKey(String lockKey) {
+        return "reentrant:" + lockKey;
+    }
+
+    private static String ownerId() {
+        return JVM_ID + ":" + Thread.currentThread().getId();
+    }
+
+    /**
+     * 本地持有记录
+     */
+    private static class Hold {
+
+        private int count = 1;
+
+        private LockWatchdog.Lease lease;
+    }
+}
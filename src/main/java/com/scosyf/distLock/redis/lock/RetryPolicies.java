@@ -0,0 +1,105 @@
+package com.scosyf.distLock.redis.lock;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 常用重试策略
+ * 
+ * 抖动（jitter）的目的是让同时失败的竞争者错开重试时间，避免一起打到redis上
+ * https://aws.amazon.com/blogs/architecture/exponential-backoff-and-jitter/
+ */
+public final class RetryPolicies {
+
+    private RetryPolicies() {
+    }
+
+    /**
+     * 不等待立即重试（原来的自旋行为）
+     * @return
+     */
+    public static RetryPolicy noDelay() {
+        return fixedDelay(0L, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 固定间隔
+     * @param delay
+     * @param unit
+     * @return
+     */
+    public static RetryPolicy fixedDelay(long delay, TimeUnit unit) {
+        final long delayNanos = unit.toNanos(delay);
+        return new RetryPolicy() {
+            @Override
+            public long nextDelayNanos(int attempt, long lastDelayNanos) {
+                return delayNanos;
+            }
+        };
+    }
+
+    /**
+     * 指数退避 + 全抖动：random(0, min(cap, base * 2^attempt))
+     * @param base
+     * @param cap
+     * @param unit
+     * @return
+     */
+    public static RetryPolicy exponentialBackoff(long base, long cap, TimeUnit unit) {
+        final long baseNanos = unit.toNanos(base);
+        final long capNanos = unit.toNanos(cap);
+        return new RetryPolicy() {
+            @Override
+            public long nextDelayNanos(int attempt, long lastDelayNanos) {
+                // base左移后会超过最高位之前就直接取cap，不会溢出成负数或者很小的值
+                int shift = Math.max(attempt, 0);
+                long ceiling = shift >= Long.numberOfLeadingZeros(baseNanos) - 1
+                        ? capNanos : Math.min(capNanos, baseNanos << shift);
+                if (ceiling <= 0) {
+                    return capNanos;
+                }
+                return ThreadLocalRandom.current().nextLong(ceiling + 1);
+            }
+        };
+    }
+
+    /**
+     * 去相关抖动：min(cap, random(base, last * 3))
+     * @param base
+     * @param cap
+     * @param unit
+     * @return
+     */
+    public static RetryPolicy decorrelatedJitter(long base, long cap, TimeUnit unit) {
+        final long baseNanos = unit.toNanos(base);
+        final long capNanos = unit.toNanos(cap);
+        return new RetryPolicy() {
+            @Override
+            public long nextDelayNanos(int attempt, long lastDelayNanos) {
+                long upper = Math.max(baseNanos, lastDelayNanos) * 3;
+                if (upper <= baseNanos) {
+                    return Math.min(capNanos, baseNanos);
+                }
+                return Math.min(capNanos, ThreadLocalRandom.current().nextLong(baseNanos, upper));
+            }
+        };
+    }
+
+    /**
+     * 最多尝试maxAttempts次，间隔由delegate决定
+     * @param maxAttempts
+     * @param delegate
+     * @return
+     */
+    public static RetryPolicy boundedAttempts(final int maxAttempts, final RetryPolicy delegate) {
+        return new RetryPolicy() {
+            @Override
+            public long nextDelayNanos(int attempt, long lastDelayNanos) {
+                if (attempt >= maxAttempts) {
+                    return -1L;
+                }
+                return delegate.nextDelayNanos(attempt, lastDelayNanos);
+            }
+        };
+    }
+}
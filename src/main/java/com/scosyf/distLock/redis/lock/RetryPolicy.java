@@ -0,0 +1,20 @@
+package com.scosyf.distLock.redis.lock;
+
+/**
+ * 加锁重试策略
+ * 
+ * 决定每次加锁失败后等待多久再重试，或者直接放弃；
+ * 总的等待时间由调用方的timeout控制，策略只负责两次尝试之间的间隔
+ * 
+ * 实现需要无状态（或线程安全），同一个策略会被多个线程、多个key共用
+ */
+public interface RetryPolicy {
+
+    /**
+     * 
+     * @param attempt 已经失败的次数，从1开始
+     * @param lastDelayNanos 上一次的等待时间（纳秒），第一次为0
+     * @return 下一次重试前等待的纳秒数，小于0表示放弃
+     */
+    long nextDelayNanos(int attempt, long lastDelayNanos);
+}
@@ -0,0 +1,140 @@
+package com.scosyf.distLock.redis.pipeline;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * 自动pipeline：少量共享连接代替连接池
+ *
+ * 连接池模式下每个命令独占一条连接等一个完整的往返，并发受maxActive和RTT限制；
+ * 这里多个线程的命令进入同一条连接的队列，写线程一次write发出一批，回复按顺序对应回调用方，
+ * 吞吐主要取决于redis的CPU
+ *
+ * 只能用于单条请求-单条回复的命令（包括EVAL/EVALSHA），不能用于：
+ *      > 阻塞命令（BLPOP等），会卡住同一连接上的所有命令
+ *      > SUBSCRIBE、MULTI/EXEC、WATCH、SELECT等改变连接状态的命令
+ *
+ * 连接在第一次使用时建立，断开后下次使用时重建；按轮询选择连接
+ */
+public class AutoPipeline {
+
+    private final String host;
+
+    private final int port;
+
+    private final int timeoutMillis;
+
+    private final PipelinedConnection[] connections;
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    private volatile String password;
+
+    private volatile boolean closed;
+
+    /**
+     *
+     * @param host
+     * @param port
+     * @param timeoutMillis 连接超时，也是execute等待回复的超时
+     * @param connections 共享连接数，一般2~4条就够，多条主要是分摊客户端的读写线程
+     */
+    public AutoPipeline(String host, int port, int timeoutMillis, int connections) {
+        if (connections <= 0) {
+            throw new IllegalArgumentException("connections > 0");
+        }
+        this.host = host;
+        this.port = port;
+        this.timeoutMillis = timeoutMillis;
+        this.connections = new PipelinedConnection[connections];
+    }
+
+    public void setPassword(String password) {
+        this.password = password;
+    }
+
+    /**
+     * 异步发送，不阻塞调用线程
+     * @param command
+     * @param args
+     * @return 回复：状态和bulk为byte[]，整数为Long，multi bulk为List；错误回复以JedisDataException结束
+     */
+    public CompletableFuture<Object> send(Protocol.Command command, byte[]... args) {
+        try {
+            return connection().send(command, args);
+        } catch (RuntimeException e) {
+            CompletableFuture<Object> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+    }
+
+    /**
+     * 同步执行，最多等待timeoutMillis
+     * @param command
+     * @param args
+     * @return 同send
+     */
+    public Object execute(Protocol.Command command, byte[]... args) {
+        return await(send(command, args));
+    }
+
+    /**
+     * 等待send的结果，最多等待timeoutMillis；先send多条再逐个await，多条命令只等一次往返
+     * @param future
+     * @return 同send
+     */
+    public Object await(CompletableFuture<Object> future) {
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JedisConnectionException("interrupted waiting for reply", e);
+        } catch (TimeoutException e) {
+            throw new JedisConnectionException("timeout waiting for reply", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof JedisException) {
+                throw (JedisException) cause;
+            }
+            throw new JedisConnectionException(cause);
+        }
+    }
+
+    public void destroy() {
+        closed = true;
+        synchronized (connections) {
+            for (PipelinedConnection connection : connections) {
+                if (connection != null) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    private PipelinedConnection connection() {
+        int i = (next.getAndIncrement() & Integer.MAX_VALUE) % connections.length;
+        PipelinedConnection connection = connections[i];
+        if (connection != null && !connection.isBroken()) {
+            return connection;
+        }
+        synchronized (connections) {
+            if (closed) {
+                throw new JedisConnectionException("auto pipeline closed");
+            }
+            connection = connections[i];
+            if (connection == null || connection.isBroken()) {
+                connection = new PipelinedConnection("redis-pipeline-" + i, host, port, timeoutMillis, password);
+                connections[i] = connection;
+            }
+            return connection;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package com.scosyf.distLock.redis.pipeline;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.util.RedisInputStream;
+import redis.clients.util.RedisOutputStream;
+
+/**
+ * 一条被多个线程共享的redis连接
+ *
+ * 调用线程只把命令放进队列；写线程每次把队列里攒下的命令全部写出后flush一次，
+ * 同时按发送顺序放入inflight；读线程按顺序读回复，和inflight队头一一对应
+ *
+ * 任何IO错误都会让连接作废：在途和排队的命令全部以异常结束，由AutoPipeline换一条新连接
+ */
+class PipelinedConnection {
+
+    private static Logger logger = LoggerFactory.getLogger(PipelinedConnection.class);
+
+    /** 排队命令上限，redis卡住时不让内存无限增长 */
+    private static final int MAX_QUEUED = 100000;
+
+    /** 一次flush最多写出的命令数 */
+    private static final int MAX_BATCH = 1024;
+
+    private final String name;
+
+    private final Socket socket;
+
+    private final RedisOutputStream out;
+
+    private final RedisInputStream in;
+
+    private final BlockingQueue<PendingCommand> queue = new LinkedBlockingQueue<>(MAX_QUEUED);
+
+    /** 已写出、等待回复的命令，只有写线程入队，只有读线程出队 */
+    private final ConcurrentLinkedQueue<PendingCommand> inflight = new ConcurrentLinkedQueue<>();
+
+    private volatile boolean broken;
+
+    private final Thread writer;
+
+    private final long timeoutNanos;
+
+    PipelinedConnection(String name, String host, int port, int timeoutMillis, String password) {
+        this.name = name;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            socket = new Socket();
+            socket.setReuseAddress(true);
+            socket.setKeepAlive(true);
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port), timeoutMillis);
+            // 空闲时读超时是正常的，见readLoop
+            socket.setSoTimeout(timeoutMillis);
+            out = new RedisOutputStream(socket.getOutputStream());
+            in = new RedisInputStream(socket.getInputStream());
+            if (password != null && !password.isEmpty()) {
+                Protocol.sendCommand(out, Protocol.Command.AUTH, password.getBytes(Protocol.CHARSET));
+                out.flush();
+                Protocol.read(in);
+            }
+        } catch (IOException e) {
+            closeQuietly();
+            throw new JedisConnectionException(e);
+        } catch (RuntimeException e) {
+            closeQuietly();
+            throw e;
+        }
+        writer = start(name + "-writer", new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        });
+        start(name + "-reader", new Runnable() {
+            @Override
+            public void run() {
+                readLoop();
+            }
+        });
+    }
+
+    boolean isBroken() {
+        return broken;
+    }
+
+    CompletableFuture<Object> send(Protocol.Command command, byte[]... args) {
+        PendingCommand pending = new PendingCommand(command, args);
+        if (broken) {
+            pending.future.completeExceptionally(new JedisConnectionException(name + " is broken"));
+            return pending.future;
+        }
+        if (!queue.offer(pending)) {
+            pending.future.completeExceptionally(new JedisConnectionException(name + " queue is full"));
+            return pending.future;
+        }
+        // 放入队列和连接作废同时发生时，保证这条命令也会被结束
+        if (broken) {
+            failQueued(new JedisConnectionException(name + " is broken"));
+        }
+        return pending.future;
+    }
+
+    void close() {
+        fail(new JedisConnectionException(name + " closed"));
+    }
+
+    private void writeLoop() {
+        List<PendingCommand> batch = new ArrayList<>(MAX_BATCH);
+        try {
+            while (!broken) {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - 1);
+                long now = System.nanoTime();
+                for (PendingCommand pending : batch) {
+                    pending.sentAt = now;
+                    inflight.add(pending);
+                    Protocol.sendCommand(out, pending.command, pending.args);
+                }
+                // 整批只flush一次，多个线程的命令合并成一次write
+                out.flush();
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail(new JedisConnectionException(name + " writer interrupted"));
+        } catch (Exception e) {
+            // 已经从队列取出但还没放入inflight的命令也要结束
+            for (PendingCommand pending : batch) {
+                pending.future.completeExceptionally(e);
+            }
+            fail(e);
+        }
+    }
+
+    private void readLoop() {
+        while (!broken) {
+            Object reply;
+            try {
+                reply = Protocol.read(in);
+            } catch (JedisDataException e) {
+                // 错误回复只影响这一条命令
+                complete(e);
+                continue;
+            } catch (JedisConnectionException e) {
+                // 读超时：最早的在途命令还没等满超时时间，说明超时期间连接是空闲的，不会有读了一半的回复
+                if (e.getCause() instanceof SocketTimeoutException && !overdue()) {
+                    continue;
+                }
+                fail(e);
+                return;
+            } catch (Exception e) {
+                fail(e);
+                return;
+            }
+            complete(reply);
+        }
+    }
+
+    private boolean overdue() {
+        PendingCommand oldest = inflight.peek();
+        return oldest != null && System.nanoTime() - oldest.sentAt >= timeoutNanos;
+    }
+
+    private void complete(Object reply) {
+        PendingCommand pending = inflight.poll();
+        if (pending == null) {
+            fail(new JedisConnectionException(name + " got a reply without a command"));
+            return;
+        }
+        if (reply instanceof JedisDataException) {
+            pending.future.completeExceptionally((JedisDataException) reply);
+        } else {
+            pending.future.complete(reply);
+        }
+    }
+
+    private void fail(Throwable cause) {
+        if (!broken) {
+            broken = true;
+            logger.error(name + " broken >>> " + cause);
+            closeQuietly();
+            // 写线程可能阻塞在空队列上
+            if (writer != null && writer != Thread.currentThread()) {
+                writer.interrupt();
+            }
+        }
+        PendingCommand pending;
+        while ((pending = inflight.poll()) != null) {
+            pending.future.completeExceptionally(cause);
+        }
+        failQueued(cause);
+    }
+
+    private void failQueued(Throwable cause) {
+        PendingCommand pending;
+        while ((pending = queue.poll()) != null) {
+            pending.future.completeExceptionally(cause);
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.error("close " + name + " error >>> " + e);
+        }
+    }
+
+    private static Thread start(String name, Runnable runnable) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static class PendingCommand {
+
+        private final Protocol.Command command;
+
+        private final byte[][] args;
+
+        private final CompletableFuture<Object> future = new CompletableFuture<>();
+
+        /** 写出时间，写线程设置后才放入inflight */
+        private volatile long sentAt;
+
+        PendingCommand(Protocol.Command command, byte[][] args) {
+            this.command = command;
+            this.args = args;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package com.scosyf.distLock.redis.stock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.scosyf.distLock.redis.lock.LuaScript;
+
+/**
+ * 分桶库存，不加锁直接在redis里原子扣减
+ *
+ * 库存拆成K个桶（每个桶一个hash：left剩余，sold已售），扣减是lua里的"大于0才减"，
+ * 不需要分布式锁；多个桶分散热点key，集群下还可以落到不同节点
+ *
+ * 调用方随机或按hash选一个起始桶，桶空了就换下一个，本地记住已经空了的桶，
+ * 所有桶都空才算卖完
+ *
+ * 每次初始化/重置把元数据里的generation加1并写入每个桶；扣减时带上本地的generation，
+ * 不一致说明被其他节点重置过，丢掉本地的桶数和空桶标记重新加载
+ */
+@Component
+public class ShardedStock {
+
+    private static Logger logger = LoggerFactory.getLogger(ShardedStock.class);
+
+    /** key前缀 */
+    public static final String STOCK_KEY_PREFIX = "cache:stock:";
+
+    /**
+     * 初始化，已存在时不覆盖（除非ARGV[3]为1），库存均分到各个桶，generation加1
+     * KEYS[1] 元数据，KEYS[2..K+1] 各个桶；ARGV[1] 总库存，ARGV[2] 桶数，ARGV[3] 是否覆盖
+     */
+    private static final LuaScript INIT = LuaScript.of(
+            "if ARGV[3] ~= '1' and redis.call('exists', KEYS[1]) == 1 then " +
+                "return 0 " +
+            "end " +
+            "local total = tonumber(ARGV[1]) " +
+            "local buckets = tonumber(ARGV[2]) " +
+            "redis.call('hmset', KEYS[1], 'total', total, 'buckets', buckets) " +
+            "local generation = redis.call('hincrby', KEYS[1], 'generation', 1) " +
+            "for i = 1, buckets do " +
+                "local left = math.floor(total / buckets) " +
+                "if i <= total % buckets then " +
+                    "left = left + 1 " +
+                "end " +
+                "redis.call('hmset', KEYS[i + 1], 'left', left, 'sold', 0, 'generation', generation) " +
+            "end " +
+            "return 1");
+
+    /**
+     * 大于0才扣减；成功返回该桶剩余，桶已空返回-1，generation不一致返回-2
+     * 只访问桶本身，集群下各个桶可以在不同节点；没有generation的旧数据按0处理
+     * KEYS[1] 桶；ARGV[1] 本地的generation
+     */
+    private static final LuaScript DEDUCT = LuaScript.of(
+            "if (redis.call('hget', KEYS[1], 'generation') or '0') ~= ARGV[1] then " +
+                "return -2 " +
+            "end " +
+            "local left = tonumber(redis.call('hget', KEYS[1], 'left')) " +
+            "if left == nil or left <= 0 then " +
+                "return -1 " +
+            "end " +
+            "redis.call('hincrby', KEYS[1], 'sold', 1) " +
+            "return redis.call('hincrby', KEYS[1], 'left', -1)");
+
+    @Autowired
+    private StockCommands commands;
+
+    /** 扣减失败时重新加载本地状态后最多再试的轮数 */
+    private static final int MAX_RELOADS = 1;
+
+    /** name -> 本地缓存的桶数和空桶标记 */
+    private final ConcurrentHashMap<String, Layout> layouts = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void preload() {
+        try {
+            commands.load(INIT, DEDUCT);
+        } catch (Exception e) {
+            logger.error("stock scripts preload error >>> " + e);
+        }
+    }
+
+    /**
+     * 初始化库存，已经初始化过时保持不变（多节点启动时只有第一个生效）
+     * @param name
+     * @param total
+     * @param buckets
+     * @return 是否由本次调用初始化
+     */
+    public boolean initIfAbsent(String name, long total, int buckets) {
+        return init(name, total, buckets, false);
+    }
+
+    /**
+     * 重置库存
+     * @param name
+     * @param total
+     * @param buckets
+     */
+    public void reset(String name, long total, int buckets) {
+        init(name, total, buckets, true);
+    }
+
+    private boolean init(String name, long total, int buckets, boolean overwrite) {
+        String[] params = new String[buckets + 4];
+        params[0] = metaKey(name);
+        for (int i = 0; i < buckets; i++) {
+            params[i + 1] = bucketKey(name, i);
+        }
+        params[buckets + 1] = Long.toString(total);
+        params[buckets + 2] = Integer.toString(buckets);
+        params[buckets + 3] = overwrite ? "1" : "0";
+        boolean inited = Long.valueOf(1L).equals(commands.eval(INIT, buckets + 1, params));
+        // 以redis中的为准，其他节点通过generation发现
+        layouts.remove(name);
+        return inited;
+    }
+
+    /**
+     * 随机选起始桶扣减一个
+     * @param name
+     * @return 是否扣减成功，false表示卖完了
+     */
+    public boolean deduct(String name) {
+        return deduct(name, ThreadLocalRandom.current().nextInt(Integer.MAX_VALUE));
+    }
+
+    /**
+     * 按hash选起始桶扣减一个，比如用户id，同一用户总是先落到同一个桶
+     * @param name
+     * @param hashKey
+     * @return
+     */
+    public boolean deduct(String name, String hashKey) {
+        return deduct(name, hashKey.hashCode() & Integer.MAX_VALUE);
+    }
+
+    private boolean deduct(String name, int seed) {
+        Layout layout = layout(name);
+        for (int round = 0; ; round++) {
+            boolean stale = false;
+            for (int i = 0; i < layout.buckets; i++) {
+                int bucket = (seed + i) % layout.buckets;
+                if (layout.exhausted.get(bucket) == 1) {
+                    continue;
+                }
+                Long left = (Long) commands.eval(DEDUCT, 1, bucketKey(name, bucket), layout.generation);
+                if (left >= 0) {
+                    return true;
+                }
+                if (left == -2) {
+                    stale = true;
+                    break;
+                }
+                // 同一个generation内库存只减不增，空了的桶不用再访问
+                layout.exhausted.set(bucket, 1);
+            }
+            if (!stale) {
+                // 本地看来全空了，确认没有被其他节点重置过，卖完后每次请求多一次HMGET
+                stale = !layout.generation.equals(generation(commands.hmget(metaKey(name), "generation")));
+            }
+            if (!stale) {
+                return false;
+            }
+            layouts.remove(name, layout);
+            if (round >= MAX_RELOADS) {
+                return false;
+            }
+            layout = layout(name);
+        }
+    }
+
+    /**
+     * 读出元数据后一次pipeline读出所有桶，汇总剩余和已售
+     * @param name
+     * @return
+     */
+    public StockSnapshot snapshot(String name) {
+        // 桶数每次从redis读，不用可能过期的本地缓存
+        List<String> meta = commands.hmget(metaKey(name), "buckets", "total");
+        int buckets = bucketCount(meta, name);
+        List<String> keys = new ArrayList<>(buckets);
+        for (int i = 0; i < buckets; i++) {
+            keys.add(bucketKey(name, i));
+        }
+        List<List<String>> values = commands.hmget(keys, "left", "sold");
+
+        StockSnapshot snapshot = new StockSnapshot();
+        snapshot.setTotal(toLong(meta.get(1)));
+        for (List<String> value : values) {
+            long left = toLong(value.get(0));
+            if (left < 0) {
+                snapshot.setNegativeBucket(true);
+            }
+            snapshot.setRemaining(snapshot.getRemaining() + left);
+            snapshot.setSold(snapshot.getSold() + toLong(value.get(1)));
+        }
+        return snapshot;
+    }
+
+    private Layout layout(String name) {
+        Layout layout = layouts.get(name);
+        if (layout != null) {
+            return layout;
+        }
+        List<String> meta = commands.hmget(metaKey(name), "buckets", "generation");
+        layout = new Layout(bucketCount(meta, name), generation(meta.subList(1, 2)));
+        Layout existing = layouts.putIfAbsent(name, layout);
+        return existing == null ? layout : existing;
+    }
+
+    private static int bucketCount(List<String> meta, String name) {
+        if (meta.get(0) == null) {
+            throw new IllegalStateException("stock not initialized >>> " + name);
+        }
+        return Integer.parseInt(meta.get(0));
+    }
+
+    private static String generation(List<String> meta) {
+        return meta.get(0) == null ? "0" : meta.get(0);
+    }
+
+    private static long toLong(String value) {
+        return value == null ? 0L : Long.parseLong(value);
+    }
+
+    private static String metaKey(String name) {
+        return STOCK_KEY_PREFIX + name;
+    }
+
+    private static String bucketKey(String name, int bucket) {
+        return STOCK_KEY_PREFIX + name + ":" + bucket;
+    }
+
+    /**
+     * 某个generation下的桶数和已知空了的桶（1为空）
+     */
+    private static class Layout {
+
+        private final int buckets;
+
+        private final String generation;
+
+        private final AtomicIntegerArray exhausted;
+
+        Layout(int buckets, String generation) {
+            this.buckets = buckets;
+            this.generation = generation;
+            this.exhausted = new AtomicIntegerArray(buckets);
+        }
+    }
+}
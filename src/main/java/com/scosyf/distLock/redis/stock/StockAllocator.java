@@ -0,0 +1,302 @@
+package com.scosyf.distLock.redis.stock;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.scosyf.distLock.redis.lock.LuaScript;
+
+/**
+ * 节点本地预分配库存
+ *
+ * 每个JVM从redis的库存池里一次租一批（默认50个）放到本地计数器，
+ * 购买只扣本地计数，绝大多数请求不访问网络；
+ * 本地剩余低于水位时异步去租下一批，用完了才同步租
+ *
+ * redis侧租借是原子的"够就扣"，全局不会超卖；
+ * 本地剩余在停机或者空闲一段时间后还回redis，其他节点可以继续卖
+ */
+@Component
+public class StockAllocator {
+
+    private static Logger logger = LoggerFactory.getLogger(StockAllocator.class);
+
+    /** key前缀 */
+    public static final String POOL_KEY_PREFIX = ShardedStock.STOCK_KEY_PREFIX + "pool:";
+
+    /** 默认每次租借数量 */
+    public static final long DEFAULT_BLOCK_SIZE = 50L;
+
+    /** 默认空闲多久归还，毫秒 */
+    public static final long DEFAULT_IDLE_MILLIS = 10000L;
+
+    /** 停机时等待进行中的预取完成的时间，毫秒 */
+    private static final long STOP_TIMEOUT_MILLIS = 5000L;
+
+    /** 库存池租完后，隔多久再去redis看看有没有其他节点归还的 */
+    private static final long SOLD_OUT_RECHECK_MILLIS = 1000L;
+
+    /**
+     * 租借，库存不够一批时把剩下的全部租走；返回租到的数量
+     * KEYS[1] 库存池；ARGV[1] 每批数量
+     */
+    private static final LuaScript LEASE = LuaScript.of(
+            "local left = tonumber(redis.call('get', KEYS[1]) or '0') " +
+            "if left <= 0 then " +
+                "return 0 " +
+            "end " +
+            "local n = math.min(left, tonumber(ARGV[1])) " +
+            "redis.call('decrby', KEYS[1], n) " +
+            "return n");
+
+    @Autowired
+    private StockCommands commands;
+
+    private volatile long blockSize = DEFAULT_BLOCK_SIZE;
+
+    private volatile long idleMillis = DEFAULT_IDLE_MILLIS;
+
+    /** name -> 本地库存块 */
+    private final ConcurrentHashMap<String, LocalBlock> blocks = new ConcurrentHashMap<>();
+
+    private ScheduledThreadPoolExecutor executor;
+
+    @PostConstruct
+    public void start() {
+        executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            private final AtomicInteger index = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "stock-allocator-" + index.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                returnIdle();
+            }
+        }, idleMillis, idleMillis, TimeUnit.MILLISECONDS);
+
+        try {
+            commands.load(LEASE);
+        } catch (Exception e) {
+            logger.error("stock allocator script preload error >>> " + e);
+        }
+    }
+
+    /**
+     * 停机时把本地剩余全部还回去；先等进行中的预取结束，否则它租到的一批会在归还之后才加到本地，再也还不回去
+     */
+    @PreDestroy
+    public void stop() {
+        executor.shutdownNow();
+        try {
+            if (!executor.awaitTermination(STOP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                logger.error("stock allocator stop timeout, prefetching stock may not be given back");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Map.Entry<String, LocalBlock> entry : blocks.entrySet()) {
+            giveBack(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * 初始化库存池，已存在时不覆盖
+     * @param name
+     * @param total
+     * @return 是否由本次调用初始化
+     */
+    public boolean initIfAbsent(String name, long total) {
+        return Long.valueOf(1L).equals(commands.setnx(POOL_KEY_PREFIX + name, Long.toString(total)));
+    }
+
+    /**
+     * 扣减一个
+     * @param name
+     * @return 是否扣减成功，false表示全局都卖完了
+     */
+    public boolean deduct(String name) {
+        LocalBlock block = blockOf(name);
+        block.lastUsed = System.currentTimeMillis();
+        for (;;) {
+            long left = block.tryTake();
+            if (left >= 0) {
+                if (left <= block.lowWatermark) {
+                    prefetch(name, block);
+                }
+                return true;
+            }
+            // 本地用完，同步租一批；同一时刻只让一个线程去租，其余线程等它租回来直接扣本地
+            synchronized (block) {
+                if (block.left.get() > 0) {
+                    continue;
+                }
+                if (block.soldOutUntil - System.currentTimeMillis() > 0) {
+                    return false;
+                }
+                if (lease(name, block) <= 0 && block.left.get() <= 0) {
+                    return false;
+                }
+            }
+        }
+    }
+
+    /**
+     * 本节点未卖出的库存
+     * @param name
+     * @return
+     */
+    public long localLeft(String name) {
+        LocalBlock block = blocks.get(name);
+        return block == null ? 0L : Math.max(0L, block.left.get());
+    }
+
+    /**
+     * redis库存池中还没被任何节点租走的库存
+     * @param name
+     * @return
+     */
+    public long poolLeft(String name) {
+        String value = commands.get(POOL_KEY_PREFIX + name);
+        return value == null ? 0L : Long.parseLong(value);
+    }
+
+    /**
+     * 每次租借数量，越大访问redis越少，但停机前没卖掉的也越多
+     * @param blockSize
+     */
+    public void setBlockSize(long blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * 空闲多久把本地剩余还回redis，启动前设置
+     * @param idleMillis
+     */
+    public void setIdleMillis(long idleMillis) {
+        this.idleMillis = idleMillis;
+    }
+
+    private LocalBlock blockOf(String name) {
+        LocalBlock block = blocks.get(name);
+        if (block == null) {
+            blocks.putIfAbsent(name, new LocalBlock(blockSize / 5));
+            block = blocks.get(name);
+        }
+        return block;
+    }
+
+    private void prefetch(final String name, final LocalBlock block) {
+        if (block.soldOutUntil - System.currentTimeMillis() > 0 || !block.fetching.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        lease(name, block);
+                    } catch (Exception e) {
+                        logger.error("stock prefetch error >>> " + e);
+                    } finally {
+                        block.fetching.set(false);
+                    }
+                }
+            });
+        } catch (Exception e) {
+            // 停机中，不再预取
+            block.fetching.set(false);
+        }
+    }
+
+    private long lease(String name, LocalBlock block) {
+        long leased = (Long) commands.eval(LEASE, 1, POOL_KEY_PREFIX + name, Long.toString(blockSize));
+        if (leased > 0) {
+            block.left.addAndGet(leased);
+        } else {
+            block.soldOutUntil = System.currentTimeMillis() + SOLD_OUT_RECHECK_MILLIS;
+        }
+        return leased;
+    }
+
+    private void returnIdle() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, LocalBlock> entry : blocks.entrySet()) {
+            LocalBlock block = entry.getValue();
+            if (now - block.lastUsed >= idleMillis && block.left.get() > 0) {
+                giveBack(entry.getKey(), block);
+            }
+        }
+    }
+
+    private void giveBack(String name, LocalBlock block) {
+        // 原子清零，之后的购买会重新去租
+        long left = block.left.getAndSet(0L);
+        if (left <= 0) {
+            return;
+        }
+        try {
+            commands.incrBy(POOL_KEY_PREFIX + name, left);
+        } catch (Exception e) {
+            // 没还回去就留在本地继续卖，下次空闲时再还
+            block.left.addAndGet(left);
+            logger.error("stock give back error >>> " + name + ", " + left + ", " + e);
+        }
+    }
+
+    /**
+     * 本地库存块
+     */
+    private static class LocalBlock {
+
+        /** 本地剩余 */
+        private final AtomicLong left = new AtomicLong();
+
+        /** 是否有预取在进行 */
+        private final AtomicBoolean fetching = new AtomicBoolean();
+
+        /** 剩余不超过这个数时预取下一批 */
+        private final long lowWatermark;
+
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        private volatile long soldOutUntil;
+
+        LocalBlock(long lowWatermark) {
+            this.lowWatermark = lowWatermark;
+        }
+
+        /**
+         * 大于0才扣减，LongAdder不支持这种条件扣减，这里用CAS
+         * @return 扣减后的剩余，-1表示本地已经没有了
+         */
+        long tryTake() {
+            long current;
+            do {
+                current = left.get();
+                if (current <= 0) {
+                    return -1L;
+                }
+            } while (!left.compareAndSet(current, current - 1));
+            return current - 1;
+        }
+    }
+}
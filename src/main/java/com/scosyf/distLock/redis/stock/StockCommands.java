@@ -0,0 +1,142 @@
+package com.scosyf.distLock.redis.stock;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.scosyf.distLock.redis.lock.LuaScript;
+import com.scosyf.distLock.redis.pipeline.AutoPipeline;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.Response;
+
+/**
+ * 库存用到的redis命令：配置了自动pipeline就走共享连接，否则从连接池借
+ */
+@Component
+class StockCommands {
+
+    @Autowired
+    private JedisPool jedisPool;
+    /** 配置了就走共享连接自动pipeline */
+    @Autowired(required = false)
+    private AutoPipeline autoPipeline;
+
+    Object eval(LuaScript script, int keyCount, String... params) {
+        return script.eval(autoPipeline, jedisPool, keyCount, params);
+    }
+
+    /**
+     * 预加载脚本，走连接池
+     */
+    void load(final LuaScript... scripts) {
+        withJedis(jedis -> {
+            for (LuaScript script : scripts) {
+                script.load(jedis);
+            }
+            return null;
+        });
+    }
+
+    String get(final String key) {
+        if (autoPipeline != null) {
+            return string(autoPipeline.execute(Protocol.Command.GET, bytes(key)));
+        }
+        return withJedis(jedis -> jedis.get(key));
+    }
+
+    Long setnx(final String key, final String value) {
+        if (autoPipeline != null) {
+            return (Long) autoPipeline.execute(Protocol.Command.SETNX, bytes(key), bytes(value));
+        }
+        return withJedis(jedis -> jedis.setnx(key, value));
+    }
+
+    Long incrBy(final String key, final long increment) {
+        if (autoPipeline != null) {
+            return (Long) autoPipeline.execute(Protocol.Command.INCRBY, bytes(key), bytes(Long.toString(increment)));
+        }
+        return withJedis(jedis -> jedis.incrBy(key, increment));
+    }
+
+    List<String> hmget(String key, String... fields) {
+        List<String> keys = new ArrayList<>(1);
+        keys.add(key);
+        return hmget(keys, fields).get(0);
+    }
+
+    /**
+     * 多个hash一次往返读出
+     * @param keys
+     * @param fields
+     * @return 和keys一一对应
+     */
+    List<List<String>> hmget(final List<String> keys, final String... fields) {
+        List<List<String>> values = new ArrayList<>(keys.size());
+        if (autoPipeline != null) {
+            List<CompletableFuture<Object>> futures = new ArrayList<>(keys.size());
+            for (String key : keys) {
+                byte[][] args = new byte[fields.length + 1][];
+                args[0] = bytes(key);
+                for (int i = 0; i < fields.length; i++) {
+                    args[i + 1] = bytes(fields[i]);
+                }
+                futures.add(autoPipeline.send(Protocol.Command.HMGET, args));
+            }
+            for (CompletableFuture<Object> future : futures) {
+                List<String> fieldValues = new ArrayList<>(fields.length);
+                for (Object value : (List<?>) autoPipeline.await(future)) {
+                    fieldValues.add(string(value));
+                }
+                values.add(fieldValues);
+            }
+            return values;
+        }
+        return withJedis(jedis -> {
+            Pipeline pipeline = jedis.pipelined();
+            List<Response<List<String>>> responses = new ArrayList<>(keys.size());
+            for (String key : keys) {
+                responses.add(pipeline.hmget(key, fields));
+            }
+            pipeline.sync();
+            for (Response<List<String>> response : responses) {
+                values.add(response.get());
+            }
+            return values;
+        });
+    }
+
+    private <T> T withJedis(Function<Jedis, T> action) {
+        Jedis jedis = null;
+        try {
+            jedis = jedisPool.getResource();
+            return action.apply(jedis);
+        } catch (RuntimeException e) {
+            if (jedis != null) {
+                jedisPool.returnBrokenResource(jedis);
+                jedis = null;
+            }
+            throw e;
+        } finally {
+            if (jedis != null) {
+                jedisPool.returnResource(jedis);
+            }
+        }
+    }
+
+    private static String string(Object reply) {
+        return reply == null ? null : new String((byte[]) reply, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,53 @@
+package com.scosyf.distLock.redis.stock;
+
+/**
+ * 库存快照，用于展示和超卖检查
+ */
+public class StockSnapshot {
+
+    private long total;
+    private long remaining;
+    private long sold;
+    /** 是否有桶被扣成负数 */
+    private boolean negativeBucket;
+
+    /**
+     * 超卖：有桶为负，或者已售 + 剩余 != 总量
+     * @return
+     */
+    public boolean isOversold() {
+        return negativeBucket || sold > total || sold + remaining != total;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    public void setTotal(long total) {
+        this.total = total;
+    }
+
+    public long getRemaining() {
+        return remaining;
+    }
+
+    public void setRemaining(long remaining) {
+        this.remaining = remaining;
+    }
+
+    public long getSold() {
+        return sold;
+    }
+
+    public void setSold(long sold) {
+        this.sold = sold;
+    }
+
+    public boolean isNegativeBucket() {
+        return negativeBucket;
+    }
+
+    public void setNegativeBucket(boolean negativeBucket) {
+        this.negativeBucket = negativeBucket;
+    }
+}
@@ -0,0 +1,84 @@
+package com.scosyf.distLock.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+public class HistogramTest {
+
+    @Test
+    public void emptySnapshotIsZero() {
+        Map<String, Object> snapshot = new Histogram().snapshot();
+        assertEquals(0L, snapshot.get("count"));
+        assertEquals(0L, snapshot.get("p99"));
+        assertEquals(0L, snapshot.get("max"));
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        Histogram histogram = new Histogram();
+        for (long v = 0; v < 8; v++) {
+            assertEquals(v, Histogram.upperBound(Histogram.index(v)));
+            histogram.record(v);
+        }
+        Map<String, Object> snapshot = histogram.snapshot();
+        assertEquals(8L, snapshot.get("count"));
+        assertEquals(3L, snapshot.get("p50"));
+        assertEquals(7L, snapshot.get("max"));
+    }
+
+    @Test
+    public void bucketsCoverEveryValue() {
+        long[] values = {8L, 9L, 15L, 16L, 1000L, 123456789L, Long.MAX_VALUE / 3, Long.MAX_VALUE};
+        for (long value : values) {
+            int index = Histogram.index(value);
+            long upper = Histogram.upperBound(index);
+            assertTrue(value + " <= " + upper, value <= upper);
+            // 相对误差不超过1/8
+            assertTrue(value + " ~ " + upper, upper - value <= value / 8);
+            if (index > 0) {
+                assertTrue(Histogram.upperBound(index - 1) < value);
+            }
+        }
+    }
+
+    @Test
+    public void indexIsMonotonic() {
+        int last = -1;
+        for (long value = 0; value < 100000; value++) {
+            int index = Histogram.index(value);
+            assertTrue(index >= last);
+            last = index;
+        }
+    }
+
+    @Test
+    public void percentilesWithinRelativeError() {
+        Histogram histogram = new Histogram();
+        for (long v = 1; v <= 10000; v++) {
+            histogram.record(v);
+        }
+        Map<String, Object> snapshot = histogram.snapshot();
+        assertEquals(10000L, snapshot.get("count"));
+        assertEquals(5000L, snapshot.get("mean"));
+        assertEquals(10000L, snapshot.get("max"));
+        assertWithin(5000L, (Long) snapshot.get("p50"));
+        assertWithin(9900L, (Long) snapshot.get("p99"));
+    }
+
+    @Test
+    public void negativeValuesCountAsZero() {
+        Histogram histogram = new Histogram();
+        histogram.record(-5L);
+        Map<String, Object> snapshot = histogram.snapshot();
+        assertEquals(1L, snapshot.get("count"));
+        assertEquals(0L, snapshot.get("max"));
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue(expected + " ~ " + actual, actual >= expected && actual - expected <= expected / 8);
+    }
+}
@@ -0,0 +1,126 @@
+package com.scosyf.distLock.redis.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+
+public class CompactRedisSerializerTest {
+
+    private final CompactRedisSerializer serializer = new CompactRedisSerializer();
+
+    @Test
+    public void roundTripsScalars() {
+        for (Object value : Arrays.<Object>asList("abc", "中文", "", 0L, 1L, -1L, Long.MAX_VALUE, Long.MIN_VALUE,
+                0, 300, -300, Integer.MAX_VALUE, Integer.MIN_VALUE, 0.5d, -1e300d, Double.NaN, true, false)) {
+            assertEquals(value, serializer.deserialize(serializer.serialize(value)));
+        }
+    }
+
+    @Test
+    public void stringsAreRawUtf8() {
+        assertArrayEquals("abc".getBytes(StandardCharsets.UTF_8), serializer.serialize("abc"));
+    }
+
+    @Test
+    public void nullRoundTripsAsNull() {
+        assertNull(serializer.deserialize(serializer.serialize(null)));
+        assertNull(serializer.deserialize(null));
+        assertNull(serializer.deserialize(new byte[0]));
+    }
+
+    @Test
+    public void roundTripsJsonType() {
+        Item item = new Item();
+        item.setName("apple");
+        item.setCount(3);
+        Item copy = (Item) serializer.deserialize(serializer.serialize(item));
+        assertEquals("apple", copy.getName());
+        assertEquals(3, copy.getCount());
+    }
+
+    @Test
+    public void otherTypesUseJdkSerialization() {
+        List<String> list = new ArrayList<>(Arrays.asList("a", "b"));
+        byte[] bytes = serializer.serialize(list);
+        assertEquals((byte) 0xAC, bytes[0]);
+        assertEquals(list, serializer.deserialize(bytes));
+    }
+
+    @Test
+    public void readsOldJdkData() {
+        byte[] old = new JdkSerializationRedisSerializer().serialize(42L);
+        assertEquals(42L, serializer.deserialize(old));
+    }
+
+    @Test
+    public void truncatedValuesThrowSerializationException() {
+        List<Object> values = Arrays.<Object>asList(Long.MAX_VALUE, Integer.MIN_VALUE, 1.5d, true, itemOf("pear"));
+        for (Object value : values) {
+            byte[] bytes = serializer.serialize(value);
+            // 只剩类型字节，以及去掉最后一个字节（json去掉后仍可能是合法json，只截到类名中间）
+            int[] lengths = value instanceof Item ? new int[] {1, 4} : new int[] {1, bytes.length - 1};
+            for (int length : lengths) {
+                try {
+                    serializer.deserialize(Arrays.copyOf(bytes, length));
+                    fail("truncated " + value + " to " + length + " bytes");
+                } catch (SerializationException e) {
+                    // expected
+                }
+            }
+        }
+    }
+
+    @Test(expected = SerializationException.class)
+    public void rejectsClassOutsideJsonPackages() {
+        byte[] name = "java.lang.Thread".getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = new byte[2 + name.length + 2];
+        bytes[0] = (byte) 0xFE;
+        bytes[1] = (byte) name.length;
+        System.arraycopy(name, 0, bytes, 2, name.length);
+        bytes[bytes.length - 2] = '{';
+        bytes[bytes.length - 1] = '}';
+        serializer.deserialize(bytes);
+    }
+
+    private static Item itemOf(String name) {
+        Item item = new Item();
+        item.setName(name);
+        return item;
+    }
+
+    public static class Item implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private String name;
+
+        private int count;
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public void setCount(int count) {
+            this.count = count;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.scosyf.distLock.redis.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class InMemoryCacheManagerTest {
+
+    /** 时间轮基本不转，过期只靠读取时检查 */
+    private final InMemoryCacheManager cache = new InMemoryCacheManager(3600000L);
+
+    @After
+    public void tearDown() {
+        cache.destroy();
+    }
+
+    @Test
+    public void putAndGet() {
+        assertTrue(cache.put("k", "v").isSucc());
+        assertEquals("v", cache.<String>getObject("k").getModule());
+        assertEquals("v", cache.getString("k").getModule());
+        assertEquals(-1L, cache.getExpire("k"));
+
+        cache.put("n", 5L);
+        assertEquals(Long.valueOf(5L), cache.<Long>getObject("n").getModule());
+        assertEquals("5", cache.getString("n").getModule());
+
+        assertNull(cache.getObject("missing").getModule());
+        assertNull(cache.put(" ", "v"));
+
+        cache.del("k");
+        assertNull(cache.getObject("k").getModule());
+        assertEquals(-2L, cache.getExpire("k"));
+    }
+
+    @Test
+    public void expiredValueIsRemovedOnRead() throws Exception {
+        cache.put("k", "v");
+        cache.expireAt("k", new Date(System.currentTimeMillis() + 50L));
+        assertEquals("v", cache.getString("k").getModule());
+        Thread.sleep(100L);
+
+        // 时间轮还没清理，读的时候发现过期并删除
+        assertEquals(1, cache.size());
+        assertNull(cache.getString("k").getModule());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void expireSetsTtl() {
+        cache.put("k", "v", 100L);
+        assertEquals(100L, cache.getExpire("k"));
+
+        cache.expire("k", 10L);
+        assertEquals(10L, cache.getExpire("k"));
+        cache.expireAt("k", new Date(System.currentTimeMillis() + 20000L));
+        assertEquals(20L, cache.getExpire("k"));
+
+        // 不存在的key不会被创建
+        cache.expire("missing", 10L);
+        assertEquals(-2L, cache.getExpire("missing"));
+    }
+
+    @Test
+    public void expireInThePastDeletes() {
+        cache.put("a", "v");
+        cache.put("b", "v");
+        cache.expire("a", 0L);
+        cache.expireAt("b", new Date(System.currentTimeMillis() - 1000L));
+        assertNull(cache.getObject("a").getModule());
+        assertNull(cache.getObject("b").getModule());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void incrKeepsTtl() {
+        assertEquals(1L, cache.incr("c"));
+        cache.expire("c", 100L);
+        assertEquals(2L, cache.incr("c"));
+        assertEquals(100L, cache.getExpire("c"));
+
+        // getSet清除过期时间
+        assertEquals("2", cache.getSet("c", "0"));
+        assertEquals(-1L, cache.getExpire("c"));
+    }
+
+    @Test
+    public void bulkOperations() {
+        Map<String, Serializable> values = new HashMap<>();
+        values.put("a", "1");
+        values.put("b", "2");
+        values.put("c", "3");
+        cache.mput(values, Collections.singletonMap("a", 100L));
+        assertEquals(100L, cache.getExpire("a"));
+        assertEquals(-1L, cache.getExpire("b"));
+
+        cache.addToSet("s", "x");
+        Map<String, Serializable> got = cache.mget(Arrays.asList("a", "b", "c", "s", "missing"));
+        // 不存在的和类型不对的都不返回
+        assertEquals(values, got);
+
+        cache.mexpire(Arrays.asList("b", "c"), 50L);
+        assertEquals(50L, cache.getExpire("b"));
+        assertEquals(50L, cache.getExpire("c"));
+
+        cache.mdel(Arrays.asList("a", "b"));
+        assertEquals(Collections.singleton("c"), cache.mget(Arrays.asList("a", "b", "c")).keySet());
+    }
+
+    @Test
+    public void setOperations() {
+        assertEquals(2L, cache.addToSet("s", "x", "y"));
+        assertEquals(0L, cache.addToSet("s", "x"));
+        assertEquals(2L, cache.sizeOfSet("s"));
+        assertTrue(cache.isMemberOfSet("s", "x"));
+        assertFalse(cache.isMemberOfSet("s", "z"));
+
+        assertEquals(1L, cache.delFromSet("s", "x"));
+        assertEquals(0L, cache.delFromSet("s", "x"));
+        assertEquals(1L, cache.sizeOfSet("s"));
+
+        // 和redis一样，空了就删除key
+        cache.delFromSet("s", "y");
+        assertEquals(0, cache.size());
+        assertEquals(0L, cache.sizeOfSet("s"));
+        assertFalse(cache.isMemberOfSet("missing", "x"));
+    }
+
+    @Test
+    public void hashOperations() {
+        assertEquals(1L, cache.incPv("article", "1"));
+        assertEquals(2L, cache.incPv("article", "1"));
+        assertEquals(Long.valueOf(2L), cache.getPv("article", "1"));
+        cache.hput("article", "2", 7L);
+        assertEquals(Long.valueOf(7L), cache.<Long>hget("article", "2").getModule());
+
+        assertEquals(Long.valueOf(2L), cache.getAndDelPv("article", "1"));
+        assertNull(cache.getPv("article", "1"));
+        cache.hdel("article", "2");
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void wrongTypeIsRejected() {
+        cache.addToSet("s", "x");
+        try {
+            cache.getString("s");
+            fail("WRONGTYPE expected");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().startsWith("WRONGTYPE"));
+        }
+        try {
+            cache.incPv("s", "1");
+            fail("WRONGTYPE expected");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().startsWith("WRONGTYPE"));
+        }
+    }
+
+    @Test
+    public void setnxAndKeys() {
+        assertTrue(cache.setnx("lock:a", "1"));
+        assertFalse(cache.setnx("lock:a", "2"));
+        assertTrue(cache.setnx("lock:b", 2L));
+        cache.put("other", "v");
+        assertEquals(new HashSet<>(Arrays.asList("lock:a", "lock:b")), cache.keys("lock:*"));
+        assertEquals(Collections.singleton("lock:a"), cache.keys("lock:[a]"));
+    }
+}
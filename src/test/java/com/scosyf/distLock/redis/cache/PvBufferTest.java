@@ -0,0 +1,338 @@
+package com.scosyf.distLock.redis.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+
+public class PvBufferTest {
+
+    private static final String NS = "article";
+
+    private static final String HASH = PvBuffer.PV_KEY_PREFIX + NS;
+
+    private final FakeRedis redis = new FakeRedis();
+
+    /** 不让后台线程刷新，测试里手动flush */
+    private final PvBuffer buffer = new PvBuffer(redis, TimeUnit.HOURS.toMillis(1));
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        redis.failing = false;
+        redis.duringPipeline = null;
+        buffer.shutdown();
+    }
+
+    @Test
+    public void incrementStartsFromRedisValue() {
+        redis.hset(HASH, "a", 100L);
+        assertEquals(101L, buffer.increment(NS, "a"));
+        assertEquals(102L, buffer.increment(NS, "a"));
+        // 只在新建计数器时读一次
+        assertEquals(1, redis.hgets);
+        assertEquals(Long.valueOf(102L), buffer.get(NS, "a"));
+    }
+
+    @Test
+    public void flushWritesEachIncrementOnce() {
+        for (int i = 0; i < 3; i++) {
+            buffer.increment(NS, "a");
+        }
+        buffer.increment(NS, "b");
+        buffer.flush();
+        assertEquals(Long.valueOf(3L), redis.hget(HASH, "a"));
+        assertEquals(Long.valueOf(1L), redis.hget(HASH, "b"));
+        assertEquals(1, redis.pipelines);
+
+        // 没有新增量时不再写
+        buffer.flush();
+        assertEquals(1, redis.pipelines);
+        assertEquals(Long.valueOf(3L), redis.hget(HASH, "a"));
+        assertEquals(4L, buffer.increment(NS, "a"));
+        assertEquals(Long.valueOf(4L), buffer.get(NS, "a"));
+    }
+
+    @Test
+    public void flushPicksUpOtherNodesWrites() {
+        buffer.increment(NS, "a");
+        // 其他节点刷进来的
+        redis.hset(HASH, "a", 10L);
+        buffer.flush();
+        assertEquals(12L, buffer.increment(NS, "a"));
+    }
+
+    @Test
+    public void valuesDoNotGoBackDuringFlush() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            buffer.increment(NS, "a");
+        }
+        final List<Long> seen = new ArrayList<>();
+        final List<Future<Long>> reads = new ArrayList<>();
+        redis.duringPipeline = new Runnable() {
+            @Override
+            public void run() {
+                // HINCRBY还没有执行，增量在途
+                seen.add(buffer.increment(NS, "a"));
+                reads.add(executor.submit(() -> buffer.get(NS, "a")));
+            }
+        };
+        buffer.flush();
+        assertEquals(Long.valueOf(6L), seen.get(0));
+        // get在刷新期间等刷新结束，既不少算在途的5也不重复算
+        assertEquals(Long.valueOf(6L), reads.get(0).get(5, TimeUnit.SECONDS));
+        assertEquals(Long.valueOf(5L), redis.hget(HASH, "a"));
+    }
+
+    @Test
+    public void getWaitsForFlushInProgress() throws Exception {
+        buffer.increment(NS, "a");
+        final Future<?>[] read = new Future<?>[1];
+        redis.duringPipeline = new Runnable() {
+            @Override
+            public void run() {
+                read[0] = executor.submit(() -> buffer.get(NS, "a"));
+                try {
+                    read[0].get(200, TimeUnit.MILLISECONDS);
+                    fail("get should wait for the flush");
+                } catch (TimeoutException e) {
+                    // expected
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        buffer.flush();
+        assertEquals(1L, read[0].get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void failedFlushIsRetried() {
+        buffer.increment(NS, "a");
+        buffer.increment(NS, "a");
+        redis.failing = true;
+        try {
+            buffer.flush();
+            fail("flush should rethrow");
+        } catch (DataAccessResourceFailureException e) {
+            // expected
+        }
+        assertNull(redis.hget(HASH, "a"));
+        assertEquals(3L, buffer.increment(NS, "a"));
+
+        redis.failing = false;
+        buffer.flush();
+        assertEquals(Long.valueOf(3L), redis.hget(HASH, "a"));
+        assertEquals(Long.valueOf(3L), buffer.get(NS, "a"));
+    }
+
+    @Test
+    public void getAndDeleteTakesFlushedAndPending() {
+        redis.hset(HASH, "a", 10L);
+        buffer.increment(NS, "a");
+        buffer.increment(NS, "a");
+        buffer.flush();
+        buffer.increment(NS, "a");
+
+        assertEquals(Long.valueOf(13L), buffer.getAndDelete(NS, "a"));
+        assertFalse(redis.hexists(HASH, "a"));
+        assertNull(buffer.get(NS, "a"));
+
+        // 取走的增量不会再被刷出去
+        buffer.flush();
+        assertFalse(redis.hexists(HASH, "a"));
+        assertEquals(1L, buffer.increment(NS, "a"));
+        buffer.flush();
+        assertEquals(Long.valueOf(1L), redis.hget(HASH, "a"));
+    }
+
+    @Test
+    public void getAndDeleteOfUnknownKey() {
+        assertEquals(Long.valueOf(0L), buffer.getAndDelete(NS, "missing"));
+        assertNull(buffer.get(NS, "missing"));
+    }
+
+    @Test
+    public void idleCountersRetireWithoutLosingIncrements() {
+        buffer.increment(NS, "a");
+        buffer.flush();
+        // 连续几次没有增量后被移除，再保留一轮
+        for (int i = 0; i < 5; i++) {
+            buffer.flush();
+        }
+        int hgets = redis.hgets;
+
+        // 移除后重新建计数器，从redis中的值开始
+        assertEquals(2L, buffer.increment(NS, "a"));
+        assertEquals(hgets + 1, redis.hgets);
+        buffer.flush();
+        assertEquals(Long.valueOf(2L), redis.hget(HASH, "a"));
+    }
+
+    @Test
+    public void concurrentIncrementsAreAllFlushed() throws Exception {
+        ExecutorService writers = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                futures.add(writers.submit(() -> {
+                    for (int i = 0; i < 10000; i++) {
+                        buffer.increment(NS, "k" + (i % 7));
+                    }
+                }));
+            }
+            // 写的同时刷新和淘汰
+            while (!allDone(futures)) {
+                buffer.flush();
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            writers.shutdownNow();
+        }
+        buffer.flush();
+        buffer.flush();
+        long total = 0L;
+        for (int k = 0; k < 7; k++) {
+            total += redis.hget(HASH, "k" + k);
+        }
+        assertEquals(40000L, total);
+        assertTrue(redis.pipelines > 0);
+    }
+
+    private static boolean allDone(List<Future<?>> futures) {
+        for (Future<?> future : futures) {
+            if (!future.isDone()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 内存中的hash，只实现PvBuffer用到的HGET、pipeline HINCRBY和GET_AND_DEL脚本
+     */
+    private static class FakeRedis extends StringRedisTemplate {
+
+        private final Map<String, Map<String, Long>> hashes = new ConcurrentHashMap<>();
+
+        private volatile boolean failing;
+
+        /** pipeline已经发出、HINCRBY执行之前调用 */
+        private volatile Runnable duringPipeline;
+
+        private volatile int hgets;
+
+        private volatile int pipelines;
+
+        void hset(String hash, String field, long value) {
+            hash(hash).put(field, value);
+        }
+
+        Long hget(String hash, String field) {
+            return hash(hash).get(field);
+        }
+
+        boolean hexists(String hash, String field) {
+            return hash(hash).containsKey(field);
+        }
+
+        private Map<String, Long> hash(String hash) {
+            Map<String, Long> fields = hashes.get(hash);
+            if (fields == null) {
+                hashes.putIfAbsent(hash, new ConcurrentHashMap<String, Long>());
+                fields = hashes.get(hash);
+            }
+            return fields;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <HK, HV> HashOperations<String, HK, HV> opsForHash() {
+            return (HashOperations<String, HK, HV>) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[] {HashOperations.class}, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if (!"get".equals(method.getName())) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    hgets++;
+                    Long value = hget((String) args[0], (String) args[1]);
+                    return value == null ? null : value.toString();
+                }
+            });
+        }
+
+        @Override
+        public List<Object> executePipelined(RedisCallback<?> action) {
+            if (failing) {
+                throw new DataAccessResourceFailureException("redis down");
+            }
+            final List<String[]> commands = new ArrayList<>();
+            final List<Long> increments = new ArrayList<>();
+            RedisConnection connection = (RedisConnection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[] {RedisConnection.class}, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if (!"hIncrBy".equals(method.getName()) || !(args[2] instanceof Long)) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    commands.add(new String[] {string((byte[]) args[0]), string((byte[]) args[1])});
+                    increments.add((Long) args[2]);
+                    return null;
+                }
+            });
+            action.doInRedis(connection);
+            pipelines++;
+            Runnable hook = duringPipeline;
+            if (hook != null) {
+                hook.run();
+            }
+            List<Object> results = new ArrayList<>();
+            for (int i = 0; i < commands.size(); i++) {
+                Map<String, Long> fields = hash(commands.get(i)[0]);
+                results.add(fields.merge(commands.get(i)[1], increments.get(i), Long::sum));
+            }
+            return results;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> T execute(RedisScript<T> script, List<String> keys, Object... args) {
+            // GET_AND_DEL：取出、删除、加上本地增量
+            Long pv = hash(keys.get(0)).remove((String) args[0]);
+            return (T) Long.valueOf((pv == null ? 0L : pv) + Long.parseLong((String) args[1]));
+        }
+
+        private static String string(byte[] bytes) {
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
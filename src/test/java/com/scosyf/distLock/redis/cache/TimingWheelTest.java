@@ -0,0 +1,97 @@
+package com.scosyf.distLock.redis.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TimingWheelTest {
+
+    private static final long TICK = 10L;
+
+    private static final long START = 1000000L;
+
+    private final List<String> expired = new ArrayList<>();
+
+    private final List<Long> firedAt = new ArrayList<>();
+
+    private long now = START;
+
+    private final TimingWheel wheel = new TimingWheel(TICK, START, new TimingWheel.Expirer() {
+        @Override
+        public void expire(String key, long deadline) {
+            expired.add(key);
+            firedAt.add(now);
+            // 不会早于到期时间所在的tick
+            assertTrue(now / TICK >= deadline / TICK);
+        }
+    });
+
+    @Test
+    public void firesAtDeadline() {
+        wheel.add("a", START + 55L);
+        advanceTo(START + 49L);
+        assertTrue(expired.isEmpty());
+        advanceTo(START + 50L);
+        assertEquals(1, expired.size());
+        assertEquals("a", expired.get(0));
+    }
+
+    @Test
+    public void pastDeadlineFiresOnNextTick() {
+        wheel.add("a", START - 1000L);
+        advanceTo(START + TICK);
+        assertEquals(1, expired.size());
+    }
+
+    @Test
+    public void cascadesFromUpperLevels() {
+        // 第0层一圈512格 = 5120ms，这几个都要从上层降级
+        long[] offsets = {6000L, 60000L, 3000000L};
+        for (int i = 0; i < offsets.length; i++) {
+            wheel.add("k" + i, START + offsets[i]);
+        }
+        for (int i = 0; i < offsets.length; i++) {
+            advanceTo(START + offsets[i] - TICK);
+            assertEquals(i, expired.size());
+            advanceTo(START + offsets[i]);
+            assertEquals(i + 1, expired.size());
+            assertEquals("k" + i, expired.get(i));
+        }
+    }
+
+    @Test
+    public void firesInDeadlineOrder() {
+        wheel.add("c", START + 300L);
+        wheel.add("a", START + 100L);
+        wheel.add("b", START + 200L);
+        advanceTo(START + 1000L);
+        assertEquals(3, expired.size());
+        assertEquals("a", expired.get(0));
+        assertEquals("b", expired.get(1));
+        assertEquals("c", expired.get(2));
+    }
+
+    @Test
+    public void duplicateTasksAllFire() {
+        // 任务不能取消，重复添加时每个都会回调，由调用方判断是否仍然有效
+        wheel.add("a", START + 100L);
+        wheel.add("a", START + 200L);
+        advanceTo(START + 1000L);
+        assertEquals(2, expired.size());
+        assertEquals(START + 100L, (long) firedAt.get(0));
+    }
+
+    /**
+     * 逐个tick推进，回调里可以拿到准确的当前时间
+     */
+    private void advanceTo(long target) {
+        while (now < target) {
+            now = Math.min(now + TICK, target);
+            wheel.advance(now);
+        }
+    }
+}
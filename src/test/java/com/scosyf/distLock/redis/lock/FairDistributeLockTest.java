@@ -0,0 +1,33 @@
+package com.scosyf.distLock.redis.lock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class FairDistributeLockTest {
+
+    @Test
+    public void defaultTimeoutPollsSeveralTimes() {
+        long lease = FairDistributeLock.waiterLease(DistributeLock.LOCK_TIMEOUT);
+        long poll = FairDistributeLock.pollInterval(DistributeLock.LOCK_TIMEOUT, lease);
+        assertTrue(poll * 4 <= DistributeLock.LOCK_TIMEOUT);
+        assertTrue(poll * 4 <= lease);
+    }
+
+    @Test
+    public void leaseIsClamped() {
+        assertEquals(FairDistributeLock.MIN_WAITER_LEASE, FairDistributeLock.waiterLease(1L));
+        assertEquals(500L, FairDistributeLock.waiterLease(500L));
+        assertEquals(FairDistributeLock.WAITER_LEASE, FairDistributeLock.waiterLease(60000L));
+    }
+
+    @Test
+    public void pollRenewsWellWithinLease() {
+        for (long timeout : new long[] {0L, 1L, 10L, 100L, 1000L, 5000L, 60000L}) {
+            long lease = FairDistributeLock.waiterLease(timeout);
+            long poll = FairDistributeLock.pollInterval(timeout, lease);
+            assertTrue(timeout + " >>> " + poll, poll > 0 && poll * 4 <= lease);
+        }
+    }
+}
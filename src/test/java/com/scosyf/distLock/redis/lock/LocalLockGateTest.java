@@ -0,0 +1,103 @@
+package com.scosyf.distLock.redis.lock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class LocalLockGateTest {
+
+    private static final long LEASE = 10000L;
+
+    @Test
+    public void secondOwnerWaitsUntilExit() throws Exception {
+        LocalLockGate gate = new LocalLockGate();
+        assertTrue(gate.enter("k", "a", LEASE, 0L, TimeUnit.MILLISECONDS));
+        assertFalse(gate.enter("k", "b", LEASE, 20L, TimeUnit.MILLISECONDS));
+
+        gate.exit("k", "a");
+        assertTrue(gate.enter("k", "b", LEASE, 0L, TimeUnit.MILLISECONDS));
+        gate.exit("k", "b");
+        assertEquals(0, gate.size());
+    }
+
+    @Test
+    public void exitByOtherOwnerIsIgnored() throws Exception {
+        LocalLockGate gate = new LocalLockGate();
+        assertTrue(gate.enter("k", "a", LEASE, 0L, TimeUnit.MILLISECONDS));
+        gate.exit("k", "b");
+        assertFalse(gate.enter("k", "c", LEASE, 0L, TimeUnit.MILLISECONDS));
+        gate.exit("k", "a");
+        assertEquals(0, gate.size());
+    }
+
+    @Test
+    public void keysAreIndependent() throws Exception {
+        LocalLockGate gate = new LocalLockGate();
+        assertTrue(gate.enter("k1", "a", LEASE, 0L, TimeUnit.MILLISECONDS));
+        assertTrue(gate.enter("k2", "b", LEASE, 0L, TimeUnit.MILLISECONDS));
+        assertEquals(2, gate.size());
+        gate.exit("k1", "a");
+        gate.exit("k2", "b");
+        assertEquals(0, gate.size());
+    }
+
+    @Test
+    public void expiredOwnerIsTakenOver() throws Exception {
+        LocalLockGate gate = new LocalLockGate();
+        assertTrue(gate.enter("k", "a", 20L, 0L, TimeUnit.MILLISECONDS));
+        assertTrue(gate.enter("k", "b", LEASE, 1000L, TimeUnit.MILLISECONDS));
+
+        // 原持有者迟到的exit不能放走新的持有者
+        gate.exit("k", "a");
+        assertFalse(gate.enter("k", "c", LEASE, 0L, TimeUnit.MILLISECONDS));
+        gate.exit("k", "b");
+        assertEquals(0, gate.size());
+    }
+
+    @Test
+    public void onlyOneThreadInsideAtATime() throws Exception {
+        final LocalLockGate gate = new LocalLockGate();
+        final AtomicInteger inside = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            Future<?>[] futures = new Future<?>[8];
+            for (int t = 0; t < futures.length; t++) {
+                final String owner = "owner-" + t;
+                futures[t] = executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < 200; i++) {
+                        assertTrue(gate.enter("k", owner, LEASE, 10L, TimeUnit.SECONDS));
+                        try {
+                            if (inside.incrementAndGet() != 1) {
+                                overlaps.incrementAndGet();
+                            }
+                            inside.decrementAndGet();
+                        } finally {
+                            gate.exit("k", owner);
+                        }
+                    }
+                    return null;
+                });
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get(30L, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(0, overlaps.get());
+        assertEquals(0, gate.size());
+    }
+}
@@ -0,0 +1,152 @@
+package com.scosyf.distLock.redis.lock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import redis.clients.jedis.JedisPool;
+
+/**
+ * 三个相互独立的redis替身节点上的Redlock
+ */
+public class RedLockTest {
+
+    private static final String LOCK_KEY = "order";
+
+    private static final String KEY = RedLock.LOCK_KEY_PREFIX + LOCK_KEY;
+
+    private static final long LEASE = 10000L;
+
+    private final List<RedisStandIn> nodes = new ArrayList<>();
+
+    private final List<JedisPool> pools = new ArrayList<>();
+
+    private RedLock redLock;
+
+    @Before
+    public void setUp() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            RedisStandIn node = RedisStandIn.start();
+            nodes.add(node);
+            pools.add(new JedisPool(new GenericObjectPoolConfig(), "127.0.0.1", node.getPort(), 1000));
+        }
+        redLock = new RedLock(pools);
+        redLock.setNodeTimeout(50L);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        redLock.destroy();
+        for (JedisPool pool : pools) {
+            pool.destroy();
+        }
+        for (RedisStandIn node : nodes) {
+            node.stop();
+        }
+    }
+
+    @Test
+    public void quorumIsMajority() {
+        assertEquals(2, redLock.getQuorum());
+    }
+
+    @Test
+    public void locksAllNodesAndReleases() {
+        String value = DistributeLock.newValue();
+        long validity = redLock.tryLock(LOCK_KEY, value, LEASE, 0L, TimeUnit.MILLISECONDS);
+        assertTrue(validity > 0);
+        for (RedisStandIn node : nodes) {
+            assertEquals(value, node.get(KEY));
+        }
+
+        assertEquals(3, redLock.unLock(LOCK_KEY, value));
+        for (RedisStandIn node : nodes) {
+            assertNull(node.get(KEY));
+        }
+    }
+
+    @Test
+    public void validityIsReducedByClockDrift() {
+        long validity = redLock.tryLock(LOCK_KEY, DistributeLock.newValue(), LEASE, 0L, TimeUnit.MILLISECONDS);
+        long drift = (long) (LEASE * RedLock.CLOCK_DRIFT_FACTOR) + RedLock.CLOCK_DRIFT_MIN;
+        assertTrue(validity > 0);
+        assertTrue(validity + " <= " + (LEASE - drift), validity <= LEASE - drift);
+    }
+
+    @Test
+    public void leaseShorterThanDriftFailsAndCleansUp() throws Exception {
+        // 过期时间连时钟漂移都抵不过，即使全部节点都加上了也算失败
+        String value = DistributeLock.newValue();
+        assertEquals(0L, redLock.tryLock(LOCK_KEY, value, RedLock.CLOCK_DRIFT_MIN, 0L, TimeUnit.MILLISECONDS));
+        awaitReleased(value, nodes);
+    }
+
+    @Test
+    public void survivesMinorityDown() throws Exception {
+        nodes.get(0).stop();
+        String value = DistributeLock.newValue();
+        assertTrue(redLock.tryLock(LOCK_KEY, value, LEASE, 0L, TimeUnit.MILLISECONDS) > 0);
+        assertEquals(value, nodes.get(1).get(KEY));
+        assertEquals(value, nodes.get(2).get(KEY));
+        assertEquals(2, redLock.unLock(LOCK_KEY, value));
+    }
+
+    @Test
+    public void minorityLockedFailsAndReleasesIt() throws Exception {
+        // 另外一个持有者在两个节点上持有锁，只能抢到一个节点，不够半数
+        nodes.get(0).put(KEY, "other", LEASE);
+        nodes.get(1).put(KEY, "other", LEASE);
+        String value = DistributeLock.newValue();
+        assertEquals(0L, redLock.tryLock(LOCK_KEY, value, LEASE, 0L, TimeUnit.MILLISECONDS));
+
+        // 抢到的那个节点上的锁要被释放，别人的锁不能动
+        awaitReleased(value, nodes.subList(2, 3));
+        assertEquals("other", nodes.get(0).get(KEY));
+        assertEquals("other", nodes.get(1).get(KEY));
+    }
+
+    @Test
+    public void slowMajorityFailsAndExpires() throws Exception {
+        // 响应超过nodeTimeout的节点按失败算；读超时后节点上仍可能设置成功，只能等过期
+        nodes.get(0).setSetDelayMillis(200L);
+        nodes.get(1).setSetDelayMillis(200L);
+        String value = DistributeLock.newValue();
+        assertEquals(0L, redLock.tryLock(LOCK_KEY, value, 500L, 0L, TimeUnit.MILLISECONDS));
+
+        awaitReleased(value, nodes.subList(2, 3));
+        awaitReleased(value, nodes);
+    }
+
+    @Test
+    public void secondOwnerIsRejectedUntilRelease() {
+        String first = DistributeLock.newValue();
+        assertTrue(redLock.tryLock(LOCK_KEY, first, LEASE, 0L, TimeUnit.MILLISECONDS) > 0);
+        String second = DistributeLock.newValue();
+        assertEquals(0L, redLock.tryLock(LOCK_KEY, second, LEASE, 0L, TimeUnit.MILLISECONDS));
+
+        redLock.unLock(LOCK_KEY, first);
+        assertTrue(redLock.tryLock(LOCK_KEY, second, LEASE, 0L, TimeUnit.MILLISECONDS) > 0);
+    }
+
+    /**
+     * 失败后的释放是异步的，等一会儿
+     */
+    private static void awaitReleased(String value, List<RedisStandIn> nodes) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000L;
+        for (RedisStandIn node : nodes) {
+            while (value.equals(node.get(KEY)) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10L);
+            }
+            assertNull(node.get(KEY));
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package com.scosyf.distLock.redis.lock;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 测试用的redis替身，只实现RedLock用到的命令：PING、SET NX PX、GET、DEL、SCRIPT LOAD、
+ * 以及REDLOCK_RELEASE的EVALSHA
+ *
+ * 每个实例是一个独立的节点，可以设置SET的响应延迟来模拟慢节点，stop后连接被拒绝，模拟节点挂掉
+ */
+class RedisStandIn {
+
+    private final ServerSocket serverSocket;
+
+    private final Map<String, Entry> data = new ConcurrentHashMap<>();
+
+    private final List<Socket> clients = new CopyOnWriteArrayList<>();
+
+    private volatile long setDelayMillis;
+
+    private RedisStandIn() throws IOException {
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    }
+
+    static RedisStandIn start() throws IOException {
+        final RedisStandIn node = new RedisStandIn();
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                node.accept();
+            }
+        }, "redis-stand-in-" + node.getPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return node;
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * SET返回前等待的时间，之后才写入
+     */
+    void setSetDelayMillis(long setDelayMillis) {
+        this.setDelayMillis = setDelayMillis;
+    }
+
+    /**
+     * 未过期的值
+     */
+    String get(String key) {
+        Entry entry = data.get(key);
+        if (entry == null || entry.expired()) {
+            return null;
+        }
+        return entry.value;
+    }
+
+    void put(String key, String value, long leaseMillis) {
+        data.put(key, new Entry(value, System.currentTimeMillis() + leaseMillis));
+    }
+
+    void stop() throws IOException {
+        serverSocket.close();
+        for (Socket client : clients) {
+            client.close();
+        }
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            clients.add(socket);
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            }, "redis-stand-in-client");
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            List<String> command;
+            while ((command = readCommand(in)) != null) {
+                out.write(execute(command).getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            }
+        } catch (IOException e) {
+            // 客户端断开或者节点被stop
+        } finally {
+            clients.remove(socket);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private String execute(List<String> command) {
+        String name = command.get(0).toUpperCase();
+        if ("PING".equals(name)) {
+            return "+PONG\r\n";
+        }
+        if ("QUIT".equals(name)) {
+            return "+OK\r\n";
+        }
+        if ("GET".equals(name)) {
+            return bulk(get(command.get(1)));
+        }
+        if ("DEL".equals(name)) {
+            return ":" + (data.remove(command.get(1)) == null ? 0 : 1) + "\r\n";
+        }
+        if ("SET".equals(name)) {
+            return set(command);
+        }
+        if ("SCRIPT".equals(name)) {
+            return bulk(LuaScript.of(command.get(2)).getSha());
+        }
+        if ("EVALSHA".equals(name) && LockScripts.REDLOCK_RELEASE.getSha().equals(command.get(1))) {
+            String key = command.get(3);
+            String value = command.get(4);
+            Entry entry = data.get(key);
+            boolean owned = entry != null && !entry.expired() && entry.value.equals(value);
+            return ":" + (owned && data.remove(key, entry) ? 1 : 0) + "\r\n";
+        }
+        if ("EVALSHA".equals(name)) {
+            return "-NOSCRIPT No matching script.\r\n";
+        }
+        return "-ERR unknown command '" + name + "'\r\n";
+    }
+
+    /**
+     * SET key value NX PX millis
+     */
+    private String set(List<String> command) {
+        long delay = setDelayMillis;
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        String key = command.get(1);
+        long lease = Long.parseLong(command.get(5));
+        synchronized (data) {
+            if (get(key) != null) {
+                return "$-1\r\n";
+            }
+            put(key, command.get(2), lease);
+        }
+        return "+OK\r\n";
+    }
+
+    private static String bulk(String value) {
+        if (value == null) {
+            return "$-1\r\n";
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        return "$" + bytes.length + "\r\n" + value + "\r\n";
+    }
+
+    private static List<String> readCommand(InputStream in) throws IOException {
+        String header = readLine(in);
+        if (header == null) {
+            return null;
+        }
+        int count = Integer.parseInt(header.substring(1));
+        List<String> command = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int length = Integer.parseInt(readLine(in).substring(1));
+            byte[] bytes = new byte[length];
+            int read = 0;
+            while (read < length) {
+                int n = in.read(bytes, read, length - read);
+                if (n < 0) {
+                    return null;
+                }
+                read += n;
+            }
+            // \r\n
+            in.read();
+            in.read();
+            command.add(new String(bytes, StandardCharsets.UTF_8));
+        }
+        return command;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\r') {
+                in.read();
+                return line.toString();
+            }
+            line.append((char) b);
+        }
+        return null;
+    }
+
+    private static class Entry {
+
+        private final String value;
+
+        private final long deadline;
+
+        Entry(String value, long deadline) {
+            this.value = value;
+            this.deadline = deadline;
+        }
+
+        boolean expired() {
+            return System.currentTimeMillis() >= deadline;
+        }
+    }
+}
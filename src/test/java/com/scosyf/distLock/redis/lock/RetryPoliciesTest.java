@@ -0,0 +1,87 @@
+package com.scosyf.distLock.redis.lock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class RetryPoliciesTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1L);
+
+    @Test
+    public void noDelayRetriesImmediately() {
+        RetryPolicy policy = RetryPolicies.noDelay();
+        for (int attempt = 1; attempt < 10; attempt++) {
+            assertEquals(0L, policy.nextDelayNanos(attempt, 0L));
+        }
+    }
+
+    @Test
+    public void fixedDelayIgnoresAttempt() {
+        RetryPolicy policy = RetryPolicies.fixedDelay(3L, TimeUnit.MILLISECONDS);
+        assertEquals(3 * MS, policy.nextDelayNanos(1, 0L));
+        assertEquals(3 * MS, policy.nextDelayNanos(100, 3 * MS));
+    }
+
+    @Test
+    public void exponentialBackoffStaysUnderCeiling() {
+        RetryPolicy policy = RetryPolicies.exponentialBackoff(5L, 50L, TimeUnit.MILLISECONDS);
+        for (int i = 0; i < 1000; i++) {
+            // base * 2^1
+            long first = policy.nextDelayNanos(1, 0L);
+            assertTrue(first >= 0 && first <= 10 * MS);
+            long later = policy.nextDelayNanos(10, 0L);
+            assertTrue(later >= 0 && later <= 50 * MS);
+        }
+    }
+
+    @Test
+    public void exponentialBackoffDoesNotOverflow() {
+        RetryPolicy policy = RetryPolicies.exponentialBackoff(1L, 1L, TimeUnit.DAYS);
+        long delay = policy.nextDelayNanos(Integer.MAX_VALUE, 0L);
+        assertTrue(delay >= 0 && delay <= TimeUnit.DAYS.toNanos(1L));
+    }
+
+    @Test
+    public void exponentialBackoffWithLargeBaseReachesCap() {
+        // 约17s，左移29位溢出成负数，左移30位绕回到2^30ns（约1s）
+        RetryPolicy policy = RetryPolicies.exponentialBackoff((1L << 34) + 1, TimeUnit.SECONDS.toNanos(60L),
+                TimeUnit.NANOSECONDS);
+        long cap = TimeUnit.SECONDS.toNanos(60L);
+        for (int attempt = 2; attempt <= 40; attempt++) {
+            long min = cap;
+            long max = 0L;
+            for (int i = 0; i < 1000; i++) {
+                long delay = policy.nextDelayNanos(attempt, 0L);
+                assertTrue(delay >= 0 && delay <= cap);
+                min = Math.min(min, delay);
+                max = Math.max(max, delay);
+            }
+            // 上限是cap并且有抖动：1000次里总有超过一半的，也不会全都是cap
+            assertTrue("attempt " + attempt + " max " + max, max > cap / 2);
+            assertTrue("attempt " + attempt + " min " + min, min < cap);
+        }
+    }
+
+    @Test
+    public void decorrelatedJitterStaysWithinBounds() {
+        RetryPolicy policy = RetryPolicies.decorrelatedJitter(5L, 50L, TimeUnit.MILLISECONDS);
+        long last = 0L;
+        for (int attempt = 1; attempt < 1000; attempt++) {
+            long delay = policy.nextDelayNanos(attempt, last);
+            assertTrue(delay >= 5 * MS && delay <= 50 * MS);
+            last = delay;
+        }
+    }
+
+    @Test
+    public void boundedAttemptsGivesUp() {
+        RetryPolicy policy = RetryPolicies.boundedAttempts(3, RetryPolicies.fixedDelay(1L, TimeUnit.MILLISECONDS));
+        assertEquals(MS, policy.nextDelayNanos(1, 0L));
+        assertEquals(MS, policy.nextDelayNanos(2, MS));
+        assertTrue(policy.nextDelayNanos(3, MS) < 0);
+    }
+}